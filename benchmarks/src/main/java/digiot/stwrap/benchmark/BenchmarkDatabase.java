@@ -0,0 +1,64 @@
+package digiot.stwrap.benchmark;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.StripeLinkedUserSchemaManager;
+import digiot.stwrap.helper.H2TestDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the in-memory H2 databases the benchmarks run against, with the schema and indexes of the tests.
+ */
+final class BenchmarkDatabase {
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Creates a pooled data source for a new in-memory database.
+     *
+     * @param name     The database name; every benchmark uses its own.
+     * @param poolSize The maximum pool size, at least the number of benchmark threads.
+     * @return The data source, to be closed in the tear-down of the benchmark.
+     */
+    static HikariDataSource create(String name, int poolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(H2TestDatabase.url(name, null));
+        config.setUsername("sa");
+        config.setPassword("");
+        config.setMaximumPoolSize(poolSize);
+        config.setPoolName("stwrap-benchmark-" + name);
+        HikariDataSource dataSource = new HikariDataSource(config);
+        new StripeLinkedUserSchemaManager(dataSource).ensureIndexes();
+        return dataSource;
+    }
+
+    /**
+     * Inserts a primary link for each of the given number of users, see {@link #userId(int)}.
+     */
+    static void populate(DefaultStripeLinkedUserRepository<String> repository, int users) {
+        StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+        List<StripeLinkedUser<String>> links = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            links.add(factory.create(userId(i), customerId(i)));
+            if (links.size() == 1000) {
+                repository.insertAll(links);
+                links.clear();
+            }
+        }
+        repository.insertAll(links);
+    }
+
+    static String userId(int i) {
+        return "bench_user" + i;
+    }
+
+    static String customerId(int i) {
+        return "cus_bench" + i;
+    }
+}
@@ -0,0 +1,32 @@
+package digiot.stwrap.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which adds allocation rate and bytes allocated per operation to every
+ * result, and writes the results as JSON so that runs of different releases can be compared.
+ * <p>
+ * Usage: {@code java -jar benchmarks.jar [include-regex...]}. The result file defaults to jmh-result.json and can be
+ * changed with {@code -Dstwrap.benchmark.result=<path>}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("stwrap.benchmark.result", "jmh-result.json"));
+        if (args.length == 0) {
+            options.include(BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark");
+        }
+        for (String include : args) {
+            options.include(include);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,95 @@
+package digiot.stwrap.benchmark;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.net.HttpURLConnectionClient;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Accumulates, per thread, the time spent in JDBC calls and in Stripe HTTP calls, so that the latency of an
+ * operation can be split between the database and Stripe.
+ */
+final class CallTimer {
+
+    private static final ThreadLocal<long[]> NANOS = ThreadLocal.withInitial(() -> new long[2]);
+    private static final int DB = 0;
+    private static final int STRIPE = 1;
+
+    private CallTimer() {
+    }
+
+    /**
+     * Clears the time accumulated by the calling thread.
+     */
+    static void reset() {
+        long[] nanos = NANOS.get();
+        nanos[DB] = 0;
+        nanos[STRIPE] = 0;
+    }
+
+    static long dbNanos() {
+        return NANOS.get()[DB];
+    }
+
+    static long stripeNanos() {
+        return NANOS.get()[STRIPE];
+    }
+
+    /**
+     * Wraps a data source so that getting a connection, which includes waiting for the pool, and every call on the
+     * connections, statements and result sets it hands out count as database time.
+     */
+    static DataSource timed(DataSource dataSource) {
+        return wrap(dataSource, DataSource.class);
+    }
+
+    private static <T> T wrap(T target, Class<T> type) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                NANOS.get()[DB] += System.nanoTime() - start;
+            }
+            Class<?> returned = method.getReturnType();
+            if (result != null && returned.isInterface()
+                    && (Connection.class.isAssignableFrom(returned) || Statement.class.isAssignableFrom(returned) || ResultSet.class.isAssignableFrom(returned))) {
+                return wrapAs(result, returned);
+            }
+            return result;
+        };
+        return type.cast(Proxy.newProxyInstance(CallTimer.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T wrapAs(Object target, Class<T> type) {
+        return wrap((T) target, type);
+    }
+
+    /**
+     * Stripe HTTP client that counts the time of each request, including reading the response, as Stripe time.
+     */
+    static class TimedHttpClient extends HttpURLConnectionClient {
+
+        @Override
+        public StripeResponse request(StripeRequest request) throws ApiConnectionException {
+            long start = System.nanoTime();
+            try {
+                return super.request(request);
+            } finally {
+                NANOS.get()[STRIPE] += System.nanoTime() - start;
+            }
+        }
+    }
+}
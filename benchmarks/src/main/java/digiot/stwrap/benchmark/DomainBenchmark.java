@@ -0,0 +1,64 @@
+package digiot.stwrap.benchmark;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.subscription.SubscriptionItemFactory;
+import digiot.stwrap.domain.subscription.SubscriptionSpecification;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory domain code on the request path: link creation, which generates a ULID, subscription item
+ * building and the subscription amount calculations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DomainBenchmark {
+
+    final StripeLinkedUserFactory<String> linkFactory = new StripeLinkedUserFactory<>();
+    final LocalDateTime start = LocalDateTime.of(2024, 1, 15, 10, 0);
+    final LocalDateTime cancellation = LocalDateTime.of(2024, 7, 3, 18, 30);
+
+    @Benchmark
+    public StripeLinkedUser<String> createLink() {
+        return linkFactory.create("bench_user", "cus_bench");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public StripeLinkedUser<String> createLink4Threads() {
+        return linkFactory.create("bench_user", "cus_bench");
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> createSubscriptionItem() {
+        return SubscriptionItemFactory.createSubscriptionItem("plan_bench", 3);
+    }
+
+    @Benchmark
+    public double calculateProratedCancellationAmount() {
+        return SubscriptionSpecification.calculateProratedCancellationAmount(start, cancellation, 1000);
+    }
+
+    @Benchmark
+    public double calculateDiscountedAmount() {
+        return SubscriptionSpecification.calculateDiscountedAmount(start, cancellation, 1000, 3, 0.1);
+    }
+}
@@ -0,0 +1,61 @@
+package digiot.stwrap.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the index of the user an operation works on, out of a fixed key space.
+ */
+interface KeyDistribution {
+
+    int next();
+
+    static KeyDistribution uniform(int keys) {
+        return () -> ThreadLocalRandom.current().nextInt(keys);
+    }
+
+    /**
+     * Returns a Zipfian distribution in which key 0 is the most popular, following Gray et al., "Quickly Generating
+     * Billion-Record Synthetic Databases". A theta of 0.99 matches the skew commonly used by YCSB.
+     */
+    static KeyDistribution zipfian(int keys, double theta) {
+        return new Zipfian(keys, theta);
+    }
+
+    final class Zipfian implements KeyDistribution {
+
+        private final int keys;
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        Zipfian(int keys, double theta) {
+            this.keys = keys;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetaN = zeta(keys, theta);
+            this.eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        }
+
+        @Override
+        public int next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return Math.min(1, keys - 1);
+            }
+            return Math.min(keys - 1, (int) (keys * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
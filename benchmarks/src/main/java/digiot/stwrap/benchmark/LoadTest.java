@@ -0,0 +1,218 @@
+package digiot.stwrap.benchmark;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.zaxxer.hikari.HikariDataSource;
+import digiot.stwrap.application.CustomerService;
+import digiot.stwrap.application.InvoiceService;
+import digiot.stwrap.application.PurchaseService;
+import digiot.stwrap.application.SubscriptionService;
+import digiot.stwrap.benchmark.LoadTestOptions.Operation;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import digiot.stwrap.infrastructure.stripe.TokenBucket;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives CustomerService, SubscriptionService, PurchaseService and InvoiceService with a mix of operations from
+ * concurrent workers, against H2 and the local Stripe stand-in, and reports throughput, latency percentiles and the
+ * share of time spent in the database and in Stripe calls per operation.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar digiot.stwrap.benchmark.LoadTest [key=value...]}, see
+ * {@link LoadTestOptions} for the keys.
+ */
+public class LoadTest {
+
+    private final LoadTestOptions options;
+    private final KeyDistribution keys;
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final AtomicInteger signups = new AtomicInteger();
+
+    private CustomerService<String> customerService;
+    private SubscriptionService<String> subscriptionService;
+    private PurchaseService purchaseService;
+    private InvoiceService<String> invoiceService;
+    private DefaultStripeLinkedUserRepository<String> repository;
+    private String planId;
+
+    LoadTest(LoadTestOptions options) {
+        this.options = options;
+        this.keys = options.keyDistribution();
+        this.operations = options.mix.keySet().toArray(new Operation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += options.mix.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(LoadTestOptions.parse(args)).run();
+    }
+
+    void run() throws IOException, StripeException, InterruptedException {
+        System.out.println("Load test: " + options);
+        try (StripeStub stripe = StripeStub.start();
+             HikariDataSource pool = BenchmarkDatabase.create("load_test", options.poolSize)) {
+            ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(new CallTimer.TimedHttpClient()));
+            repository = new DefaultStripeLinkedUserRepository<>(CallTimer.timed(pool));
+            StripeGateway gateway = gateway();
+            customerService = new CustomerService<>(repository, gateway);
+            subscriptionService = new SubscriptionService<>(customerService);
+            purchaseService = new PurchaseService(repository, gateway);
+            invoiceService = new InvoiceService<>(subscriptionService);
+
+            provision();
+            stripe.reset();
+            stripe.setLatency(Duration.ofMillis(options.stripeLatencyMs));
+
+            report(drive());
+            System.out.println("Stripe calls: " + stripe.callCounts());
+        } finally {
+            ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter());
+        }
+    }
+
+    /**
+     * Returns a gateway limiting reads and writes to stripe-rate-per-second each, or without limit when it is 0.
+     */
+    private StripeGateway gateway() {
+        if (options.stripeRatePerSecond <= 0) {
+            return new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO);
+        }
+        double rate = options.stripeRatePerSecond;
+        return new StripeGateway(new TokenBucket(rate, 1, rate), new TokenBucket(rate, 1, rate), 4, Duration.ofMillis(500), Duration.ofSeconds(10));
+    }
+
+    /**
+     * Creates the users the non-signup operations pick from, each with a subscription so it has an upcoming invoice.
+     */
+    private void provision() throws StripeException {
+        long start = System.nanoTime();
+        planId = StripeTestHelper.createTestPlan(StripeTestHelper.createTestProduct("Load test").getId(), 1000, "usd", "month").getId();
+        for (int i = 0; i < options.users; i++) {
+            subscriptionService.createSubscriptionWithToken(BenchmarkDatabase.userId(i), planId, "tok_visa", 1);
+        }
+        System.out.printf("Provisioned %d users in %d ms%n", options.users, Duration.ofNanos(System.nanoTime() - start).toMillis());
+    }
+
+    private Map<Operation, OperationStats> drive() throws InterruptedException {
+        long measureFrom = System.nanoTime() + Duration.ofSeconds(options.warmupSeconds).toNanos();
+        long end = measureFrom + Duration.ofSeconds(options.durationSeconds).toNanos();
+
+        List<Map<Operation, OperationStats>> perThread = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < options.threads; i++) {
+            Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+            for (Operation operation : operations) {
+                stats.put(operation, new OperationStats());
+            }
+            perThread.add(stats);
+            Thread worker = new Thread(() -> work(stats, measureFrom, end), "load-test-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Map<Operation, OperationStats> merged = new EnumMap<>(Operation.class);
+        for (Operation operation : operations) {
+            OperationStats total = new OperationStats();
+            perThread.forEach(stats -> total.merge(stats.get(operation)));
+            merged.put(operation, total);
+        }
+        return merged;
+    }
+
+    private void work(Map<Operation, OperationStats> stats, long measureFrom, long end) {
+        for (long now = System.nanoTime(); now - end < 0; now = System.nanoTime()) {
+            Operation operation = nextOperation();
+            CallTimer.reset();
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                execute(operation);
+            } catch (StripeException | RuntimeException e) {
+                failed = true;
+            }
+            long latency = System.nanoTime() - start;
+            if (start - measureFrom >= 0) {
+                if (failed) {
+                    stats.get(operation).error();
+                } else {
+                    stats.get(operation).record(latency, CallTimer.dbNanos(), CallTimer.stripeNanos());
+                }
+            }
+        }
+    }
+
+    private void execute(Operation operation) throws StripeException {
+        switch (operation) {
+            case SIGNUP:
+                customerService.getOrCreateStripeLinkedUser("load_signup" + signups.incrementAndGet());
+                break;
+            case SUBSCRIBE:
+                subscriptionService.createSubscriptionWithToken(randomUser(), planId, "tok_visa", 1);
+                break;
+            case CHARGE:
+                purchaseService.charge(repository.findPrimaryByUserId(randomUser()).orElseThrow(), 1000, "usd", "tok_visa");
+                break;
+            case INVOICE:
+                invoiceService.getNextInvoice(randomUser());
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    private Operation nextOperation() {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    private String randomUser() {
+        return BenchmarkDatabase.userId(keys.next());
+    }
+
+    private void report(Map<Operation, OperationStats> stats) {
+        double seconds = options.durationSeconds;
+        System.out.printf("%-10s %9s %7s %10s %9s %9s %9s %6s %8s %7s%n",
+                "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "db %", "stripe %", "other %");
+        long totalCount = 0;
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            OperationStats operation = entry.getValue();
+            totalCount += operation.count();
+            double total = Math.max(1, operation.totalNanos());
+            double db = 100 * operation.dbNanos() / total;
+            double stripe = 100 * operation.stripeNanos() / total;
+            System.out.printf("%-10s %9d %7d %10.1f %9.3f %9.3f %9.3f %6.1f %8.1f %7.1f%n",
+                    entry.getKey().name().toLowerCase(), operation.count(), operation.errors(), operation.count() / seconds,
+                    millis(operation.percentile(50)), millis(operation.percentile(99)), millis(operation.percentile(99.9)),
+                    db, stripe, Math.max(0, 100 - db - stripe));
+        }
+        System.out.printf("total      %9d %7s %10.1f%n", totalCount, "", totalCount / seconds);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
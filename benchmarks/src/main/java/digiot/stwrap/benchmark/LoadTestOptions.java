@@ -0,0 +1,92 @@
+package digiot.stwrap.benchmark;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Options of {@link LoadTest}, given as key=value arguments:
+ * <pre>
+ * duration-seconds=30      measured run time
+ * warmup-seconds=5         run time before measuring
+ * threads=16               concurrent workers
+ * pool-size=10             Hikari maximum pool size
+ * users=1000               pre-provisioned users the non-signup operations pick from
+ * mix=signup:10,subscribe:20,charge:40,invoice:30
+ *                          relative weight of each operation
+ * distribution=uniform     uniform or zipfian choice of users
+ * zipf-theta=0.99          skew of the zipfian distribution
+ * stripe-latency-ms=0      latency added by the Stripe stand-in to every call
+ * stripe-rate-per-second=0 client-side limit on Stripe reads and on writes, 0 for none
+ * </pre>
+ */
+final class LoadTestOptions {
+
+    enum Operation {
+        SIGNUP, SUBSCRIBE, CHARGE, INVOICE
+    }
+
+    final int durationSeconds;
+    final int warmupSeconds;
+    final int threads;
+    final int poolSize;
+    final int users;
+    final Map<Operation, Integer> mix;
+    final String distribution;
+    final double zipfTheta;
+    final int stripeLatencyMs;
+    final double stripeRatePerSecond;
+
+    private LoadTestOptions(Map<String, String> values) {
+        durationSeconds = Integer.parseInt(values.getOrDefault("duration-seconds", "30"));
+        warmupSeconds = Integer.parseInt(values.getOrDefault("warmup-seconds", "5"));
+        threads = Integer.parseInt(values.getOrDefault("threads", "16"));
+        poolSize = Integer.parseInt(values.getOrDefault("pool-size", "10"));
+        users = Integer.parseInt(values.getOrDefault("users", "1000"));
+        mix = parseMix(values.getOrDefault("mix", "signup:10,subscribe:20,charge:40,invoice:30"));
+        distribution = values.getOrDefault("distribution", "uniform");
+        zipfTheta = Double.parseDouble(values.getOrDefault("zipf-theta", "0.99"));
+        stripeLatencyMs = Integer.parseInt(values.getOrDefault("stripe-latency-ms", "0"));
+        stripeRatePerSecond = Double.parseDouble(values.getOrDefault("stripe-rate-per-second", "0"));
+    }
+
+    static LoadTestOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            values.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return new LoadTestOptions(values);
+    }
+
+    KeyDistribution keyDistribution() {
+        switch (distribution) {
+            case "uniform":
+                return KeyDistribution.uniform(users);
+            case "zipfian":
+                return KeyDistribution.zipfian(users, zipfTheta);
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution + ", expected uniform or zipfian");
+        }
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] weight = part.split(":");
+            weights.put(Operation.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(weight[1].trim()));
+        }
+        return weights;
+    }
+
+    @Override
+    public String toString() {
+        return "duration-seconds=" + durationSeconds + " warmup-seconds=" + warmupSeconds + " threads=" + threads
+                + " pool-size=" + poolSize + " users=" + users + " mix=" + mix + " distribution=" + distribution
+                + ("zipfian".equals(distribution) ? " zipf-theta=" + zipfTheta : "") + " stripe-latency-ms=" + stripeLatencyMs + " stripe-rate-per-second=" + stripeRatePerSecond;
+    }
+}
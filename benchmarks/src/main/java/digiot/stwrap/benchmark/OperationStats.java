@@ -0,0 +1,77 @@
+package digiot.stwrap.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Latencies and DB / Stripe time of one operation type. Each worker thread records into its own instance, which
+ * are merged when the run ends.
+ */
+final class OperationStats {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private long errors;
+    private long dbNanos;
+    private long stripeNanos;
+
+    void record(long latencyNanos, long dbNanos, long stripeNanos) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        this.dbNanos += dbNanos;
+        this.stripeNanos += stripeNanos;
+    }
+
+    void error() {
+        errors++;
+    }
+
+    void merge(OperationStats other) {
+        if (count + other.count > latencies.length) {
+            latencies = Arrays.copyOf(latencies, count + other.count);
+        }
+        System.arraycopy(other.latencies, 0, latencies, count, other.count);
+        count += other.count;
+        errors += other.errors;
+        dbNanos += other.dbNanos;
+        stripeNanos += other.stripeNanos;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long errors() {
+        return errors;
+    }
+
+    long totalNanos() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += latencies[i];
+        }
+        return total;
+    }
+
+    long dbNanos() {
+        return dbNanos;
+    }
+
+    long stripeNanos() {
+        return stripeNanos;
+    }
+
+    /**
+     * Returns the latency at a percentile between 0 and 100, by the nearest-rank method. Sorts the recorded
+     * latencies, so it is only called once the run has ended.
+     */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(latencies, 0, count);
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return latencies[Math.max(0, Math.min(count, rank) - 1)];
+    }
+}
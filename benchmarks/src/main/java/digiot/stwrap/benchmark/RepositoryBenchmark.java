@@ -0,0 +1,149 @@
+package digiot.stwrap.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.impl.CachingStripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository lookups against H2: single lookups with and without the cache, batched lookups and a full scan,
+ * which is dominated by row mapping. The variants ending in 4Threads run the same lookup from four threads.
+ * The variants ending in Each do the work of their batched counterpart one row at a time, for batchSize rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RepositoryBenchmark {
+
+    @Param({"10000"})
+    int users;
+
+    @Param({"100"})
+    int batchSize;
+
+    HikariDataSource dataSource;
+    DefaultStripeLinkedUserRepository<String> repository;
+    CachingStripeLinkedUserRepository<String> cachingRepository;
+    StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+    int nextUser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataSource = BenchmarkDatabase.create("repository_benchmark", 8);
+        repository = new DefaultStripeLinkedUserRepository<>(dataSource);
+        BenchmarkDatabase.populate(repository, users);
+        cachingRepository = new CachingStripeLinkedUserRepository<>(repository, users, Duration.ofHours(1));
+        nextUser = users;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    @Benchmark
+    public Optional<StripeLinkedUser<String>> findPrimaryByUserId() {
+        return repository.findPrimaryByUserId(randomUserId());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<StripeLinkedUser<String>> findPrimaryByUserId4Threads() {
+        return repository.findPrimaryByUserId(randomUserId());
+    }
+
+    @Benchmark
+    public Optional<StripeLinkedUser<String>> findByStripeCustomerId() {
+        return repository.findByStripeCustomerId(BenchmarkDatabase.customerId(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    @Benchmark
+    public Map<String, StripeLinkedUser<String>> findPrimaryByUserIds() {
+        List<String> userIds = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            userIds.add(randomUserId());
+        }
+        return repository.findPrimaryByUserIds(userIds);
+    }
+
+    @Benchmark
+    public void findPrimaryByUserIdEach(Blackhole blackhole) {
+        for (int i = 0; i < batchSize; i++) {
+            blackhole.consume(repository.findPrimaryByUserId(randomUserId()));
+        }
+    }
+
+    /**
+     * Inserts batchSize new users in one batch. The table grows over the run, as it does for {@link #insertEach()}.
+     */
+    @Benchmark
+    public int insertAll() {
+        List<StripeLinkedUser<String>> links = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            links.add(newLink());
+        }
+        return repository.insertAll(links);
+    }
+
+    @Benchmark
+    public int insertEach() {
+        int inserted = 0;
+        for (int i = 0; i < batchSize; i++) {
+            inserted += repository.insert(newLink());
+        }
+        return inserted;
+    }
+
+    @Benchmark
+    public Optional<StripeLinkedUser<String>> cachedFindPrimaryByUserId() {
+        return cachingRepository.findPrimaryByUserId(randomUserId());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<StripeLinkedUser<String>> cachedFindPrimaryByUserId4Threads() {
+        return cachingRepository.findPrimaryByUserId(randomUserId());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void streamAll(Blackhole blackhole) {
+        repository.streamAll().forEach(blackhole::consume);
+    }
+
+    private StripeLinkedUser<String> newLink() {
+        int user = nextUser++;
+        return factory.create(BenchmarkDatabase.userId(user), BenchmarkDatabase.customerId(user));
+    }
+
+    private String randomUserId() {
+        return BenchmarkDatabase.userId(ThreadLocalRandom.current().nextInt(users));
+    }
+}
@@ -0,0 +1,116 @@
+package digiot.stwrap.benchmark;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Subscription;
+import com.stripe.param.PaymentMethodCreateParams;
+import com.zaxxer.hikari.HikariDataSource;
+import digiot.stwrap.application.CustomerService;
+import digiot.stwrap.application.SubscriptionService;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service operations against H2 and the local Stripe stub, so the measured time is stwrap's own overhead plus a
+ * loopback HTTP round trip per Stripe call, without the latency of the real API.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripeServiceBenchmark {
+
+    @Param({"200"})
+    int users;
+
+    StripeStub stripe;
+    HikariDataSource dataSource;
+    CustomerService<String> customerService;
+    SubscriptionService<String> subscriptionService;
+    String planId;
+    String couponId;
+    String[] paymentMethodIds;
+    String[] subscriptionIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, StripeException {
+        stripe = StripeStub.start();
+        dataSource = BenchmarkDatabase.create("stripe_service_benchmark", 8);
+        // no client-side rate limit, so the benchmark measures the calls themselves
+        StripeGateway gateway = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO);
+        customerService = new CustomerService<>(new DefaultStripeLinkedUserRepository<>(dataSource), gateway);
+        subscriptionService = new SubscriptionService<>(customerService);
+
+        planId = StripeTestHelper.createTestPlan(StripeTestHelper.createTestProduct("Benchmark").getId(), 1000, "usd", "month").getId();
+        couponId = StripeTestHelper.createTestCoupon(10, "once").getId();
+        paymentMethodIds = new String[users];
+        subscriptionIds = new String[users];
+        for (int i = 0; i < users; i++) {
+            StripeLinkedUser<String> user = customerService.getOrCreateStripeLinkedUser(BenchmarkDatabase.userId(i));
+            paymentMethodIds[i] = customerService.addPaymentMethodToCustomer(user.getUserId(), "tok_visa", PaymentMethodCreateParams.Type.CARD).getId();
+            subscriptionIds[i] = StripeTestHelper.createSubscription(user.getStripeCustomerId(), planId).getId();
+        }
+        stripe.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stripe.close();
+        dataSource.close();
+    }
+
+    @Benchmark
+    public StripeLinkedUser<String> getOrCreateStripeLinkedUser() throws StripeException {
+        return customerService.getOrCreateStripeLinkedUser(BenchmarkDatabase.userId(randomUser()));
+    }
+
+    @Benchmark
+    public PaymentMethod addPaymentMethodToCustomer() throws StripeException {
+        return customerService.addPaymentMethodToCustomer(BenchmarkDatabase.userId(randomUser()), "tok_visa", PaymentMethodCreateParams.Type.CARD);
+    }
+
+    @Benchmark
+    public Subscription createSubscriptionWithPaymentMethodId() throws StripeException {
+        int user = randomUser();
+        return subscriptionService.createSubscriptionWithPaymentMethodId(BenchmarkDatabase.userId(user), planId, paymentMethodIds[user], 1);
+    }
+
+    @Benchmark
+    public Subscription applyCouponToSubscription() throws StripeException {
+        return subscriptionService.applyCouponToSubscription(subscriptionIds[randomUser()], couponId);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Subscription applyCouponToSubscription4Threads() throws StripeException {
+        return subscriptionService.applyCouponToSubscription(subscriptionIds[randomUser()], couponId);
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(users);
+    }
+}
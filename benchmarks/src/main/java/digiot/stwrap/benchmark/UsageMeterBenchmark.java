@@ -0,0 +1,73 @@
+package digiot.stwrap.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import digiot.stwrap.application.UsageMeter;
+import digiot.stwrap.infrastructure.jdbc.PendingUsageStore;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UsageMeter#record from one and from eight threads, spread over a number of subscription items. Usage is moved into
+ * H2 every second as in production; no usage record is sent to Stripe during the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UsageMeterBenchmark {
+
+    @Param({"16", "10000"})
+    int items;
+
+    HikariDataSource dataSource;
+    UsageMeter meter;
+    String[] itemIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataSource = BenchmarkDatabase.create("usage_meter_benchmark", 2);
+        meter = new UsageMeter(new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO), new PendingUsageStore(dataSource),
+                Duration.ofSeconds(1), Duration.ofDays(1), Integer.MAX_VALUE);
+        itemIds = new String[items];
+        for (int i = 0; i < items; i++) {
+            itemIds[i] = "si_bench" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // Nothing is sent, so closing only moves the last usage into H2.
+        meter.close();
+        dataSource.close();
+    }
+
+    @Benchmark
+    public void record() {
+        meter.record(itemIds[ThreadLocalRandom.current().nextInt(items)]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void record8Threads() {
+        meter.record(itemIds[ThreadLocalRandom.current().nextInt(items)]);
+    }
+}
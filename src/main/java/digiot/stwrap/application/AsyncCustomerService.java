@@ -0,0 +1,80 @@
+package digiot.stwrap.application;
+
+import com.stripe.model.Customer;
+import com.stripe.model.PaymentMethod;
+import com.stripe.param.PaymentMethodCreateParams;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import lombok.AllArgsConstructor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous counterpart of {@link CustomerService}. Each method runs the blocking calls on the executor and
+ * returns at once; the future completes with the result, or exceptionally with the StripeException as the cause.
+ */
+@AllArgsConstructor
+public class AsyncCustomerService<T> {
+
+    final CustomerService<T> customerService;
+
+    final Executor executor;
+
+    /**
+     * Creates a service running on {@link AsyncExecutors#getDefault()}.
+     */
+    public AsyncCustomerService(CustomerService<T> customerService) {
+        this(customerService, AsyncExecutors.getDefault());
+    }
+
+    /**
+     * @see CustomerService#getOrCreateStripeLinkedUser(Object)
+     */
+    public CompletableFuture<StripeLinkedUser<T>> getOrCreateStripeLinkedUser(T userId) {
+        return AsyncExecutors.supply(() -> customerService.getOrCreateStripeLinkedUser(userId), executor);
+    }
+
+    /**
+     * @see CustomerService#getOrCreateStripeLinkedUser(Object, String)
+     */
+    public CompletableFuture<StripeLinkedUser<T>> getOrCreateStripeLinkedUser(T userId, String email) {
+        return AsyncExecutors.supply(() -> customerService.getOrCreateStripeLinkedUser(userId, email), executor);
+    }
+
+    /**
+     * @see CustomerService#linkStripeCustomer(Object, Customer)
+     */
+    public CompletableFuture<StripeLinkedUser<T>> linkStripeCustomer(T userId, Customer customer) {
+        return AsyncExecutors.supply(() -> customerService.linkStripeCustomer(userId, customer), executor);
+    }
+
+    /**
+     * Adds a new payment method to the Stripe customer of the user. Unlike
+     * {@link CustomerService#addPaymentMethodToCustomer(Object, String, PaymentMethodCreateParams.Type)}, the customer
+     * is resolved while the payment method is created, and the attach follows once both are done. If the customer
+     * cannot be resolved, the payment method is left unattached, where it cannot be used.
+     *
+     * @see CustomerService#addPaymentMethodToCustomer(Object, String, PaymentMethodCreateParams.Type)
+     */
+    public CompletableFuture<PaymentMethod> addPaymentMethodToCustomer(T userId, String token, PaymentMethodCreateParams.Type type) {
+        return addPaymentMethodToCustomer(new StripeOperationContext<>(customerService, userId), token, type);
+    }
+
+    CompletableFuture<PaymentMethod> addPaymentMethodToCustomer(StripeOperationContext<T> context, String token, PaymentMethodCreateParams.Type type) {
+        CompletableFuture<StripeLinkedUser<T>> linked = AsyncExecutors.supply(context::getLinkedUser, executor);
+        CompletableFuture<PaymentMethod> created = AsyncExecutors.supply(() -> customerService.createPaymentMethod(token, type), executor);
+        return linked.thenCombine(created, (link, paymentMethod) -> paymentMethod)
+                .thenCompose(paymentMethod -> AsyncExecutors.supply(() -> customerService.attachNewPaymentMethod(context, paymentMethod), executor));
+    }
+
+    /**
+     * @see CustomerService#attachPaymentMethodToCustomer(String, String)
+     */
+    public CompletableFuture<Void> attachPaymentMethodToCustomer(String customerId, String paymentMethodId) {
+        return AsyncExecutors.supply(() -> {
+            customerService.attachPaymentMethodToCustomer(customerId, paymentMethodId);
+            return null;
+        }, executor);
+    }
+}
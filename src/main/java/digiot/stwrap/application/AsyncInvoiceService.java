@@ -0,0 +1,43 @@
+package digiot.stwrap.application;
+
+import com.stripe.model.Invoice;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import lombok.AllArgsConstructor;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous counterpart of {@link InvoiceService}. Each method runs the blocking calls on the executor and
+ * returns at once; the future completes with the result, or exceptionally with the StripeException as the cause.
+ */
+@AllArgsConstructor
+public class AsyncInvoiceService<T> {
+
+    final InvoiceService<T> invoiceService;
+
+    final Executor executor;
+
+    /**
+     * Creates a service running on {@link AsyncExecutors#getDefault()}.
+     */
+    public AsyncInvoiceService(InvoiceService<T> invoiceService) {
+        this(invoiceService, AsyncExecutors.getDefault());
+    }
+
+    /**
+     * @see InvoiceService#getNextInvoice(Object)
+     */
+    public CompletableFuture<Invoice> getNextInvoice(T userId) {
+        return AsyncExecutors.supply(() -> invoiceService.getNextInvoice(userId), executor);
+    }
+
+    /**
+     * @see InvoiceService#getNextInvoices(Collection)
+     */
+    public CompletableFuture<Map<T, Invoice>> getNextInvoices(Collection<T> userIds) {
+        return AsyncExecutors.supply(() -> invoiceService.getNextInvoices(userIds), executor);
+    }
+}
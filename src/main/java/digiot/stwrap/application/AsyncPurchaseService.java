@@ -0,0 +1,50 @@
+package digiot.stwrap.application;
+
+import com.stripe.model.Charge;
+import com.stripe.model.Token;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import lombok.AllArgsConstructor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous counterpart of {@link PurchaseService}. Each method runs the blocking calls on the executor and
+ * returns at once; the future completes with the result, or exceptionally with the StripeException as the cause.
+ */
+@AllArgsConstructor
+public class AsyncPurchaseService {
+
+    final PurchaseService purchaseService;
+
+    final Executor executor;
+
+    /**
+     * Creates a service running on {@link AsyncExecutors#getDefault()}.
+     */
+    public AsyncPurchaseService(PurchaseService purchaseService) {
+        this(purchaseService, AsyncExecutors.getDefault());
+    }
+
+    /**
+     * @see PurchaseService#charge(StripeLinkedUser, int, String, String)
+     */
+    public CompletableFuture<Charge> charge(StripeLinkedUser<?> entity, int amount, String currency, String creditCardInfo) {
+        return AsyncExecutors.supply(() -> purchaseService.charge(entity, amount, currency, creditCardInfo), executor);
+    }
+
+    /**
+     * @see PurchaseService#charge(StripeLinkedUser, int, String, Token)
+     */
+    public CompletableFuture<Charge> charge(StripeLinkedUser<?> entity, int amount, String currency, Token creditCardInfo) {
+        return AsyncExecutors.supply(() -> purchaseService.charge(entity, amount, currency, creditCardInfo), executor);
+    }
+
+    /**
+     * @see PurchaseService#charge(StripeLinkedUser, int, String, Token, String)
+     */
+    public CompletableFuture<Charge> charge(StripeLinkedUser<?> entity, int amount, String currency, Token creditCardInfo, String idempotencyKey) {
+        return AsyncExecutors.supply(() -> purchaseService.charge(entity, amount, currency, creditCardInfo, idempotencyKey), executor);
+    }
+}
@@ -0,0 +1,93 @@
+package digiot.stwrap.application;
+
+import com.stripe.model.Subscription;
+import com.stripe.param.PaymentMethodCreateParams;
+import digiot.stwrap.domain.model.LocalSubscription;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous counterpart of {@link SubscriptionService}. Each method runs the blocking calls on the executor and
+ * returns at once; the future completes with the result, or exceptionally with the StripeException as the cause.
+ */
+public class AsyncSubscriptionService<T> {
+
+    final SubscriptionService<T> subscriptionService;
+
+    final Executor executor;
+
+    private final AsyncCustomerService<T> customers;
+
+    /**
+     * Creates a service running on {@link AsyncExecutors#getDefault()}.
+     */
+    public AsyncSubscriptionService(SubscriptionService<T> subscriptionService) {
+        this(subscriptionService, AsyncExecutors.getDefault());
+    }
+
+    public AsyncSubscriptionService(SubscriptionService<T> subscriptionService, Executor executor) {
+        this.subscriptionService = subscriptionService;
+        this.executor = executor;
+        this.customers = new AsyncCustomerService<>(subscriptionService.customerService, executor);
+    }
+
+    /**
+     * @see SubscriptionService#getActiveSubscriptions(Object)
+     */
+    public CompletableFuture<List<LocalSubscription>> getActiveSubscriptions(T userId) {
+        return AsyncExecutors.supply(() -> subscriptionService.getActiveSubscriptions(userId), executor);
+    }
+
+    /**
+     * Creates a new subscription with a new payment method token. The customer is resolved while the payment method
+     * is created, as in
+     * {@link AsyncCustomerService#addPaymentMethodToCustomer(Object, String, PaymentMethodCreateParams.Type)}.
+     *
+     * @see SubscriptionService#createSubscriptionWithToken(Object, String, String, int)
+     */
+    public CompletableFuture<Subscription> createSubscriptionWithToken(T userId, String planId, String token, int quantity) {
+        StripeOperationContext<T> context = new StripeOperationContext<>(subscriptionService.customerService, userId);
+        return customers.addPaymentMethodToCustomer(context, token, PaymentMethodCreateParams.Type.CARD)
+                .thenCompose(paymentMethod -> AsyncExecutors.supply(
+                        () -> subscriptionService.createSubscription(context, planId, paymentMethod.getId(), quantity), executor));
+    }
+
+    /**
+     * @see SubscriptionService#createSubscriptionWithPaymentMethodId(Object, String, String, int)
+     */
+    public CompletableFuture<Subscription> createSubscriptionWithPaymentMethodId(T userId, String planId, String paymentMethodId, int quantity) {
+        return AsyncExecutors.supply(() -> subscriptionService.createSubscriptionWithPaymentMethodId(userId, planId, paymentMethodId, quantity), executor);
+    }
+
+    /**
+     * @see SubscriptionService#createSubscriptionWithPaymentMethodId(Object, String, String, int, String)
+     */
+    public CompletableFuture<Subscription> createSubscriptionWithPaymentMethodId(T userId, String planId, String paymentMethodId, int quantity, String idempotencyKey) {
+        return AsyncExecutors.supply(() -> subscriptionService.createSubscriptionWithPaymentMethodId(userId, planId, paymentMethodId, quantity, idempotencyKey), executor);
+    }
+
+    /**
+     * @see SubscriptionService#applyCouponToSubscription(String, String)
+     */
+    public CompletableFuture<Subscription> applyCouponToSubscription(String subscriptionId, String couponCode) {
+        return AsyncExecutors.supply(() -> subscriptionService.applyCouponToSubscription(subscriptionId, couponCode), executor);
+    }
+
+    /**
+     * @see SubscriptionService#cancelSubscriptionAtDate(String, OffsetDateTime)
+     */
+    public CompletableFuture<Subscription> cancelSubscriptionAtDate(String subscriptionId, OffsetDateTime cancelAt) {
+        return AsyncExecutors.supply(() -> subscriptionService.cancelSubscriptionAtDate(subscriptionId, cancelAt), executor);
+    }
+
+    /**
+     * @see SubscriptionService#cancelSubscriptionAtPeriodEnd(String)
+     */
+    public CompletableFuture<Subscription> cancelSubscriptionAtPeriodEnd(String subscriptionId) {
+        return AsyncExecutors.supply(() -> subscriptionService.cancelSubscriptionAtPeriodEnd(subscriptionId), executor);
+    }
+}
@@ -0,0 +1,256 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.param.CustomerCreateParams;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserConflictException;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import digiot.stwrap.infrastructure.jdbc.JobCheckpointStore;
+import digiot.stwrap.infrastructure.stripe.IdempotencyKeyStore;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Creates Stripe customers and primary links for many existing users, e.g. when onboarding a partner.
+ * <p>
+ * User IDs are read in batches. For each batch, users that already have a primary link are skipped, a customer is
+ * created for each of the others on a bounded pool of threads, and the links are inserted in one batch together with
+ * the job's checkpoint. The gateway's write limiter sets the pace, so adding threads past the point where calls wait
+ * for the limiter does not make the job faster.
+ * <p>
+ * A job that stops, whether it crashed or a create failed, resumes from its last checkpoint when run again under the
+ * same name with the same source in the same order. No duplicate customers are created on resume:
+ * <ul>
+ *     <li>users linked after the checkpoint are skipped by the primary link lookup,</li>
+ *     <li>a customer created but not linked before the crash is returned again by Stripe, because each create is sent
+ *     with an idempotency key derived from the job name and the user ID. Stripe keeps keys for 24 hours, so resume
+ *     within that time.</li>
+ * </ul>
+ * Progress and throughput are logged every report interval.
+ * <p>
+ * The checkpoint is only committed atomically with the links when the {@link JobCheckpointStore} uses the same
+ * DataSource as the repository, so that saving it joins the repository's transaction. With separate DataSources, a
+ * crash between the two commits can leave the checkpoint behind the links, which is harmless since linked users are
+ * skipped, or, if the links fail after the checkpoint is committed, ahead of them, leaving those users unprovisioned.
+ */
+public class BulkCustomerProvisioner<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkCustomerProvisioner.class);
+
+    private static final String PREFIX = "stwrap.provisioning.";
+
+    private final StripeLinkedUserRepository<T> userLinkRepository;
+    private final StripeGateway gateway;
+    private final JobCheckpointStore checkpoints;
+    private final int parallelism;
+    private final int batchSize;
+    private final Duration reportInterval;
+
+    /**
+     * Creates a provisioner that calls Stripe through {@link StripeGateway#getDefault()}, configured by the
+     * stwrap.provisioning.* properties: parallelism (16), batch-size (500) and report-interval-seconds (10).
+     */
+    public BulkCustomerProvisioner(StripeLinkedUserRepository<T> userLinkRepository, JobCheckpointStore checkpoints) {
+        this(userLinkRepository, StripeGateway.getDefault(), checkpoints,
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "parallelism", "16")),
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "batch-size", "500")),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "report-interval-seconds", "10"))));
+    }
+
+    /**
+     * @param parallelism    The number of Customer.create calls in flight at once.
+     * @param batchSize      The number of users looked up, linked and checkpointed together.
+     * @param reportInterval The interval between progress log lines.
+     */
+    public BulkCustomerProvisioner(StripeLinkedUserRepository<T> userLinkRepository, StripeGateway gateway, JobCheckpointStore checkpoints,
+                                   int parallelism, int batchSize, Duration reportInterval) {
+        if (parallelism < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("parallelism and batchSize must be at least 1: " + parallelism + ", " + batchSize);
+        }
+        this.userLinkRepository = userLinkRepository;
+        this.gateway = gateway;
+        this.checkpoints = checkpoints;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Provisions every user of the source that has no primary link yet, resuming from the job's checkpoint.
+     *
+     * @param jobName The name of the job, under which its checkpoint is kept.
+     * @param userIds The user IDs, in the same order on every run of the job.
+     * @return The progress of this run.
+     * @throws StripeException If a customer could not be created. The customers created for the same batch are linked
+     *                         first, and the job can be run again to resume.
+     */
+    public Progress provision(String jobName, Stream<T> userIds) throws StripeException {
+        long start = System.nanoTime();
+        long resumedAt = checkpoints.load(jobName);
+        long position = 0;
+        int created = 0;
+        int alreadyLinked = 0;
+        long nextReport = start + reportInterval.toNanos();
+
+        if (resumedAt > 0) {
+            log.info("Provisioning job {} resumes after {} users", jobName, resumedAt);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, AsyncExecutors.daemonThreadFactory("stwrap-provisioning-" + jobName));
+        try {
+            Iterator<T> source = userIds.iterator();
+            while (position < resumedAt && source.hasNext()) {
+                source.next();
+                position++;
+            }
+
+            List<T> batch = new ArrayList<>(batchSize);
+            while (source.hasNext()) {
+                batch.clear();
+                while (batch.size() < batchSize && source.hasNext()) {
+                    batch.add(source.next());
+                }
+
+                Map<T, StripeLinkedUser<T>> linked = userLinkRepository.findPrimaryByUserIds(batch);
+                alreadyLinked += linked.size();
+                created += provisionBatch(jobName, batch, linked, position + batch.size(), executor);
+                position += batch.size();
+
+                long now = System.nanoTime();
+                if (now - nextReport >= 0) {
+                    report(jobName, new Progress(position, position - resumedAt, created, alreadyLinked, Duration.ofNanos(now - start)));
+                    nextReport = now + reportInterval.toNanos();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Progress progress = new Progress(position, position - resumedAt, created, alreadyLinked, Duration.ofNanos(System.nanoTime() - start));
+        log.info("Provisioning job {} finished: {}", jobName, describe(progress));
+        return progress;
+    }
+
+    /**
+     * Creates the customers of one batch, links them and saves the checkpoint.
+     *
+     * @return The number of customers created.
+     */
+    private int provisionBatch(String jobName, List<T> batch, Map<T, StripeLinkedUser<T>> linked, long position,
+                               ExecutorService executor) throws StripeException {
+        List<Future<StripeLinkedUser<T>>> futures = new ArrayList<>();
+        for (T userId : batch) {
+            if (!linked.containsKey(userId)) {
+                futures.add(executor.submit(() -> createCustomer(jobName, userId)));
+            }
+        }
+
+        List<StripeLinkedUser<T>> links = new ArrayList<>(futures.size());
+        StripeException failure = null;
+        for (Future<StripeLinkedUser<T>> future : futures) {
+            try {
+                links.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null && e.getCause() instanceof StripeException) {
+                    failure = (StripeException) e.getCause();
+                } else if (failure == null) {
+                    throw new RuntimeException("Error creating a Stripe customer", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while creating Stripe customers", e);
+            }
+        }
+
+        if (failure != null) {
+            // Link what was created, so the resumed job skips those users, but keep the checkpoint before the batch.
+            insertLinks(links);
+            throw failure;
+        }
+        try {
+            userLinkRepository.inTransaction(() -> {
+                userLinkRepository.insertAll(links);
+                checkpoints.save(jobName, position);
+                return null;
+            });
+        } catch (StripeLinkedUserConflictException e) {
+            // Some users were linked concurrently, e.g. by a sign-in during the job; the batch was rolled back.
+            insertLinks(links);
+            checkpoints.save(jobName, position);
+        }
+        return links.size();
+    }
+
+    private StripeLinkedUser<T> createCustomer(String jobName, T userId) throws StripeException {
+        CustomerCreateParams params = CustomerCreateParams.builder()
+                .setName(String.valueOf(userId))
+                .setDescription("Customer for user ID: " + userId)
+                .build();
+        String idempotencyKey = "stwrap-provisioning-" + IdempotencyKeyStore.hash(jobName + "|" + userId);
+        Customer customer = gateway.write("customer.create|" + userId, idempotencyKey, options -> Customer.create(params, options));
+        return new StripeLinkedUserFactory<T>().create(userId, customer.getId());
+    }
+
+    /**
+     * Inserts the links one at a time, keeping the primary link of users that were linked concurrently and deleting
+     * the customers created for them by this job. A user listed twice in the source gets the same customer both times,
+     * through the idempotency key, so a customer already linked to the user is kept.
+     */
+    private void insertLinks(List<StripeLinkedUser<T>> links) throws StripeException {
+        for (StripeLinkedUser<T> link : links) {
+            StripeLinkedUser<T> primary = userLinkRepository.insertIfAbsent(link);
+            if (!primary.getStripeCustomerId().equals(link.getStripeCustomerId())) {
+                Customer customer = new Customer();
+                customer.setId(link.getStripeCustomerId());
+                gateway.write(customer::delete);
+            }
+        }
+    }
+
+    private static void report(String jobName, Progress progress) {
+        log.info("Provisioning job {}: {}", jobName, describe(progress));
+    }
+
+    private static String describe(Progress progress) {
+        return String.format("%d users processed (%d in this run), %d customers created, %d already linked, %.1f users/s",
+                progress.getPosition(), progress.getProcessed(), progress.getCreated(), progress.getAlreadyLinked(),
+                progress.getUsersPerSecond());
+    }
+
+    /**
+     * The progress of a provisioning run.
+     */
+    @Value
+    public static class Progress {
+        /** The number of source users processed by the job, including earlier runs. */
+        long position;
+        /** The number of source users processed by this run. */
+        long processed;
+        /** The number of customers created by this run. */
+        int created;
+        /** The number of users this run skipped because they already had a primary link. */
+        int alreadyLinked;
+        Duration elapsed;
+
+        public double getUsersPerSecond() {
+            return elapsed.isZero() ? 0 : processed * 1e9 / elapsed.toNanos();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package digiot.stwrap.application;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A set of Stripe customer IDs held as 64-bit fingerprints in an open-addressing table with linear probing,
+ * 11 to 22 bytes per ID depending on the load, regardless of the length of the ID.
+ * <p>
+ * Two IDs with the same fingerprint are taken as equal. With n IDs the chance of any collision is about
+ * n&sup2; / 2<sup>65</sup>, one in several hundred thousand for ten million IDs; a collision can only hide a
+ * difference, never report one that does not exist. Adding is synchronized, so several threads may fill the set.
+ */
+final class CustomerIdSet {
+
+    private static final double MAX_LOAD = 0.75;
+
+    private long[] table;
+    private int size;
+
+    CustomerIdSet(int expectedSize) {
+        int capacity = Integer.highestOneBit((int) Math.min(1 << 29, Math.max(16, (long) (expectedSize / MAX_LOAD)))) << 1;
+        this.table = new long[capacity];
+    }
+
+    /**
+     * Adds a customer ID.
+     *
+     * @return Whether the ID was not in the set yet.
+     */
+    synchronized boolean add(String customerId) {
+        if (size + 1 > table.length * MAX_LOAD) {
+            resize();
+        }
+        if (insert(table, fingerprint(customerId))) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean contains(String customerId) {
+        long fingerprint = fingerprint(customerId);
+        int mask = table.length - 1;
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long value = table[slot];
+            if (value == 0) {
+                return false;
+            }
+            if (value == fingerprint) {
+                return true;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] grown = new long[table.length << 1];
+        for (long value : table) {
+            if (value != 0) {
+                insert(grown, value);
+            }
+        }
+        table = grown;
+    }
+
+    private static boolean insert(long[] table, long fingerprint) {
+        int mask = table.length - 1;
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long value = table[slot];
+            if (value == 0) {
+                table[slot] = fingerprint;
+                return true;
+            }
+            if (value == fingerprint) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that the low bits used for the slot are
+     * spread; 0 marks an empty slot, so it is mapped to 1.
+     */
+    static long fingerprint(String customerId) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : customerId.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,250 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.model.CustomerCollection;
+import com.stripe.param.CustomerListParams;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import lombok.Value;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Finds the drift between the Stripe customers of the account and the active links in stripe_linked_user:
+ * <ul>
+ *     <li>links pointing at a customer that does not exist anymore, and</li>
+ *     <li>customers that no link points at.</li>
+ * </ul>
+ * It runs in three passes, holding only the customer IDs in memory, as fingerprints in a {@link CustomerIdSet}:
+ * <ol>
+ *     <li>stream the links and collect their customer IDs,</li>
+ *     <li>list the customers, split into ranges of creation time that are paged through in parallel, collecting their
+ *     IDs and reporting those not linked,</li>
+ *     <li>stream the links again and report those whose customer was not listed.</li>
+ * </ol>
+ * Every page is read through the gateway, so the listing is paced by its read limiter. Customers and links created
+ * within the grace period before the run are not reported, since they may belong to a sign-up that is in progress.
+ * <p>
+ * Differences are passed to a consumer as they are found, instead of being collected, so memory does not grow with
+ * the number of differences. With repair enabled, a link to a missing customer is soft-deleted once Stripe confirms
+ * that the customer is deleted. Customers without a link are only reported: a customer whose link was replaced
+ * through {@link CustomerService#linkStripeCustomer(Object, Customer)} is one of them, and deleting it would lose
+ * its history.
+ */
+public class CustomerReconciler<T> {
+
+    private static final String PREFIX = "stwrap.reconciliation.";
+    private static final long PAGE_SIZE = 100;
+
+    private final StripeLinkedUserRepository<T> userLinkRepository;
+    private final StripeGateway gateway;
+    private final int parallelism;
+    private final Instant since;
+    private final Duration grace;
+
+    /**
+     * Creates a reconciler that calls Stripe through {@link StripeGateway#getDefault()}, configured by the
+     * stwrap.reconciliation.* properties: parallelism (4), since-epoch-seconds (1262304000, the start of 2010), the
+     * creation time of the oldest customer to list, and grace-seconds (600).
+     */
+    public CustomerReconciler(StripeLinkedUserRepository<T> userLinkRepository) {
+        this(userLinkRepository, StripeGateway.getDefault(),
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "parallelism", "4")),
+                Instant.ofEpochSecond(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "since-epoch-seconds", "1262304000"))),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "grace-seconds", "600"))));
+    }
+
+    /**
+     * @param parallelism The number of customer ranges listed at once.
+     * @param since       The creation time of the oldest customer to list.
+     * @param grace       The age below which customers and links are not reported.
+     */
+    public CustomerReconciler(StripeLinkedUserRepository<T> userLinkRepository, StripeGateway gateway, int parallelism, Instant since, Duration grace) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.userLinkRepository = userLinkRepository;
+        this.gateway = gateway;
+        this.parallelism = parallelism;
+        this.since = since;
+        this.grace = grace;
+    }
+
+    /**
+     * Compares the customers with the links and reports every difference.
+     *
+     * @param differences Receives each difference as it is found, from one thread at a time.
+     * @param repair      Whether to soft-delete the links whose customer Stripe confirms as deleted.
+     * @return The counts of the run.
+     * @throws StripeException If the customers could not be listed.
+     */
+    public Report reconcile(Consumer<Difference<T>> differences, boolean repair) throws StripeException {
+        long start = System.nanoTime();
+        Instant startedAt = Instant.now();
+        long recentCustomers = startedAt.minus(grace).getEpochSecond();
+        LocalDateTime recentLinks = LocalDateTime.now().minus(grace);
+        Consumer<Difference<T>> sink = difference -> {
+            synchronized (differences) {
+                differences.accept(difference);
+            }
+        };
+
+        CustomerIdSet linkedCustomers = new CustomerIdSet(1 << 16);
+        int links = 0;
+        try (Stream<StripeLinkedUser<T>> stream = userLinkRepository.streamAll()) {
+            for (StripeLinkedUser<T> link : (Iterable<StripeLinkedUser<T>>) stream::iterator) {
+                if (link.getStripeCustomerId() != null) {
+                    linkedCustomers.add(link.getStripeCustomerId());
+                    links++;
+                }
+            }
+        }
+
+        CustomerIdSet customers = new CustomerIdSet(1 << 16);
+        AtomicInteger unlinked = new AtomicInteger();
+        listCustomers(startedAt, customer -> {
+            customers.add(customer.getId());
+            if (!linkedCustomers.contains(customer.getId()) && customer.getCreated() != null && customer.getCreated() <= recentCustomers) {
+                unlinked.incrementAndGet();
+                sink.accept(new Difference<>(DifferenceType.CUSTOMER_WITHOUT_LINK, customer.getId(), null, false));
+            }
+        });
+
+        int missing = 0;
+        int repaired = 0;
+        try (Stream<StripeLinkedUser<T>> stream = userLinkRepository.streamAll()) {
+            for (StripeLinkedUser<T> link : (Iterable<StripeLinkedUser<T>>) stream::iterator) {
+                String customerId = link.getStripeCustomerId();
+                if (customerId == null || customers.contains(customerId)
+                        || (link.getCreatedAt() != null && link.getCreatedAt().isAfter(recentLinks))) {
+                    continue;
+                }
+                missing++;
+                boolean deleted = repair && isDeleted(customerId) && userLinkRepository.delete(link) > 0;
+                if (deleted) {
+                    repaired++;
+                }
+                sink.accept(new Difference<>(DifferenceType.LINK_TO_MISSING_CUSTOMER, customerId, link, deleted));
+            }
+        }
+
+        return new Report(customers.size(), links, unlinked.get(), missing, repaired, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Lists every customer created since the configured time, splitting the time up to now into ranges that are
+     * paged through in parallel; the last range is open, so customers created during the run are listed too.
+     */
+    private void listCustomers(Instant until, Consumer<Customer> consumer) throws StripeException {
+        int ranges = parallelism * 4;
+        long from = since.getEpochSecond();
+        long width = Math.max(1, (until.getEpochSecond() + 1 - from + ranges - 1) / ranges);
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, AsyncExecutors.daemonThreadFactory("stwrap-reconciliation"));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < ranges; i++) {
+                CustomerListParams.Created.Builder created = CustomerListParams.Created.builder().setGte(from + i * width);
+                if (i < ranges - 1) {
+                    created.setLt(from + (i + 1) * width);
+                }
+                CustomerListParams.Created range = created.build();
+                futures.add(executor.submit(() -> {
+                    listRange(range, consumer);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StripeException) {
+                throw (StripeException) e.getCause();
+            }
+            throw new RuntimeException("Error listing Stripe customers", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while listing Stripe customers", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void listRange(CustomerListParams.Created range, Consumer<Customer> consumer) throws StripeException {
+        String startingAfter = null;
+        boolean hasMore = true;
+        while (hasMore) {
+            CustomerListParams.Builder builder = CustomerListParams.builder().setLimit(PAGE_SIZE).setCreated(range);
+            if (startingAfter != null) {
+                builder.setStartingAfter(startingAfter);
+            }
+            CustomerListParams params = builder.build();
+            CustomerCollection page = gateway.read(() -> Customer.list(params));
+            for (Customer customer : page.getData()) {
+                consumer.accept(customer);
+                startingAfter = customer.getId();
+            }
+            hasMore = Boolean.TRUE.equals(page.getHasMore()) && !page.getData().isEmpty();
+        }
+    }
+
+    private boolean isDeleted(String customerId) throws StripeException {
+        try {
+            return Boolean.TRUE.equals(gateway.read(() -> Customer.retrieve(customerId)).getDeleted());
+        } catch (InvalidRequestException e) {
+            if (Integer.valueOf(404).equals(e.getStatusCode())) {
+                return true;
+            }
+            throw e;
+        }
+    }
+
+    public enum DifferenceType {
+        /** An active link points at a customer that Stripe did not list. */
+        LINK_TO_MISSING_CUSTOMER,
+        /** Stripe listed a customer that no active link points at. */
+        CUSTOMER_WITHOUT_LINK
+    }
+
+    /**
+     * One difference between Stripe and stripe_linked_user.
+     */
+    @Value
+    public static class Difference<T> {
+        DifferenceType type;
+        String stripeCustomerId;
+        /** The link, for {@link DifferenceType#LINK_TO_MISSING_CUSTOMER}; null otherwise. */
+        StripeLinkedUser<T> link;
+        /** Whether the link was soft-deleted by the repair. */
+        boolean repaired;
+    }
+
+    /**
+     * The counts of a reconciliation run.
+     */
+    @Value
+    public static class Report {
+        int customers;
+        int links;
+        int customersWithoutLink;
+        int linksToMissingCustomers;
+        int repairedLinks;
+        Duration elapsed;
+    }
+}
@@ -1,5 +1,6 @@
 package digiot.stwrap.application;
 
+import com.stripe.exception.InvalidRequestException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.Customer;
 import com.stripe.model.PaymentMethod;
@@ -9,15 +10,35 @@ import com.stripe.param.PaymentMethodCreateParams;
 import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
 import digiot.stwrap.domain.model.StripeLinkedUser;
 import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
 import lombok.AllArgsConstructor;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 @AllArgsConstructor
 public class CustomerService<T> {
 
     final StripeLinkedUserRepository<T> userLinkRepository;
 
+    final StripeGateway gateway;
+
+    /**
+     * Lookups currently running per user ID, so concurrent callers for the same user share a single
+     * database lookup and at most one Customer.create.
+     */
+    private final ConcurrentMap<T, CompletableFuture<StripeLinkedUser<T>>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a service that calls Stripe through {@link StripeGateway#getDefault()}.
+     */
+    public CustomerService(StripeLinkedUserRepository<T> userLinkRepository) {
+        this(userLinkRepository, StripeGateway.getDefault());
+    }
+
     /**
      * Retrieves an existing StripeLinkedUser or creates a new one if it doesn't exist.
      *
@@ -31,6 +52,8 @@ public class CustomerService<T> {
 
     /**
      * Retrieves an existing StripeLinkedUser or creates a new one if it doesn't exist for the specified user.
+     * Concurrent calls for the same user ID are coalesced: only the first caller queries the repository and
+     * creates the Stripe customer, the others wait for and share its result.
      *
      * @param userId The unique identifier of the user within your system.
      * @param email  The email address associated with the user for the Stripe Customer object.
@@ -39,6 +62,26 @@ public class CustomerService<T> {
      */
     public StripeLinkedUser<T> getOrCreateStripeLinkedUser(T userId, String email) throws StripeException {
 
+        CompletableFuture<StripeLinkedUser<T>> call = new CompletableFuture<>();
+        CompletableFuture<StripeLinkedUser<T>> leader = inFlight.putIfAbsent(userId, call);
+        if (leader != null) {
+            return await(leader);
+        }
+
+        try {
+            StripeLinkedUser<T> link = findOrCreateStripeLinkedUser(userId, email);
+            call.complete(link);
+            return link;
+        } catch (Throwable e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(userId, call);
+        }
+    }
+
+    private StripeLinkedUser<T> findOrCreateStripeLinkedUser(T userId, String email) throws StripeException {
+
         Optional<StripeLinkedUser<T>> link = userLinkRepository.findPrimaryByUserId(userId);
         
         if (link.isPresent()) {
@@ -51,13 +94,42 @@ public class CustomerService<T> {
                 .setDescription("Customer for user ID: " + userId)
                 .build();
 
-        Customer newCustomer = Customer.create(params);
+        // Keyed by user, so a retry after a timeout or a restart returns the customer created by the first attempt.
+        Customer newCustomer = gateway.write("customer.create|" + userId, null, options -> Customer.create(params, options));
 
-        return linkStripeCustomer(userId, newCustomer);
+        StripeLinkedUserFactory<T> linkFactory = new StripeLinkedUserFactory<>();
+        StripeLinkedUser<T> created = linkFactory.create(userId, newCustomer.getId());
+        StripeLinkedUser<T> primary = userLinkRepository.insertIfAbsent(created);
+
+        if (!primary.getStripeCustomerId().equals(newCustomer.getId())) {
+            // Another process linked this user first; keep its link and discard the customer we just created. With
+            // the idempotency store both processes may have been handed the same customer, which must then be kept.
+            gateway.write(newCustomer::delete);
+        }
+        return primary;
+    }
+
+    private StripeLinkedUser<T> await(CompletableFuture<StripeLinkedUser<T>> future) throws StripeException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StripeException) {
+                throw (StripeException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
     }
 
     /**
-     * Links a Stripe customer to an existing user.
+     * Links a Stripe customer to an existing user as its primary customer.
+     * The user's previous primary link, if any, is soft-deleted in the same transaction.
      *
      * @param userId   The unique identifier of the user within your system.
      * @param customer The Stripe Customer object to be linked to the user.
@@ -68,13 +140,17 @@ public class CustomerService<T> {
 
         StripeLinkedUserFactory<T> linkFactory = new StripeLinkedUserFactory<>();
         StripeLinkedUser<T> link = linkFactory.create(userId, customer.getId());
-        userLinkRepository.insert(link);
+        userLinkRepository.inTransaction(() -> {
+            userLinkRepository.findPrimaryByUserId(userId).ifPresent(userLinkRepository::delete);
+            return userLinkRepository.insert(link);
+        });
 
         return link;
     }
 
     /**
      * Adds a new payment method to the Stripe customer associated with the given user ID.
+     * Makes two Stripe calls, create and attach, once the user is linked.
      *
      * @param userId The ID of the user within your system.
      * @param token  The token representing the payment method to be added.
@@ -83,45 +159,75 @@ public class CustomerService<T> {
      * @throws StripeException If there is an issue with the Stripe API call.
      */
     public PaymentMethod addPaymentMethodToCustomer(T userId, String token, PaymentMethodCreateParams.Type type) throws StripeException {
+        return addPaymentMethodToCustomer(new StripeOperationContext<>(this, userId), token, type);
+    }
 
-        StripeLinkedUser<T> linkedUser = getOrCreateStripeLinkedUser(userId);
-        Customer customer = Customer.retrieve(linkedUser.getStripeCustomerId());
+    PaymentMethod addPaymentMethodToCustomer(StripeOperationContext<T> context, String token, PaymentMethodCreateParams.Type type) throws StripeException {
 
+        // Resolve the customer first, so that no payment method is created for a user that cannot be linked.
+        context.getStripeCustomerId();
+        return attachNewPaymentMethod(context, createPaymentMethod(token, type));
+    }
+
+    /**
+     * Creates a payment method from a token, not attached to any customer yet.
+     */
+    PaymentMethod createPaymentMethod(String token, PaymentMethodCreateParams.Type type) throws StripeException {
         PaymentMethodCreateParams paymentMethodCreateParams = PaymentMethodCreateParams.builder()
                 .setType(type)
                 .setCard(PaymentMethodCreateParams.Token.builder().setToken(token).build())
                 .build();
-        PaymentMethod paymentMethod = PaymentMethod.create(paymentMethodCreateParams);
-        attachPaymentMethodToCustomer(customer.getId(), paymentMethod.getId());
+        return gateway.write(() -> PaymentMethod.create(paymentMethodCreateParams));
+    }
+
+    /**
+     * Attaches a payment method returned by {@link #createPaymentMethod(String, PaymentMethodCreateParams.Type)} to
+     * the customer of the context.
+     */
+    PaymentMethod attachNewPaymentMethod(StripeOperationContext<T> context, PaymentMethod paymentMethod) throws StripeException {
+
+        String customerId = context.getStripeCustomerId();
+
+        // A payment method created just now cannot be attached yet, so attach it without checking first.
+        PaymentMethod attached = gateway.write(() -> paymentMethod.attach(PaymentMethodAttachParams.builder().setCustomer(customerId).build()));
+        context.attached(attached.getId());
 
-        return PaymentMethod.retrieve(customer.getDefaultSource());
+        return attached;
     }
 
     /**
      * Attaches a specified Payment Method to a given customer in Stripe if it is not already attached.
+     * The attach is sent right away; the Payment Method is only retrieved when Stripe rejects the attach,
+     * to tell whether it was already attached to this customer.
      *
      * @param customerId      The unique identifier of the customer in Stripe.
      * @param paymentMethodId The unique identifier of the Payment Method to attach.
-     * @throws StripeException If the Payment Method is already attached to a customer or
+     * @throws StripeException If the Payment Method is already attached to another customer or
      *                         if there is an error during the API request to Stripe.
      */
     public void attachPaymentMethodToCustomer(String customerId, String paymentMethodId) throws StripeException {
 
-        // Retrieve the specified Payment Method from Stripe.
-        PaymentMethod paymentMethod = PaymentMethod.retrieve(paymentMethodId);
-
-        // Check if the Payment Method is already attached to the specified customer.
-        if (paymentMethod.getCustomer() != null && paymentMethod.getCustomer().equals(customerId)) {
-            // The Payment Method is already attached to this customer, so no action is needed.
-            return;
-        }
+        PaymentMethod paymentMethod = new PaymentMethod();
+        paymentMethod.setId(paymentMethodId);
 
-        // Prepare the parameters to attach the Payment Method to the customer.
         PaymentMethodAttachParams attachParams = PaymentMethodAttachParams.builder()
                 .setCustomer(customerId)
                 .build();
 
-        // Attach the Payment Method to the customer.
-        paymentMethod.attach(attachParams);
+        try {
+            gateway.write(() -> paymentMethod.attach(attachParams));
+        } catch (InvalidRequestException e) {
+            // Already attached to this customer, so no action is needed.
+            if (!customerId.equals(gateway.read(() -> PaymentMethod.retrieve(paymentMethodId)).getCustomer())) {
+                throw e;
+            }
+        }
+    }
+
+    void attachPaymentMethodToCustomer(StripeOperationContext<T> context, String paymentMethodId) throws StripeException {
+        if (!context.isAttached(paymentMethodId)) {
+            attachPaymentMethodToCustomer(context.getStripeCustomerId(), paymentMethodId);
+            context.attached(paymentMethodId);
+        }
     }
 }
\ No newline at end of file
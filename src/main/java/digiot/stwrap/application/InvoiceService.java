@@ -1,15 +1,105 @@
 package digiot.stwrap.application;
 
+import com.stripe.exception.InvalidRequestException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.Invoice;
 import com.stripe.param.InvoiceUpcomingParams;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import digiot.stwrap.infrastructure.cache.CacheStats;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
 import lombok.AllArgsConstructor;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retrieves upcoming invoice previews. Previews are cached per Stripe customer for a fixed time, since they only
+ * change when the subscriptions of the customer change. A service created from a {@link SubscriptionService} drops the
+ * preview of a customer as soon as that service creates or updates one of its subscriptions; changes made elsewhere,
+ * e.g. in the Stripe dashboard, show up when the entry expires. A service created from a {@link CustomerService} alone
+ * does not hear of any change and so does not cache.
+ */
 @AllArgsConstructor
 public class InvoiceService<T> {
 
+    private static final String PREFIX = "stwrap.cache.upcoming-invoice.";
+
     final CustomerService<T> customerService;
 
+    final StripeGateway gateway;
+
+    private final BoundedCache<String, Invoice> nextInvoices;
+
+    /**
+     * Runs the retrievals of {@link #getNextInvoices(Collection)}.
+     */
+    private final Executor executor;
+
+    /**
+     * The number of previews {@link #getNextInvoices(Collection)} retrieves at once.
+     */
+    private final int parallelism;
+
+    /**
+     * Incremented on every invalidation, so a preview retrieved while the subscription changed is not cached.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a service that calls Stripe through the gateway of the subscription service and caches previews until it
+     * reports a change. The cache is configured by the stwrap.cache.upcoming-invoice.* properties: max-size (10000) and
+     * ttl-seconds (300), where 0 disables the cache. Batches retrieve stwrap.invoice.parallelism (8) previews at once.
+     */
+    public InvoiceService(SubscriptionService<T> subscriptionService) {
+        this(subscriptionService.customerService, subscriptionService.gateway,
+                new BoundedCache<>(Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "max-size", "10000")),
+                        Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "ttl-seconds", "300")))),
+                configuredParallelism());
+        subscriptionService.addChangeListener(this::invalidateNextInvoice);
+    }
+
+    /**
+     * Creates a service that calls Stripe through the gateway of the customer service, without a cache.
+     */
+    public InvoiceService(CustomerService<T> customerService) {
+        this(customerService, customerService.gateway);
+    }
+
+    /**
+     * Creates a service without a cache, since no subscription change would invalidate it. Batches retrieve
+     * stwrap.invoice.parallelism (8) previews at once.
+     */
+    public InvoiceService(CustomerService<T> customerService, StripeGateway gateway) {
+        this(customerService, gateway, new BoundedCache<>(1, Duration.ZERO), configuredParallelism());
+    }
+
+    /**
+     * Creates a service with the given cache, which the caller keeps current, e.g. by registering
+     * {@link #invalidateNextInvoice(String)} with
+     * {@link SubscriptionService#addChangeListener(SubscriptionChangeListener)}.
+     *
+     * @param parallelism The number of previews a batch retrieves at once, on a pool of as many daemon threads.
+     */
+    public InvoiceService(CustomerService<T> customerService, StripeGateway gateway, BoundedCache<String, Invoice> nextInvoices, int parallelism) {
+        this(customerService, gateway, nextInvoices,
+                AsyncExecutors.newBoundedExecutor("stwrap-upcoming-invoice", parallelism, Duration.ofSeconds(60)), parallelism);
+    }
+
     /**
      * Retrieves the next upcoming invoice for a given customer.
      *
@@ -22,11 +112,136 @@ public class InvoiceService<T> {
         // Retrieve the Stripe customer ID for the given user ID.
         String customerId = customerService.getOrCreateStripeLinkedUser(userId).getStripeCustomerId();
 
+        Invoice cached = nextInvoices.get(customerId);
+        if (cached != null) {
+            return cached;
+        }
+        return retrieveNextInvoice(customerId);
+    }
+
+    /**
+     * Retrieves the next upcoming invoices of several users. Cached previews are returned as they are, the others are
+     * retrieved in parallel.
+     *
+     * @param userIds The user IDs for whom the invoices are to be retrieved.
+     * @return The upcoming invoices by user ID; users without an upcoming invoice are left out.
+     * @throws StripeException If an error occurs during communication with the Stripe API.
+     */
+    public Map<T, Invoice> getNextInvoices(Collection<T> userIds) throws StripeException {
+
+        Map<T, StripeLinkedUser<T>> links = customerService.userLinkRepository.findPrimaryByUserIds(userIds);
+        Map<T, String> customerIds = new LinkedHashMap<>();
+        for (T userId : userIds) {
+            StripeLinkedUser<T> link = links.get(userId);
+            customerIds.put(userId, link != null ? link.getStripeCustomerId() : customerService.getOrCreateStripeLinkedUser(userId).getStripeCustomerId());
+        }
+
+        Map<String, Invoice> invoices = new HashMap<>();
+        Set<String> misses = new LinkedHashSet<>();
+        for (String customerId : new LinkedHashSet<>(customerIds.values())) {
+            Invoice cached = nextInvoices.get(customerId);
+            if (cached != null) {
+                invoices.put(customerId, cached);
+            } else {
+                misses.add(customerId);
+            }
+        }
+        invoices.putAll(retrieveNextInvoices(misses));
+
+        Map<T, Invoice> result = new LinkedHashMap<>();
+        customerIds.forEach((userId, customerId) -> {
+            Invoice invoice = invoices.get(customerId);
+            if (invoice != null) {
+                result.put(userId, invoice);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Drops the cached upcoming invoice of a customer. Usable as a {@link SubscriptionChangeListener}.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     */
+    public void invalidateNextInvoice(String stripeCustomerId) {
+        invalidations.incrementAndGet();
+        nextInvoices.invalidate(stripeCustomerId);
+    }
+
+    /**
+     * Returns the statistics of the upcoming invoice cache.
+     */
+    public CacheStats nextInvoiceCacheStats() {
+        return nextInvoices.stats();
+    }
+
+    private static int configuredParallelism() {
+        return Integer.parseInt(PropertiesLoader.getProperty("stwrap.invoice.parallelism", "8"));
+    }
+
+    private Invoice retrieveNextInvoice(String customerId) throws StripeException {
         InvoiceUpcomingParams invoiceParams = InvoiceUpcomingParams.builder()
                 .setCustomer(customerId)
                 .build();
 
-        // Return the upcoming invoice if it exists.
-        return Invoice.upcoming(invoiceParams);
+        long sequence = invalidations.get();
+        Invoice invoice = gateway.read(() -> Invoice.upcoming(invoiceParams));
+        if (invoice != null) {
+            nextInvoices.putIf(customerId, invoice, () -> invalidations.get() == sequence);
+        }
+        return invoice;
+    }
+
+    /**
+     * Retrieves the previews with up to parallelism workers on the executor, each taking the next customer until none
+     * is left.
+     */
+    private Map<String, Invoice> retrieveNextInvoices(Set<String> customerIds) throws StripeException {
+        Map<String, Invoice> invoices = new ConcurrentHashMap<>();
+        if (customerIds.isEmpty()) {
+            return invoices;
+        }
+
+        Queue<String> remaining = new ConcurrentLinkedQueue<>(customerIds);
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(parallelism, customerIds.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = CompletableFuture.runAsync(() -> {
+                for (String customerId; (customerId = remaining.poll()) != null; ) {
+                    try {
+                        Invoice invoice = retrieveNextInvoiceIfAny(customerId);
+                        if (invoice != null) {
+                            invoices.put(customerId, invoice);
+                        }
+                    } catch (StripeException e) {
+                        // Stop the other workers too; the batch fails as a whole.
+                        remaining.clear();
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor);
+        }
+        try {
+            CompletableFuture.allOf(workers).join();
+            return invoices;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof StripeException) {
+                throw (StripeException) e.getCause();
+            }
+            throw new RuntimeException("Error retrieving upcoming invoices", e.getCause());
+        }
+    }
+
+    /**
+     * Stripe answers 404 for a customer without an upcoming invoice, which a batch reports by leaving the user out.
+     */
+    private Invoice retrieveNextInvoiceIfAny(String customerId) throws StripeException {
+        try {
+            return retrieveNextInvoice(customerId);
+        } catch (InvalidRequestException e) {
+            if (Integer.valueOf(404).equals(e.getStatusCode())) {
+                return null;
+            }
+            throw e;
+        }
     }
 }
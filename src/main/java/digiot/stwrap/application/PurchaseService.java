@@ -7,6 +7,7 @@ import digiot.stwrap.domain.model.StripeLinkedUser;
 import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
 import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
 import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
 import lombok.AllArgsConstructor;
 
 import java.util.HashMap;
@@ -17,8 +18,17 @@ public class PurchaseService {
 
     final StripeLinkedUserRepository<?> stripeRepository;
 
+    final StripeGateway gateway;
+
     public PurchaseService() {
-        this(new DefaultStripeLinkedUserRepository<String>(DataSourceProvider.getDataSource()));
+        this(new DefaultStripeLinkedUserRepository<String>(DataSourceProvider.getReadWriteDataSource()));
+    }
+
+    /**
+     * Creates a service that calls Stripe through {@link StripeGateway#getDefault()}.
+     */
+    public PurchaseService(StripeLinkedUserRepository<?> stripeRepository) {
+        this(stripeRepository, StripeGateway.getDefault());
     }
 
     /**
@@ -53,7 +63,7 @@ public class PurchaseService {
         if (creditCardInfo != null) {
             Map<String, Object> tokenParams = new HashMap<>();
             tokenParams.put("card", creditCardInfo);
-            token = Token.create(tokenParams);
+            token = gateway.write(() -> Token.create(tokenParams));
         }
         return charge(entity, amount, currency, token);
     }
@@ -69,6 +79,23 @@ public class PurchaseService {
      * @throws StripeException if an error occurs during the charge.
      */
     public Charge charge(StripeLinkedUser<?> entity, int amount, String currency, Token creditCardInfo) throws StripeException {
+        return charge(entity, amount, currency, creditCardInfo, null);
+    }
+
+    /**
+     * Creates a charge on a customer's card, sent with the given idempotency key so that a retry of the same
+     * payment, for example after a timeout, cannot charge the customer twice.
+     *
+     * @param entity         the User Stripe linked entity.
+     * @param amount         the amount to be charged.
+     * @param currency       the currency in which the charge is made.
+     * @param creditCardInfo the credit card information as a Token object, or null for the default card.
+     * @param idempotencyKey the key identifying this payment, such as an order ID, or null to use a new key that
+     *                       only covers the retries within this call.
+     * @return Charge object representing the transaction.
+     * @throws StripeException if an error occurs during the charge.
+     */
+    public Charge charge(StripeLinkedUser<?> entity, int amount, String currency, Token creditCardInfo, String idempotencyKey) throws StripeException {
         Map<String, Object> chargeParams = new HashMap<>();
         chargeParams.put("amount", amount);
         chargeParams.put("currency", currency);
@@ -78,7 +105,8 @@ public class PurchaseService {
             chargeParams.put("source", creditCardInfo.getId());
         }
 
-        return Charge.create(chargeParams);
+        // Two identical charges can both be intended, so only the caller can tell a retry from a new payment.
+        return gateway.write(null, idempotencyKey, options -> Charge.create(chargeParams, options));
     }
 }
 
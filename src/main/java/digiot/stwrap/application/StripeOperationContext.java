@@ -0,0 +1,53 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * State shared by the Stripe calls of one user-facing operation, so that each step reuses what an earlier step
+ * already resolved instead of asking the database or Stripe again.
+ */
+class StripeOperationContext<T> {
+
+    private final CustomerService<T> customerService;
+    private final T userId;
+    private final Set<String> attachedPaymentMethodIds = new HashSet<>();
+    private StripeLinkedUser<T> linkedUser;
+
+    StripeOperationContext(CustomerService<T> customerService, T userId) {
+        this.customerService = customerService;
+        this.userId = userId;
+    }
+
+    T getUserId() {
+        return userId;
+    }
+
+    /**
+     * Returns the user's primary link, resolving or creating it on first use.
+     */
+    StripeLinkedUser<T> getLinkedUser() throws StripeException {
+        if (linkedUser == null) {
+            linkedUser = customerService.getOrCreateStripeLinkedUser(userId);
+        }
+        return linkedUser;
+    }
+
+    String getStripeCustomerId() throws StripeException {
+        return getLinkedUser().getStripeCustomerId();
+    }
+
+    /**
+     * Records that the payment method is attached to the user's customer.
+     */
+    void attached(String paymentMethodId) {
+        attachedPaymentMethodIds.add(paymentMethodId);
+    }
+
+    boolean isAttached(String paymentMethodId) {
+        return attachedPaymentMethodIds.contains(paymentMethodId);
+    }
+}
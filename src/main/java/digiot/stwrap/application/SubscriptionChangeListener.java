@@ -0,0 +1,17 @@
+package digiot.stwrap.application;
+
+/**
+ * Notified by {@link SubscriptionService} after it has changed a subscription in Stripe, so that state derived from
+ * the subscriptions of the customer, such as a cached upcoming invoice, can be dropped.
+ */
+@FunctionalInterface
+public interface SubscriptionChangeListener {
+
+    /**
+     * Called after a subscription of the customer was created or updated. Runs on the thread that made the change,
+     * so it should return quickly.
+     *
+     * @param stripeCustomerId The Stripe customer ID owning the subscription.
+     */
+    void subscriptionChanged(String stripeCustomerId);
+}
@@ -0,0 +1,159 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses bursts of quantity changes to the same subscription into a single Subscription.update carrying the last
+ * quantity, since Stripe rejects concurrent updates of one object and every change would otherwise be a call.
+ * <p>
+ * The first change to a subscription opens a window; changes arriving within it only replace the quantity. The
+ * window is not extended by later changes, so a steady stream of changes is still applied at least once per window.
+ * When it closes, the update is sent on the executor, unless the previous update of the subscription is still in
+ * flight, in which case it is sent as soon as that one completes: there is at most one update per subscription at a
+ * time. Every caller gets a future completed with the updated subscription, or exceptionally with the StripeException
+ * as the cause, once the update carrying its change is done.
+ * <p>
+ * The quantity is set on the only item of the subscription. Its ID is retrieved once and then kept in a cache.
+ */
+public class SubscriptionQuantityCoalescer<T> {
+
+    private static final String PREFIX = "stwrap.subscription.quantity.";
+
+    private final SubscriptionService<T> subscriptionService;
+    private final long windowNanos;
+    private final Executor executor;
+    private final BoundedCache<String, String> itemIds;
+
+    /** Changes waiting for their window to close or for the update in flight, by subscription ID; guarded by this. */
+    private final Map<String, Batch> batches = new HashMap<>();
+    /** The subscriptions with an update in flight; guarded by this. */
+    private final Set<String> inFlight = new HashSet<>();
+
+    /**
+     * Creates a coalescer sending updates on {@link AsyncExecutors#getDefault()}, configured by the
+     * stwrap.subscription.quantity.* properties: window-ms (2000), item-cache.max-size (10000) and
+     * item-cache.ttl-seconds (86400).
+     */
+    public SubscriptionQuantityCoalescer(SubscriptionService<T> subscriptionService) {
+        this(subscriptionService,
+                Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "window-ms", "2000"))),
+                AsyncExecutors.getDefault(),
+                new BoundedCache<>(Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "item-cache.max-size", "10000")),
+                        Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "item-cache.ttl-seconds", "86400")))));
+    }
+
+    /**
+     * @param window   How long changes to a subscription are collected after the first one.
+     * @param executor Runs the updates.
+     * @param itemIds  The cache of the item ID by subscription ID.
+     */
+    public SubscriptionQuantityCoalescer(SubscriptionService<T> subscriptionService, Duration window, Executor executor, BoundedCache<String, String> itemIds) {
+        this.subscriptionService = subscriptionService;
+        this.windowNanos = window.toNanos();
+        this.executor = executor;
+        this.itemIds = itemIds;
+    }
+
+    /**
+     * Changes the quantity of a subscription, together with the other changes to it within the window.
+     *
+     * @param subscriptionId The ID of the subscription, which must have a single item.
+     * @param quantity       The new quantity.
+     * @return A future completed with the subscription once an update carrying this change, or a later one, is applied.
+     */
+    public synchronized CompletableFuture<Subscription> updateQuantity(String subscriptionId, long quantity) {
+        Batch batch = batches.get(subscriptionId);
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(subscriptionId, batch);
+            Batch opened = batch;
+            CompletableFuture.delayedExecutor(windowNanos, TimeUnit.NANOSECONDS, executor).execute(() -> windowClosed(subscriptionId, opened));
+        }
+        batch.quantity = quantity;
+        CompletableFuture<Subscription> future = new CompletableFuture<>();
+        batch.waiters.add(future);
+        return future;
+    }
+
+    private synchronized void windowClosed(String subscriptionId, Batch batch) {
+        batch.due = true;
+        if (!inFlight.contains(subscriptionId)) {
+            start(subscriptionId, batch);
+        }
+    }
+
+    /**
+     * Takes the batch out of the map, so later changes open a new window, and sends it. Called holding the lock.
+     */
+    private void start(String subscriptionId, Batch batch) {
+        batches.remove(subscriptionId);
+        inFlight.add(subscriptionId);
+        executor.execute(() -> send(subscriptionId, batch));
+    }
+
+    private void send(String subscriptionId, Batch batch) {
+        try {
+            Subscription subscription = apply(subscriptionId, batch.quantity);
+            batch.waiters.forEach(waiter -> waiter.complete(subscription));
+        } catch (Throwable e) {
+            batch.waiters.forEach(waiter -> waiter.completeExceptionally(e));
+        } finally {
+            synchronized (this) {
+                inFlight.remove(subscriptionId);
+                Batch next = batches.get(subscriptionId);
+                if (next != null && next.due) {
+                    start(subscriptionId, next);
+                }
+            }
+        }
+    }
+
+    private Subscription apply(String subscriptionId, long quantity) throws StripeException {
+        String itemId = itemId(subscriptionId);
+        try {
+            return subscriptionService.updateItemQuantity(subscriptionId, itemId, quantity);
+        } catch (InvalidRequestException e) {
+            // The item may have been replaced since it was cached; look it up again next time.
+            itemIds.invalidate(subscriptionId);
+            throw e;
+        }
+    }
+
+    private String itemId(String subscriptionId) throws StripeException {
+        String itemId = itemIds.get(subscriptionId);
+        if (itemId != null) {
+            return itemId;
+        }
+        List<SubscriptionItem> items = subscriptionService.gateway.read(() -> Subscription.retrieve(subscriptionId)).getItems().getData();
+        if (items.size() != 1) {
+            throw new IllegalStateException("Subscription " + subscriptionId + " has " + items.size() + " items; expected exactly one");
+        }
+        itemId = items.get(0).getId();
+        itemIds.put(subscriptionId, itemId);
+        return itemId;
+    }
+
+    private static final class Batch {
+
+        final List<CompletableFuture<Subscription>> waiters = new ArrayList<>();
+        long quantity;
+        boolean due;
+    }
+}
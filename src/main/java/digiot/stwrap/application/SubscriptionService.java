@@ -4,20 +4,90 @@ import com.stripe.exception.StripeException;
 import com.stripe.model.Subscription;
 import com.stripe.param.PaymentMethodCreateParams;
 import com.stripe.param.SubscriptionUpdateParams;
-import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.model.LocalSubscription;
+import digiot.stwrap.domain.repository.StripeReadModelRepository;
 import digiot.stwrap.domain.subscription.SubscriptionItemFactory;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
 import lombok.AllArgsConstructor;
 
 import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 @AllArgsConstructor
 public class SubscriptionService<T> {
 
+    private static final List<String> ACTIVE_STATUSES = Arrays.asList("active", "trialing");
+
     final CustomerService<T> customerService;
 
+    final StripeGateway gateway;
+
+    /**
+     * The local copy of subscriptions kept by {@link WebhookIngestor}, or null if webhooks are not ingested.
+     */
+    final StripeReadModelRepository readModel;
+
+    private final List<SubscriptionChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Created on the first quantity change, so that services not using it do not read its configuration.
+     */
+    private final AtomicReference<SubscriptionQuantityCoalescer<T>> quantityCoalescer = new AtomicReference<>();
+
+    /**
+     * Creates a service that calls Stripe through the gateway of the customer service.
+     */
+    public SubscriptionService(CustomerService<T> customerService) {
+        this(customerService, customerService.gateway, null);
+    }
+
+    public SubscriptionService(CustomerService<T> customerService, StripeGateway gateway) {
+        this(customerService, gateway, null);
+    }
+
+    /**
+     * Creates a service that calls Stripe through the gateway of the customer service and reads subscriptions from
+     * the read model.
+     */
+    public SubscriptionService(CustomerService<T> customerService, StripeReadModelRepository readModel) {
+        this(customerService, customerService.gateway, readModel);
+    }
+
+    /**
+     * Registers a listener notified after every subscription this service creates or updates, e.g.
+     * {@code subscriptionService.addChangeListener(invoiceService::invalidateNextInvoice)}.
+     *
+     * @param listener The listener to add.
+     */
+    public void addChangeListener(SubscriptionChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Returns the active and trialing subscriptions of a user from the local read model, without calling Stripe.
+     * The read model is as recent as the last webhook event applied by {@link WebhookIngestor}.
+     *
+     * @param userId The ID of the user.
+     * @return The subscriptions with their items, newest period first; empty if the user is not linked to Stripe.
+     * @throws IllegalStateException If the service was created without a read model.
+     */
+    public List<LocalSubscription> getActiveSubscriptions(T userId) {
+        if (readModel == null) {
+            throw new IllegalStateException("No StripeReadModelRepository configured for SubscriptionService");
+        }
+        return customerService.userLinkRepository.findPrimaryByUserId(userId)
+                .map(link -> readModel.findSubscriptionsByCustomerId(link.getStripeCustomerId(), ACTIVE_STATUSES))
+                .orElse(Collections.emptyList());
+    }
+
     /**
      * Creates a new subscription for a user with the specified plan and a new payment method token.
      *
@@ -29,8 +99,9 @@ public class SubscriptionService<T> {
      * @throws StripeException If there is an issue with the Stripe API call.
      */
     public Subscription createSubscriptionWithToken(T userId, String planId, String token, int quantity) throws StripeException {
-        String paymentMethodId = customerService.addPaymentMethodToCustomer(userId, token, PaymentMethodCreateParams.Type.CARD).getId();
-        return createSubscriptionWithPaymentMethodId(userId, planId, paymentMethodId, quantity);
+        StripeOperationContext<T> context = new StripeOperationContext<>(customerService, userId);
+        String paymentMethodId = customerService.addPaymentMethodToCustomer(context, token, PaymentMethodCreateParams.Type.CARD).getId();
+        return createSubscription(context, planId, paymentMethodId, quantity);
     }
 
     /**
@@ -44,17 +115,44 @@ public class SubscriptionService<T> {
      * @throws StripeException If there is an issue communicating with the Stripe API.
      */
     public Subscription createSubscriptionWithPaymentMethodId(T userId, String planId, String paymentMethodId, int quantity) throws StripeException {
+        return createSubscriptionWithPaymentMethodId(userId, planId, paymentMethodId, quantity, null);
+    }
 
-        StripeLinkedUser<T> linkedUser = customerService.getOrCreateStripeLinkedUser(userId);
+    /**
+     * Creates a new subscription for a user in Stripe using an existing payment method ID, sent with the given
+     * idempotency key so that a retry of the same request cannot create a second subscription.
+     *
+     * @param userId          The user ID from the client's system.
+     * @param planId          The ID of the subscription plan in Stripe.
+     * @param paymentMethodId The ID of the payment method to be used for the subscription.
+     * @param quantity        The quantity of the subscription, typically 1.
+     * @param idempotencyKey  The key identifying this request, or null to use a new key that only covers the retries
+     *                        within this call.
+     * @return Subscription    The Stripe Subscription object that was created.
+     * @throws StripeException If there is an issue communicating with the Stripe API.
+     */
+    public Subscription createSubscriptionWithPaymentMethodId(T userId, String planId, String paymentMethodId, int quantity, String idempotencyKey) throws StripeException {
+        return createSubscription(new StripeOperationContext<>(customerService, userId), planId, paymentMethodId, quantity, idempotencyKey);
+    }
+
+    Subscription createSubscription(StripeOperationContext<T> context, String planId, String paymentMethodId, int quantity) throws StripeException {
+        return createSubscription(context, planId, paymentMethodId, quantity, null);
+    }
+
+    private Subscription createSubscription(StripeOperationContext<T> context, String planId, String paymentMethodId, int quantity, String idempotencyKey) throws StripeException {
 
-        customerService.attachPaymentMethodToCustomer(linkedUser.getStripeCustomerId(), paymentMethodId);
+        customerService.attachPaymentMethodToCustomer(context, paymentMethodId);
 
         Map<String, Object> subscriptionParams = new HashMap<>();
-        subscriptionParams.put("customer", linkedUser.getStripeCustomerId());
+        subscriptionParams.put("customer", context.getStripeCustomerId());
         subscriptionParams.put("items", SubscriptionItemFactory.createSubscriptionItem(planId, quantity));
         subscriptionParams.put("default_payment_method", paymentMethodId);
 
-        return Subscription.create(subscriptionParams);
+        // A customer may subscribe to the same plan twice on purpose, so only the caller can tell a retry from a new
+        // one.
+        Subscription subscription = gateway.write(null, idempotencyKey, options -> Subscription.create(subscriptionParams, options));
+        fireChanged(context.getStripeCustomerId());
+        return subscription;
     }
 
     /**
@@ -66,9 +164,41 @@ public class SubscriptionService<T> {
      * @throws StripeException If there is an issue communicating with the Stripe API.
      */
     public Subscription applyCouponToSubscription(String subscriptionId, String couponCode) throws StripeException {
-        Subscription subscription = Subscription.retrieve(subscriptionId);
+        Subscription subscription = subscriptionReference(subscriptionId);
         SubscriptionUpdateParams params = SubscriptionUpdateParams.builder().setCoupon(couponCode).build();
-        return subscription.update(params);
+        return changed(gateway.write(() -> subscription.update(params)));
+    }
+
+    /**
+     * Changes the quantity of a subscription with a single item, such as the number of seats. Changes to the same
+     * subscription within a short window are collapsed into one update carrying the last quantity; see
+     * {@link SubscriptionQuantityCoalescer}.
+     *
+     * @param subscriptionId The ID of the subscription in Stripe.
+     * @param quantity       The new quantity.
+     * @return A future completed with the updated subscription once the change is applied, or exceptionally with the
+     * StripeException as the cause.
+     */
+    public CompletableFuture<Subscription> updateQuantity(String subscriptionId, long quantity) {
+        SubscriptionQuantityCoalescer<T> coalescer = quantityCoalescer.get();
+        if (coalescer == null) {
+            quantityCoalescer.compareAndSet(null, new SubscriptionQuantityCoalescer<>(this));
+            coalescer = quantityCoalescer.get();
+        }
+        return coalescer.updateQuantity(subscriptionId, quantity);
+    }
+
+    /**
+     * Sets the quantity of one item of a subscription right away.
+     */
+    Subscription updateItemQuantity(String subscriptionId, String subscriptionItemId, long quantity) throws StripeException {
+        SubscriptionUpdateParams params = SubscriptionUpdateParams.builder()
+                .addItem(SubscriptionUpdateParams.Item.builder().setId(subscriptionItemId).setQuantity(quantity).build())
+                .build();
+        // Keyed per call, so the update is retried like a read. A stored key would let a later change back to the same
+        // quantity replay this one, e.g. 5, 3, 5 ending at 3.
+        Subscription subscription = subscriptionReference(subscriptionId);
+        return changed(gateway.write(null, null, options -> subscription.update(params, options)));
     }
 
     /**
@@ -83,11 +213,11 @@ public class SubscriptionService<T> {
 
         Instant instantCancelAt = cancelAt.toInstant();
 
-        Subscription subscription = Subscription.retrieve(subscriptionId);
+        Subscription subscription = subscriptionReference(subscriptionId);
         SubscriptionUpdateParams params = SubscriptionUpdateParams.builder()
                 .setCancelAt(instantCancelAt.getEpochSecond()).build();
 
-        return subscription.update(params);
+        return changed(gateway.write(() -> subscription.update(params)));
     }
 
     /**
@@ -98,8 +228,31 @@ public class SubscriptionService<T> {
      * @throws StripeException If there is an issue communicating with the Stripe API.
      */
     public Subscription cancelSubscriptionAtPeriodEnd(String subscriptionId) throws StripeException {
-        Subscription subscription = Subscription.retrieve(subscriptionId);
+        Subscription subscription = subscriptionReference(subscriptionId);
         SubscriptionUpdateParams params = SubscriptionUpdateParams.builder().setCancelAtPeriodEnd(true).build();
-        return subscription.update(params);
+        return changed(gateway.write(() -> subscription.update(params)));
+    }
+
+    private Subscription changed(Subscription subscription) {
+        fireChanged(subscription.getCustomer());
+        return subscription;
+    }
+
+    private void fireChanged(String stripeCustomerId) {
+        if (stripeCustomerId == null) {
+            return;
+        }
+        for (SubscriptionChangeListener listener : changeListeners) {
+            listener.subscriptionChanged(stripeCustomerId);
+        }
+    }
+
+    /**
+     * Returns a Subscription carrying only its ID, enough to update it by ID without retrieving it first.
+     */
+    private static Subscription subscriptionReference(String subscriptionId) {
+        Subscription subscription = new Subscription();
+        subscription.setId(subscriptionId);
+        return subscription;
     }
 }
\ No newline at end of file
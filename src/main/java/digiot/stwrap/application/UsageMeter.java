@@ -0,0 +1,303 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.UsageRecord;
+import com.stripe.param.UsageRecordCreateOnSubscriptionItemParams;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import digiot.stwrap.infrastructure.jdbc.PendingUsageStore;
+import digiot.stwrap.infrastructure.jdbc.PendingUsageStore.PendingUsage;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Meters usage of metered subscription items and reports it to Stripe as aggregated usage records, instead of one
+ * call per event.
+ * <p>
+ * {@link #record(String, long)} adds to a {@link LongAdder} per subscription item, which spreads concurrent updates
+ * over striped cells, so recording takes no lock and scales with the number of threads. A single background thread
+ * then
+ * <ul>
+ *     <li>every persist interval, moves the counted usage into stripe_usage_pending through a
+ *     {@link PendingUsageStore}, removing the counters of items that had no usage since the previous persist, and</li>
+ *     <li>every flush interval, or as soon as usage of max-pending-items subscription items is counted, sends one
+ *     usage record with action increment per subscription item and deletes it once Stripe has recorded it.</li>
+ * </ul>
+ * Each usage record is sent with its own idempotency key, kept in the table with it, so records left by a failed
+ * attempt or a crash are sent again on the next flush, also after a restart, without being counted twice. Usage
+ * counted since the last persist is lost if the process dies; {@link #close()} persists and flushes it.
+ */
+public class UsageMeter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(UsageMeter.class);
+
+    private static final String PREFIX = "stwrap.usage.";
+
+    private final StripeGateway gateway;
+    private final PendingUsageStore store;
+    private final int maxPendingItems;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingItems = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Calls of {@link #record(String, long)} started and finished, so that {@link #close()} can wait for the calls that
+     * saw the meter open before it persists. Striped like the counters, so they add no shared write to recording.
+     */
+    private final LongAdder recordsStarted = new LongAdder();
+    private final LongAdder recordsFinished = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Creates a meter storing pending usage in {@link DataSourceProvider#getDataSource()} and calling Stripe through
+     * {@link StripeGateway#getDefault()}, configured by the stwrap.usage.* properties: persist-interval-ms (1000),
+     * flush-interval-seconds (60) and max-pending-items (1000).
+     */
+    public UsageMeter() {
+        this(StripeGateway.getDefault(), new PendingUsageStore(DataSourceProvider.getDataSource()),
+                Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "persist-interval-ms", "1000"))),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "flush-interval-seconds", "60"))),
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "max-pending-items", "1000")));
+    }
+
+    /**
+     * Creates a meter and starts its background thread. The first flush runs at once, sending the usage records
+     * a previous run left in the store.
+     *
+     * @param persistInterval How often counted usage is moved into the store.
+     * @param flushInterval   How often usage is reported to Stripe.
+     * @param maxPendingItems The number of subscription items with counted usage that triggers a flush before the
+     *                        interval has passed.
+     */
+    public UsageMeter(StripeGateway gateway, PendingUsageStore store, Duration persistInterval, Duration flushInterval, int maxPendingItems) {
+        if (maxPendingItems < 1) {
+            throw new IllegalArgumentException("maxPendingItems must be at least 1: " + maxPendingItems);
+        }
+        this.gateway = gateway;
+        this.store = store;
+        this.maxPendingItems = maxPendingItems;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(AsyncExecutors.daemonThreadFactory("stwrap-usage"));
+        scheduler.scheduleWithFixedDelay(this::persistQuietly, persistInterval.toNanos(), persistInterval.toNanos(), TimeUnit.NANOSECONDS);
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, 0, flushInterval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts one unit of usage of a subscription item.
+     *
+     * @param subscriptionItemId The ID of the metered subscription item.
+     */
+    public void record(String subscriptionItemId) {
+        record(subscriptionItemId, 1);
+    }
+
+    /**
+     * Counts usage of a subscription item. Safe to call from any number of threads.
+     *
+     * @param subscriptionItemId The ID of the metered subscription item.
+     * @param quantity           The usage to add, at least 0.
+     * @throws IllegalStateException If the meter is closed.
+     */
+    public void record(String subscriptionItemId, long quantity) {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("quantity must not be negative: " + quantity);
+        }
+        boolean thresholdReached;
+        recordsStarted.increment();
+        try {
+            if (closed) {
+                throw new IllegalStateException("UsageMeter is closed");
+            }
+            thresholdReached = add(subscriptionItemId, quantity);
+        } finally {
+            recordsFinished.increment();
+        }
+        if (thresholdReached && flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Adds usage to the counter of a subscription item. When {@link #persist()} retired the counter meanwhile, the
+     * usage may have missed its last drain, so whatever is left in it is taken out again and added to a new counter.
+     * Each cell of a counter is taken by exactly one sumThenReset, so the usage is counted once either way.
+     *
+     * @return Whether this call made the number of pending items reach max-pending-items.
+     */
+    private boolean add(String itemId, long quantity) {
+        boolean thresholdReached = false;
+        while (true) {
+            Counter counter = counters.get(itemId);
+            if (counter == null) {
+                counter = counters.computeIfAbsent(itemId, id -> new Counter());
+            }
+            counter.add(quantity);
+            if (!counter.pending) {
+                counter.pending = true;
+                thresholdReached |= pendingItems.incrementAndGet() >= maxPendingItems;
+            }
+            if (!counter.retired) {
+                return thresholdReached;
+            }
+            quantity = counter.sumThenReset();
+            if (quantity == 0) {
+                return thresholdReached;
+            }
+        }
+    }
+
+    /**
+     * Moves the counted usage into the store and reports every pending usage record to Stripe, waiting until done.
+     *
+     * @throws StripeException If Stripe could not be reached; the usage records not sent stay in the store.
+     */
+    public void flush() throws StripeException {
+        try {
+            scheduler.submit(() -> {
+                persist();
+                send();
+                return null;
+            }).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StripeException) {
+                throw (StripeException) e.getCause();
+            }
+            throw new RuntimeException("Error flushing usage", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while flushing usage", e);
+        }
+    }
+
+    /**
+     * Stops metering, then moves the counted usage into the store and tries once more to report it. Usage that could
+     * not be reported is sent by the next meter using the same store.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Calls that saw the meter open may still be adding. Every call is counted as started before it is counted
+        // as finished, so reading the finished calls first can only make the two sums differ while one is running.
+        while (recordsFinished.sum() != recordsStarted.sum()) {
+            Thread.yield();
+        }
+        try {
+            flush();
+        } catch (StripeException | RuntimeException e) {
+            log.warn("Usage left in the store on close", e);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Takes the usage counted so far out of every counter and stores it. The pending marks only drive the size
+     * threshold, so they are reset here, before the counters are drained, and usage added meanwhile marks its counter
+     * again. A counter without usage since the previous persist is removed and marked retired, then drained once
+     * more; usage added to it after that is moved to a new counter by {@link #add(String, long)}.
+     */
+    private void persist() {
+        pendingItems.set(0);
+        Map<String, Long> quantities = new HashMap<>();
+        counters.forEach((itemId, counter) -> {
+            counter.pending = false;
+            long quantity = counter.sumThenReset();
+            if (quantity == 0 && counters.remove(itemId, counter)) {
+                counter.retired = true;
+                quantity = counter.sumThenReset();
+            }
+            if (quantity > 0) {
+                quantities.put(itemId, quantity);
+            }
+        });
+        try {
+            store.append(quantities, Instant.now().getEpochSecond());
+        } catch (RuntimeException e) {
+            // Put the usage back, so it is stored by the next attempt.
+            quantities.forEach(this::add);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the pending usage records one by one. A record Stripe rejects for good, for example because the
+     * subscription item was deleted, is logged and dropped; on any other error the rest waits for the next flush.
+     */
+    private void send() throws StripeException {
+        flushRequested.set(false);
+        for (PendingUsage usage : store.prepareBatch()) {
+            UsageRecordCreateOnSubscriptionItemParams params = UsageRecordCreateOnSubscriptionItemParams.builder()
+                    .setQuantity(usage.getQuantity())
+                    .setTimestamp(usage.getTimestamp())
+                    .setAction(UsageRecordCreateOnSubscriptionItemParams.Action.INCREMENT)
+                    .build();
+            try {
+                gateway.write("usage|" + usage.getIdempotencyKey(), usage.getIdempotencyKey(),
+                        options -> UsageRecord.createOnSubscriptionItem(usage.getSubscriptionItemId(), params, options));
+            } catch (StripeException e) {
+                if (!StripeGateway.isDefinite(e)) {
+                    throw e;
+                }
+                log.error("Stripe rejected usage of {} for subscription item {}; dropping it", usage.getQuantity(), usage.getSubscriptionItemId(), e);
+            }
+            store.delete(usage.getIdempotencyKey());
+        }
+    }
+
+    private void persistQuietly() {
+        try {
+            persist();
+        } catch (RuntimeException e) {
+            log.warn("Error storing usage; retrying with the next persist", e);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            persist();
+            send();
+        } catch (StripeException | RuntimeException e) {
+            log.warn("Error reporting usage to Stripe; retrying with the next flush", e);
+        }
+    }
+
+    /**
+     * The usage of one subscription item counted since the last persist.
+     */
+    private static final class Counter extends LongAdder {
+
+        /**
+         * Whether usage was added since the counter was last drained. Written without synchronization; a race only
+         * makes the size threshold trigger a little earlier or later, never loses usage.
+         */
+        volatile boolean pending;
+
+        /**
+         * Set once the counter was removed from the map; usage added afterwards has to be moved to a new counter.
+         */
+        volatile boolean retired;
+    }
+}
@@ -0,0 +1,347 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.EventDataObjectDeserializationException;
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.model.Event;
+import com.stripe.model.EventDataObjectDeserializer;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionItem;
+import com.stripe.net.Webhook;
+import digiot.stwrap.domain.model.LocalInvoice;
+import digiot.stwrap.domain.model.LocalPaymentMethod;
+import digiot.stwrap.domain.model.LocalSubscription;
+import digiot.stwrap.domain.model.LocalSubscriptionItem;
+import digiot.stwrap.domain.repository.StripeReadModelRepository;
+import digiot.stwrap.infrastructure.EnvUtils;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives Stripe webhook deliveries and applies the customer.subscription.*, invoice.* and payment_method.* events to
+ * the local read model, so that subscription state can be read without calling Stripe.
+ * <p>
+ * {@link #submit(String, String)} verifies the signature and queues the event; a single worker thread drains the queue
+ * in batches of up to batchSize events, or whatever arrived within maxDelay of the first one, and applies each batch in
+ * one transaction. If a batch fails, its events are applied one at a time, so a single event that cannot be applied
+ * does not fail the others. Only the newest event per object is written, and the repository skips objects whose stored
+ * event is newer, so events delivered out of order do not overwrite newer state. The future of an event completes once
+ * its batch is committed, so an HTTP handler can wait for it before answering 2xx, and Stripe redelivers anything not
+ * committed.
+ * <p>
+ * Event IDs that were applied are remembered in a bounded cache, and deliveries of an event that is still queued share
+ * its future, so redeliveries are not applied twice. Since applying is idempotent, a redelivery arriving after its ID
+ * was evicted is harmless.
+ */
+public class WebhookIngestor implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(WebhookIngestor.class);
+
+    private static final String PREFIX = "stwrap.webhook.";
+    private static final String WEBHOOK_SECRET_ENV_NAME = "STRIPE_WEBHOOK_SECRET";
+
+    private final StripeReadModelRepository readModel;
+    private final String secret;
+    private final long toleranceSeconds;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Delivery> queue;
+    private final BoundedCache<String, Boolean> applied;
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final Thread worker;
+    private volatile boolean closed;
+
+    /**
+     * Creates an ingestor verifying signatures with the STRIPE_WEBHOOK_SECRET environment variable, configured by the
+     * stwrap.webhook.* properties: tolerance-seconds (300), batch-size (100), max-delay-ms (20),
+     * queue-capacity (10000), dedup.max-size (100000) and dedup.ttl-hours (72).
+     */
+    public WebhookIngestor(StripeReadModelRepository readModel) {
+        this(readModel, EnvUtils.getEnv(WEBHOOK_SECRET_ENV_NAME),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "tolerance-seconds", "300"))),
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "batch-size", "100")),
+                Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "max-delay-ms", "20"))),
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "queue-capacity", "10000")),
+                new BoundedCache<>(Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "dedup.max-size", "100000")),
+                        Duration.ofHours(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "dedup.ttl-hours", "72")))));
+    }
+
+    /**
+     * @param secret        The signing secret of the webhook endpoint.
+     * @param tolerance     The maximum age of a signature.
+     * @param batchSize     The maximum number of events applied in one transaction.
+     * @param maxDelay      How long the worker waits for more events after the first event of a batch.
+     * @param queueCapacity The maximum number of events waiting to be applied.
+     * @param applied       The cache of event IDs already applied.
+     */
+    public WebhookIngestor(StripeReadModelRepository readModel, String secret, Duration tolerance, int batchSize, Duration maxDelay,
+                           int queueCapacity, BoundedCache<String, Boolean> applied) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalStateException("Stripe webhook secret not found in environment variables");
+        }
+        this.readModel = readModel;
+        this.secret = secret;
+        this.toleranceSeconds = tolerance.getSeconds();
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.applied = applied;
+        this.worker = AsyncExecutors.daemonThreadFactory("stwrap-webhook").newThread(this::run);
+        this.worker.start();
+    }
+
+    /**
+     * Verifies a delivery and queues its event.
+     *
+     * @param payload         The raw request body.
+     * @param signatureHeader The Stripe-Signature header.
+     * @return A future completing with true once the event is applied, with false if it was a redelivery of an event
+     * already applied, or exceptionally if the batch could not be committed.
+     * @throws SignatureVerificationException If the signature does not match or is too old.
+     * @throws RejectedExecutionException     If the queue is full or the ingestor is closed; answer with a 5xx so that
+     *                                        Stripe delivers the event again later.
+     */
+    public CompletableFuture<Boolean> submit(String payload, String signatureHeader) throws SignatureVerificationException {
+        Event event = Webhook.constructEvent(payload, signatureHeader, secret, toleranceSeconds);
+        if (applied.get(event.getId()) != null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> queued = pending.putIfAbsent(event.getId(), future);
+        if (queued != null) {
+            return queued.thenApply(result -> false);
+        }
+        if (closed || !queue.offer(new Delivery(event, future))) {
+            pending.remove(event.getId(), future);
+            throw new RejectedExecutionException(closed ? "Webhook ingestor is closed" : "Webhook queue is full");
+        }
+        return future;
+    }
+
+    /**
+     * Verifies a delivery and waits until its event is applied.
+     *
+     * @return Whether the event was applied by this call, false if it was a redelivery.
+     * @see #submit(String, String)
+     */
+    public boolean ingest(String payload, String signatureHeader) throws SignatureVerificationException {
+        try {
+            return submit(payload, signatureHeader).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting events and waits until the queued ones are applied.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Events offered while the worker was stopping; they are not applied, so Stripe delivers them again.
+        for (Delivery delivery; (delivery = queue.poll()) != null; ) {
+            pending.remove(delivery.event.getId(), delivery.future);
+            delivery.future.completeExceptionally(new RejectedExecutionException("Webhook ingestor is closed"));
+        }
+    }
+
+    private void run() {
+        List<Delivery> batch = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                Delivery first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Delivery next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Webhook worker interrupted with {} events queued", queue.size() + batch.size());
+            apply(batch);
+        }
+    }
+
+    /**
+     * Applies the batch and completes the futures. If the batch fails, its events are applied one at a time, so an
+     * event that cannot be applied only fails its own future and is delivered again by Stripe, without holding back
+     * the events it was batched with.
+     */
+    private void apply(List<Delivery> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write(batch);
+        } catch (EventDataObjectDeserializationException | RuntimeException e) {
+            if (batch.size() == 1) {
+                Delivery delivery = batch.get(0);
+                log.warn("Could not apply webhook event {} of type {}", delivery.event.getId(), delivery.event.getType(), e);
+                pending.remove(delivery.event.getId(), delivery.future);
+                delivery.future.completeExceptionally(e);
+                return;
+            }
+            log.warn("Could not apply a batch of {} webhook events; applying them one at a time", batch.size(), e);
+            for (Delivery delivery : batch) {
+                apply(Collections.singletonList(delivery));
+            }
+            return;
+        }
+        for (Delivery delivery : batch) {
+            applied.put(delivery.event.getId(), Boolean.TRUE);
+            pending.remove(delivery.event.getId(), delivery.future);
+            delivery.future.complete(true);
+        }
+    }
+
+    /**
+     * Writes the newest event per object of the deliveries in one transaction. Objects without an ID, such as the
+     * invoice preview of invoice.upcoming, have no row to update and are skipped.
+     */
+    private void write(List<Delivery> deliveries) throws EventDataObjectDeserializationException {
+        Map<String, LocalSubscription> subscriptions = new LinkedHashMap<>();
+        Map<String, LocalInvoice> invoices = new LinkedHashMap<>();
+        Map<String, LocalPaymentMethod> paymentMethods = new LinkedHashMap<>();
+        for (Delivery delivery : deliveries) {
+            Event event = delivery.event;
+            String type = event.getType();
+            if (type.startsWith("customer.subscription.")) {
+                LocalSubscription subscription = toLocal((Subscription) object(event), event.getCreated());
+                if (subscription.getId() != null) {
+                    subscriptions.merge(subscription.getId(), subscription, (a, b) -> b.getEventCreated() >= a.getEventCreated() ? b : a);
+                }
+            } else if (type.startsWith("invoice.")) {
+                LocalInvoice invoice = toLocal((Invoice) object(event), event.getCreated());
+                if (invoice.getId() != null) {
+                    invoices.merge(invoice.getId(), invoice, (a, b) -> b.getEventCreated() >= a.getEventCreated() ? b : a);
+                }
+            } else if (type.startsWith("payment_method.")) {
+                LocalPaymentMethod paymentMethod = toLocal((PaymentMethod) object(event), event.getCreated());
+                if (paymentMethod.getId() != null) {
+                    paymentMethods.merge(paymentMethod.getId(), paymentMethod, (a, b) -> b.getEventCreated() >= a.getEventCreated() ? b : a);
+                }
+            }
+        }
+        readModel.inTransaction(() -> {
+            readModel.applySubscriptions(subscriptions.values());
+            readModel.applyInvoices(invoices.values());
+            readModel.applyPaymentMethods(paymentMethods.values());
+            return null;
+        });
+    }
+
+    /**
+     * Returns the object of the event, also when the event was sent with another API version than the client's.
+     */
+    private static StripeObject object(Event event) throws EventDataObjectDeserializationException {
+        EventDataObjectDeserializer deserializer = event.getDataObjectDeserializer();
+        return deserializer.getObject().isPresent() ? deserializer.getObject().get() : deserializer.deserializeUnsafe();
+    }
+
+    private static LocalSubscription toLocal(Subscription subscription, long eventCreated) {
+        LocalSubscription local = new LocalSubscription();
+        local.setId(subscription.getId());
+        local.setStripeCustomerId(subscription.getCustomer());
+        local.setStatus(subscription.getStatus());
+        local.setCancelAtPeriodEnd(subscription.getCancelAtPeriodEnd());
+        local.setCancelAt(subscription.getCancelAt());
+        local.setCurrentPeriodStart(subscription.getCurrentPeriodStart());
+        local.setCurrentPeriodEnd(subscription.getCurrentPeriodEnd());
+        local.setEventCreated(eventCreated);
+
+        List<LocalSubscriptionItem> items = new ArrayList<>();
+        if (subscription.getItems() != null && subscription.getItems().getData() != null) {
+            for (SubscriptionItem item : subscription.getItems().getData()) {
+                LocalSubscriptionItem localItem = new LocalSubscriptionItem();
+                localItem.setId(item.getId());
+                localItem.setSubscriptionId(subscription.getId());
+                localItem.setPlanId(item.getPlan() != null ? item.getPlan().getId() : item.getPrice() != null ? item.getPrice().getId() : null);
+                localItem.setQuantity(item.getQuantity());
+                items.add(localItem);
+            }
+        }
+        local.setItems(items);
+        return local;
+    }
+
+    private static LocalInvoice toLocal(Invoice invoice, long eventCreated) {
+        LocalInvoice local = new LocalInvoice();
+        local.setId(invoice.getId());
+        local.setStripeCustomerId(invoice.getCustomer());
+        local.setSubscriptionId(invoice.getSubscription());
+        local.setStatus(invoice.getStatus());
+        local.setCurrency(invoice.getCurrency());
+        local.setAmountDue(invoice.getAmountDue());
+        local.setAmountPaid(invoice.getAmountPaid());
+        local.setCreated(invoice.getCreated());
+        local.setEventCreated(eventCreated);
+        return local;
+    }
+
+    private static LocalPaymentMethod toLocal(PaymentMethod paymentMethod, long eventCreated) {
+        LocalPaymentMethod local = new LocalPaymentMethod();
+        local.setId(paymentMethod.getId());
+        local.setStripeCustomerId(paymentMethod.getCustomer());
+        local.setType(paymentMethod.getType());
+        if (paymentMethod.getCard() != null) {
+            local.setCardBrand(paymentMethod.getCard().getBrand());
+            local.setCardLast4(paymentMethod.getCard().getLast4());
+            local.setCardExpMonth(paymentMethod.getCard().getExpMonth());
+            local.setCardExpYear(paymentMethod.getCard().getExpYear());
+        }
+        local.setEventCreated(eventCreated);
+        return local;
+    }
+
+    private static class Delivery {
+        final Event event;
+        final CompletableFuture<Boolean> future;
+
+        Delivery(Event event, CompletableFuture<Boolean> future) {
+            this.event = event;
+            this.future = future;
+        }
+    }
+}
@@ -10,6 +10,7 @@ public class StripeLinkedUserFactory<T> {
         link.setId(new ULID().nextULID());
         link.setUserId(userId);
         link.setStripeCustomerId(stripeCustomerId);
+        link.setIsPrimary(true);
         link.setDeleted(false);
         return link;
     }
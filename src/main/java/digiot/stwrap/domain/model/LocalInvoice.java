@@ -0,0 +1,20 @@
+package digiot.stwrap.domain.model;
+
+import lombok.Data;
+
+/**
+ * A Stripe invoice as last seen in a webhook event. Amounts are in the smallest currency unit, times in epoch seconds.
+ */
+@Data
+public class LocalInvoice {
+
+    private String id;
+    private String stripeCustomerId;
+    private String subscriptionId;
+    private String status;
+    private String currency;
+    private Long amountDue;
+    private Long amountPaid;
+    private Long created;
+    private Long eventCreated;
+}
@@ -0,0 +1,19 @@
+package digiot.stwrap.domain.model;
+
+import lombok.Data;
+
+/**
+ * A Stripe payment method as last seen in a webhook event; the customer is null once it is detached.
+ */
+@Data
+public class LocalPaymentMethod {
+
+    private String id;
+    private String stripeCustomerId;
+    private String type;
+    private String cardBrand;
+    private String cardLast4;
+    private Long cardExpMonth;
+    private Long cardExpYear;
+    private Long eventCreated;
+}
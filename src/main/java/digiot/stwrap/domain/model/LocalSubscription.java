@@ -0,0 +1,23 @@
+package digiot.stwrap.domain.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A Stripe subscription as last seen in a webhook event. Times are epoch seconds, as in the Stripe API.
+ */
+@Data
+public class LocalSubscription {
+
+    private String id;
+    private String stripeCustomerId;
+    private String status;
+    private Boolean cancelAtPeriodEnd;
+    private Long cancelAt;
+    private Long currentPeriodStart;
+    private Long currentPeriodEnd;
+    private List<LocalSubscriptionItem> items;
+    /** The created time of the event the row was taken from, used to ignore older events delivered late. */
+    private Long eventCreated;
+}
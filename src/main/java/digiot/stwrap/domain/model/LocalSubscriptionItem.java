@@ -0,0 +1,12 @@
+package digiot.stwrap.domain.model;
+
+import lombok.Data;
+
+@Data
+public class LocalSubscriptionItem {
+
+    private String id;
+    private String subscriptionId;
+    private String planId;
+    private Long quantity;
+}
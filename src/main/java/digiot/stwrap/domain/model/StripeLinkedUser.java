@@ -14,4 +14,5 @@ public class StripeLinkedUser<T> {
     private Boolean deleted;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
+    private Long version;
 }
@@ -0,0 +1,12 @@
+package digiot.stwrap.domain.repository;
+
+/**
+ * Thrown when a write would create a second active primary link for the same user.
+ * This typically means another process linked the user concurrently.
+ */
+public class StripeLinkedUserConflictException extends RuntimeException {
+
+    public StripeLinkedUserConflictException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
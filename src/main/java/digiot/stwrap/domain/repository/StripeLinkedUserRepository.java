@@ -2,8 +2,14 @@ package digiot.stwrap.domain.repository;
 
 import digiot.stwrap.domain.model.StripeLinkedUser;
 
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * Interface for a repository handling the links between user accounts and Stripe customer IDs.
@@ -19,6 +25,50 @@ public interface StripeLinkedUserRepository<T> {
      */
     Optional<StripeLinkedUser<T>> findPrimaryByUserId(T userId);
 
+    /**
+     * Finds the primary Stripe customer ID links for several users at once.
+     * The default implementation falls back to one {@link #findPrimaryByUserId(Object)} call per user.
+     *
+     * @param userIds The unique identifiers of the users.
+     * @return The primary links keyed by user ID. Users without an active primary link are absent from the map.
+     */
+    default Map<T, StripeLinkedUser<T>> findPrimaryByUserIds(Collection<T> userIds) {
+        Map<T, StripeLinkedUser<T>> links = new HashMap<>();
+        for (T userId : userIds) {
+            findPrimaryByUserId(userId).ifPresent(link -> links.put(userId, link));
+        }
+        return links;
+    }
+
+    /**
+     * Finds the active link pointing at a Stripe customer, preferring the primary link and then the latest one.
+     * The default implementation scans {@link #findAll()}; implementations should look the customer up directly.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @return The link, or empty if no active link points at the customer.
+     */
+    default Optional<StripeLinkedUser<T>> findByStripeCustomerId(String stripeCustomerId) {
+        return findAll().stream()
+                .filter(link -> stripeCustomerId.equals(link.getStripeCustomerId()))
+                .max(Comparator.comparing((StripeLinkedUser<T> link) -> Boolean.TRUE.equals(link.getIsPrimary()))
+                        .thenComparing(StripeLinkedUser::getUpdatedAt, Comparator.nullsFirst(Comparator.naturalOrder())));
+    }
+
+    /**
+     * Finds the links pointing at several Stripe customers at once.
+     * The default implementation falls back to one {@link #findByStripeCustomerId(String)} call per customer.
+     *
+     * @param stripeCustomerIds The Stripe customer IDs.
+     * @return The links keyed by Stripe customer ID. Customers without an active link are absent from the map.
+     */
+    default Map<String, StripeLinkedUser<T>> findByStripeCustomerIds(Collection<String> stripeCustomerIds) {
+        Map<String, StripeLinkedUser<T>> links = new HashMap<>();
+        for (String stripeCustomerId : stripeCustomerIds) {
+            findByStripeCustomerId(stripeCustomerId).ifPresent(link -> links.put(stripeCustomerId, link));
+        }
+        return links;
+    }
+
     /**
      * Finds all Stripe customer ID links associated with a given user ID.
      *
@@ -34,6 +84,17 @@ public interface StripeLinkedUserRepository<T> {
      */
     List<StripeLinkedUser<T>> findAll();
 
+    /**
+     * Streams all active links in ID order.
+     * Unlike {@link #findAll()}, implementations should not hold the whole table in memory.
+     * The default implementation streams the result of {@link #findAll()}.
+     *
+     * @return A lazily populated stream of UserStripeLinkEntity objects.
+     */
+    default Stream<StripeLinkedUser<T>> streamAll() {
+        return findAll().stream();
+    }
+
     /**
      * Finds the latest Stripe customer ID link associated with a given user ID.
      *
@@ -50,11 +111,43 @@ public interface StripeLinkedUserRepository<T> {
      */
     int insert(StripeLinkedUser<T> stripeLinkedUser);
 
+    /**
+     * Inserts several StripeLinkedUsers.
+     * The default implementation falls back to one {@link #insert(StripeLinkedUser)} call per link.
+     *
+     * @param stripeLinkedUsers The StripeLinkedUser objects to insert.
+     * @return The number of rows affected by the insertion.
+     */
+    default int insertAll(Collection<StripeLinkedUser<T>> stripeLinkedUsers) {
+        int affectedRows = 0;
+        for (StripeLinkedUser<T> stripeLinkedUser : stripeLinkedUsers) {
+            affectedRows += insert(stripeLinkedUser);
+        }
+        return affectedRows;
+    }
+
+    /**
+     * Inserts a primary StripeLinkedUser unless the user already has an active primary link.
+     * The default implementation inserts and, on conflict, reads back the existing primary link.
+     *
+     * @param stripeLinkedUser The StripeLinkedUser object to insert.
+     * @return The given link if it was inserted, otherwise the primary link that already existed.
+     */
+    default StripeLinkedUser<T> insertIfAbsent(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            insert(stripeLinkedUser);
+            return stripeLinkedUser;
+        } catch (StripeLinkedUserConflictException e) {
+            return findPrimaryByUserId(stripeLinkedUser.getUserId()).orElseThrow(() -> e);
+        }
+    }
+
     /**
      * Updates an existing StripeLinkedUser in the repository.
+     * When the link carries a version, the update only applies if the stored row still has that version.
      *
      * @param stripeLinkedUser The StripeLinkedUser object to update.
-     * @return The number of rows affected by the update.
+     * @return The number of rows affected by the update, 0 if the link was changed concurrently.
      */
     int update(StripeLinkedUser<T> stripeLinkedUser);
 
@@ -66,4 +159,16 @@ public interface StripeLinkedUserRepository<T> {
      */
     int delete(StripeLinkedUser<T> stripeLinkedUser);
 
+    /**
+     * Runs several repository calls as one unit of work, so that they share a single connection and
+     * are committed together, or rolled back together if the work throws.
+     * The default implementation runs the work without a transaction.
+     *
+     * @param work The repository calls to run.
+     * @return The result of the work.
+     */
+    default <R> R inTransaction(Supplier<R> work) {
+        return work.get();
+    }
+
 }
@@ -0,0 +1,79 @@
+package digiot.stwrap.domain.repository;
+
+import digiot.stwrap.domain.model.LocalInvoice;
+import digiot.stwrap.domain.model.LocalPaymentMethod;
+import digiot.stwrap.domain.model.LocalSubscription;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Interface for a repository holding local copies of Stripe subscriptions, invoices and payment methods,
+ * kept up to date from webhook events so that they can be read without calling Stripe.
+ * <p>
+ * Every row carries the created time of the event it was taken from. Applying a row replaces the stored one only if
+ * its event is not older, so events delivered out of order cannot overwrite newer state.
+ */
+public interface StripeReadModelRepository {
+
+    /**
+     * Inserts or replaces subscriptions together with their items.
+     *
+     * @param subscriptions The subscriptions, at most one per ID.
+     * @return The number of subscriptions written; rows from older events than the stored ones are skipped.
+     */
+    int applySubscriptions(Collection<LocalSubscription> subscriptions);
+
+    /**
+     * Inserts or replaces invoices.
+     *
+     * @param invoices The invoices, at most one per ID.
+     * @return The number of invoices written; rows from older events than the stored ones are skipped.
+     */
+    int applyInvoices(Collection<LocalInvoice> invoices);
+
+    /**
+     * Inserts or replaces payment methods.
+     *
+     * @param paymentMethods The payment methods, at most one per ID.
+     * @return The number of payment methods written; rows from older events than the stored ones are skipped.
+     */
+    int applyPaymentMethods(Collection<LocalPaymentMethod> paymentMethods);
+
+    /**
+     * Finds the subscriptions of a customer with one of the given statuses, with their items.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @param statuses         The statuses to include, e.g. "active" and "trialing".
+     * @return The subscriptions, newest period first.
+     */
+    List<LocalSubscription> findSubscriptionsByCustomerId(String stripeCustomerId, Collection<String> statuses);
+
+    /**
+     * Finds the invoices of a customer.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @return The invoices, newest first.
+     */
+    List<LocalInvoice> findInvoicesByCustomerId(String stripeCustomerId);
+
+    /**
+     * Finds the payment methods attached to a customer.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @return The payment methods.
+     */
+    List<LocalPaymentMethod> findPaymentMethodsByCustomerId(String stripeCustomerId);
+
+    /**
+     * Runs several repository calls as one unit of work, committed together or rolled back together.
+     * The default implementation runs the work without a transaction.
+     *
+     * @param work The repository calls to run.
+     * @return The result of the work.
+     */
+    default <R> R inTransaction(Supplier<R> work) {
+        return work.get();
+    }
+}
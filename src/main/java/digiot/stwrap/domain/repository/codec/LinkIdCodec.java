@@ -0,0 +1,58 @@
+package digiot.stwrap.domain.repository.codec;
+
+import de.huxhorn.sulky.ulid.ULID;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Storage format of the ULID primary key of stripe_linked_user.
+ * Both formats preserve the time ordering of ULIDs, so keyset pagination on id works with either.
+ */
+public enum LinkIdCodec {
+
+    /**
+     * The 26-character Crockford base32 form in a VARCHAR(32) column.
+     */
+    TEXT("VARCHAR(32)") {
+        @Override
+        public void bind(PreparedStatement stmt, int index, String id) throws SQLException {
+            stmt.setString(index, id);
+        }
+
+        @Override
+        public String read(ResultSet rs, int columnIndex) throws SQLException {
+            return rs.getString(columnIndex);
+        }
+    },
+
+    /**
+     * The 128-bit value in a BINARY(16) column.
+     */
+    BINARY("BINARY(16)") {
+        @Override
+        public void bind(PreparedStatement stmt, int index, String id) throws SQLException {
+            stmt.setBytes(index, ULID.parseULID(id).toBytes());
+        }
+
+        @Override
+        public String read(ResultSet rs, int columnIndex) throws SQLException {
+            return ULID.fromBytes(rs.getBytes(columnIndex)).toString();
+        }
+    };
+
+    private final String sqlType;
+
+    LinkIdCodec(String sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    public String sqlType() {
+        return sqlType;
+    }
+
+    public abstract void bind(PreparedStatement stmt, int index, String id) throws SQLException;
+
+    public abstract String read(ResultSet rs, int columnIndex) throws SQLException;
+}
@@ -0,0 +1,60 @@
+package digiot.stwrap.domain.repository.codec;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * SPI that maps a user ID type to its column representation in stripe_linked_user.
+ * Implementations bind and read values with the typed JDBC accessors, so no reflection or unchecked cast is needed.
+ * Built-in codecs are available from {@link UserIdCodecs}.
+ *
+ * @param <T> The user ID type of your service.
+ */
+public interface UserIdCodec<T> {
+
+    /**
+     * Binds a user ID as a statement parameter.
+     *
+     * @param stmt   The statement to bind to.
+     * @param index  The 1-based parameter index.
+     * @param userId The user ID, never null.
+     * @throws SQLException If the driver rejects the value.
+     */
+    void bind(PreparedStatement stmt, int index, T userId) throws SQLException;
+
+    /**
+     * Reads a user ID from the current row.
+     *
+     * @param rs          The result set positioned on a row.
+     * @param columnIndex The 1-based column index.
+     * @return The user ID.
+     * @throws SQLException If the column cannot be read.
+     */
+    T read(ResultSet rs, int columnIndex) throws SQLException;
+
+    /**
+     * Returns the SQL column type used to store the user ID, e.g. BIGINT.
+     *
+     * @return The SQL type declaration.
+     */
+    String sqlType();
+
+    /**
+     * Formats a user ID as text, e.g. for logs, file-based indexes or Stripe metadata.
+     *
+     * @param userId The user ID.
+     * @return The textual form, accepted by {@link #parse(String)}.
+     */
+    default String format(T userId) {
+        return String.valueOf(userId);
+    }
+
+    /**
+     * Parses the textual form produced by {@link #format(Object)}.
+     *
+     * @param text The textual user ID.
+     * @return The user ID.
+     */
+    T parse(String text);
+}
@@ -0,0 +1,153 @@
+package digiot.stwrap.domain.repository.codec;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Built-in {@link UserIdCodec} implementations.
+ */
+public final class UserIdCodecs {
+
+    private static final UserIdCodec<Long> LONG = new UserIdCodec<>() {
+
+        @Override
+        public void bind(PreparedStatement stmt, int index, Long userId) throws SQLException {
+            stmt.setLong(index, userId);
+        }
+
+        @Override
+        public Long read(ResultSet rs, int columnIndex) throws SQLException {
+            return rs.getLong(columnIndex);
+        }
+
+        @Override
+        public String sqlType() {
+            return "BIGINT";
+        }
+
+        @Override
+        public Long parse(String text) {
+            return Long.parseLong(text);
+        }
+    };
+
+    private static final UserIdCodec<UUID> UUID_BINARY = new UserIdCodec<>() {
+
+        @Override
+        public void bind(PreparedStatement stmt, int index, UUID userId) throws SQLException {
+            stmt.setBytes(index, ByteBuffer.allocate(16)
+                    .putLong(userId.getMostSignificantBits())
+                    .putLong(userId.getLeastSignificantBits())
+                    .array());
+        }
+
+        @Override
+        public UUID read(ResultSet rs, int columnIndex) throws SQLException {
+            ByteBuffer bytes = ByteBuffer.wrap(rs.getBytes(columnIndex));
+            return new UUID(bytes.getLong(), bytes.getLong());
+        }
+
+        @Override
+        public String sqlType() {
+            return "BINARY(16)";
+        }
+
+        @Override
+        public UUID parse(String text) {
+            return UUID.fromString(text);
+        }
+    };
+
+    private static final UserIdCodec<String> STRING = new UserIdCodec<>() {
+
+        @Override
+        public void bind(PreparedStatement stmt, int index, String userId) throws SQLException {
+            stmt.setString(index, userId);
+        }
+
+        @Override
+        public String read(ResultSet rs, int columnIndex) throws SQLException {
+            return rs.getString(columnIndex);
+        }
+
+        @Override
+        public String sqlType() {
+            return "VARCHAR(255)";
+        }
+
+        @Override
+        public String parse(String text) {
+            return text;
+        }
+    };
+
+    private static final UserIdCodec<Object> OBJECT = new UserIdCodec<>() {
+
+        @Override
+        public void bind(PreparedStatement stmt, int index, Object userId) throws SQLException {
+            stmt.setObject(index, userId);
+        }
+
+        @Override
+        public Object read(ResultSet rs, int columnIndex) throws SQLException {
+            return rs.getObject(columnIndex);
+        }
+
+        @Override
+        public String sqlType() {
+            return "VARCHAR(255)";
+        }
+
+        @Override
+        public Object parse(String text) {
+            throw new UnsupportedOperationException("The untyped codec cannot parse user IDs, configure an explicit UserIdCodec");
+        }
+    };
+
+    private UserIdCodecs() {
+    }
+
+    /**
+     * Stores numeric user IDs as BIGINT.
+     *
+     * @return The codec for long user IDs.
+     */
+    public static UserIdCodec<Long> ofLong() {
+        return LONG;
+    }
+
+    /**
+     * Stores UUID user IDs as BINARY(16) in big-endian order.
+     *
+     * @return The codec for UUID user IDs.
+     */
+    public static UserIdCodec<UUID> ofUuid() {
+        return UUID_BINARY;
+    }
+
+    /**
+     * Stores user IDs as VARCHAR(255).
+     *
+     * @return The codec for String user IDs.
+     */
+    public static UserIdCodec<String> ofString() {
+        return STRING;
+    }
+
+    /**
+     * Codec matching the behavior of earlier versions: values are bound with setObject and read back with getObject.
+     * It only works when the JDBC type returned by the driver is the user ID type itself, and it cannot parse
+     * textual user IDs, so StripeLinkedUserKeyMigration and SnapshotStripeLinkedUserRepository
+     * require an explicit codec.
+     *
+     * @param <T> The user ID type.
+     * @return The untyped codec.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> UserIdCodec<T> ofObject() {
+        return (UserIdCodec<T>) OBJECT;
+    }
+}
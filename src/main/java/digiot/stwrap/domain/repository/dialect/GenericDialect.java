@@ -0,0 +1,15 @@
+package digiot.stwrap.domain.repository.dialect;
+
+/**
+ * Dialect for databases without a dedicated one. The insert of a primary link is a plain INSERT, which the unique index
+ * on primary_user_id rejects when the user already has one; the repository treats that unique violation as the
+ * existing link winning. On databases that abort the surrounding transaction on an error, such an insert cannot be
+ * part of a larger transaction.
+ */
+public class GenericDialect implements SqlDialect {
+
+    @Override
+    public String insertPrimaryIfAbsent(String idType, String userIdType) {
+        return "INSERT INTO stripe_linked_user (id, user_id, stripe_customer_id, is_primary) VALUES (?, ?, ?, TRUE)";
+    }
+}
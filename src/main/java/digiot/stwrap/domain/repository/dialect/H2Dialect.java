@@ -0,0 +1,20 @@
+package digiot.stwrap.domain.repository.dialect;
+
+/**
+ * Dialect for H2 in its native mode.
+ */
+public class H2Dialect implements SqlDialect {
+
+    @Override
+    public String insertPrimaryIfAbsent(String idType, String userIdType) {
+        return "MERGE INTO stripe_linked_user t"
+                + " USING (VALUES (CAST(? AS " + idType + "), CAST(? AS " + userIdType + "), CAST(? AS VARCHAR(255)))) s (id, user_id, stripe_customer_id)"
+                + " ON t.primary_user_id = s.user_id"
+                + " WHEN NOT MATCHED THEN INSERT (id, user_id, stripe_customer_id, is_primary) VALUES (s.id, s.user_id, s.stripe_customer_id, TRUE)";
+    }
+
+    @Override
+    public String scriptName() {
+        return "h2";
+    }
+}
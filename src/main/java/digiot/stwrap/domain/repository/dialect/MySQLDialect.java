@@ -0,0 +1,21 @@
+package digiot.stwrap.domain.repository.dialect;
+
+/**
+ * Dialect for MySQL and MariaDB, also usable with H2 in MySQL compatibility mode.
+ */
+public class MySQLDialect implements SqlDialect {
+
+    /**
+     * INSERT IGNORE skips rows rejected by the unique index on primary_user_id.
+     * It also turns other errors such as NULL values into warnings, so the repository validates links beforehand.
+     */
+    @Override
+    public String insertPrimaryIfAbsent(String idType, String userIdType) {
+        return "INSERT IGNORE INTO stripe_linked_user (id, user_id, stripe_customer_id, is_primary) VALUES (?, ?, ?, TRUE)";
+    }
+
+    @Override
+    public String scriptName() {
+        return "mysql";
+    }
+}
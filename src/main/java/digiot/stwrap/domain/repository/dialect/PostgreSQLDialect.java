@@ -0,0 +1,36 @@
+package digiot.stwrap.domain.repository.dialect;
+
+import java.util.List;
+
+/**
+ * Dialect for PostgreSQL, also usable with H2 in PostgreSQL compatibility mode.
+ */
+public class PostgreSQLDialect implements SqlDialect {
+
+    @Override
+    public String insertPrimaryIfAbsent(String idType, String userIdType) {
+        return "INSERT INTO stripe_linked_user (id, user_id, stripe_customer_id, is_primary) VALUES (?, ?, ?, TRUE) ON CONFLICT DO NOTHING";
+    }
+
+    /**
+     * Covered columns go into an INCLUDE clause (PostgreSQL 11+), keeping the index key short.
+     */
+    @Override
+    public String createCoveringIndex(String name, List<String> keyColumns, List<String> coveredColumns) {
+        return "CREATE INDEX " + name + " ON stripe_linked_user (" + String.join(", ", keyColumns) + ")"
+                + " INCLUDE (" + String.join(", ", coveredColumns) + ")";
+    }
+
+    @Override
+    public String scriptName() {
+        return "postgresql";
+    }
+
+    /**
+     * PostgreSQL has no BINARY type; binary keys are stored as BYTEA.
+     */
+    @Override
+    public String columnType(String sqlType) {
+        return sqlType.startsWith("BINARY") ? "BYTEA" : sqlType;
+    }
+}
@@ -0,0 +1,82 @@
+package digiot.stwrap.domain.repository.dialect;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Database-specific SQL used by the JDBC repositories where standard SQL has no portable form.
+ */
+public interface SqlDialect {
+
+    /**
+     * Returns a single statement that inserts a primary link unless the user already has an active primary link.
+     * The statement takes the parameters (id, user_id, stripe_customer_id) and affects one row when it inserted,
+     * or none when another primary link already existed.
+     *
+     * @param idType     The SQL type of the id column.
+     * @param userIdType The SQL type of the user_id column.
+     * @return The insert-if-absent statement.
+     */
+    String insertPrimaryIfAbsent(String idType, String userIdType);
+
+    /**
+     * Returns the DDL of an index on stripe_linked_user that serves a lookup from its key columns alone and
+     * also holds the covered columns, so the lookup does not have to visit the table rows.
+     * The default appends the covered columns to the index key.
+     *
+     * @param name           The index name.
+     * @param keyColumns     The key columns in order, optionally followed by ASC or DESC.
+     * @param coveredColumns The remaining columns read by the lookup.
+     * @return The CREATE INDEX statement.
+     */
+    default String createCoveringIndex(String name, List<String> keyColumns, List<String> coveredColumns) {
+        List<String> columns = new ArrayList<>(keyColumns);
+        columns.addAll(coveredColumns);
+        return "CREATE INDEX " + name + " ON stripe_linked_user (" + String.join(", ", columns) + ")";
+    }
+
+    /**
+     * Returns the suffix of the database-specific scripts under db/migration, such as
+     * stripe_linked_user_native_keys_&lt;name&gt;.sql. The default has none.
+     *
+     * @return The script name suffix, or null if this database has no scripts.
+     */
+    default String scriptName() {
+        return null;
+    }
+
+    /**
+     * Translates a column type declared by a codec, such as BINARY(16), to this database. The default keeps it.
+     *
+     * @param sqlType The column type of a codec.
+     * @return The column type to declare.
+     */
+    default String columnType(String sqlType) {
+        return sqlType;
+    }
+
+    /**
+     * Picks the dialect matching the database product of the connection, or a {@link GenericDialect} for any other
+     * database.
+     *
+     * @param conn An open connection.
+     * @return The dialect for the connected database.
+     * @throws SQLException If the database metadata cannot be read.
+     */
+    static SqlDialect detect(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName();
+        switch (product) {
+            case "H2":
+                return new H2Dialect();
+            case "PostgreSQL":
+                return new PostgreSQLDialect();
+            case "MySQL":
+            case "MariaDB":
+                return new MySQLDialect();
+            default:
+                return new GenericDialect();
+        }
+    }
+}
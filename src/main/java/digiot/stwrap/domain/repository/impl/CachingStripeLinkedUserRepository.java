@@ -0,0 +1,307 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import digiot.stwrap.infrastructure.cache.CacheStats;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Read-through caching decorator for any StripeLinkedUserRepository.
+ * Primary links are cached per user ID, and links found by Stripe customer ID in a second, reverse cache.
+ * Every write through this repository invalidates the affected entries of both caches.
+ * Links are copied when they are cached and again on every hit, so callers may modify the links they get.
+ */
+public class CachingStripeLinkedUserRepository<T> implements StripeLinkedUserRepository<T> {
+
+    private static final String PREFIX = "stwrap.cache.linked-user.";
+
+    private final StripeLinkedUserRepository<T> delegate;
+    private final BoundedCache<T, StripeLinkedUser<T>> primaryByUserId;
+    private final BoundedCache<String, StripeLinkedUser<T>> byStripeCustomerId;
+
+    /**
+     * Incremented on every write before the affected entries are invalidated, so a lookup that raced with a write does
+     * not repopulate the cache with a stale row: the lookup checks it under the cache lock when it stores its result.
+     */
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    /**
+     * Links written by the transaction running on the current thread. While set, lookups bypass the cache, so
+     * uncommitted rows are never cached, and the links are invalidated again once the transaction has ended.
+     */
+    private final ThreadLocal<List<StripeLinkedUser<T>>> transactionWrites = new ThreadLocal<>();
+
+    /**
+     * Creates a caching repository configured by stwrap.cache.linked-user.max-size and
+     * stwrap.cache.linked-user.ttl-seconds.
+     * The reverse cache uses stwrap.cache.linked-user.reverse-max-size, which defaults to the same size.
+     *
+     * @param delegate The repository to read through.
+     */
+    public CachingStripeLinkedUserRepository(StripeLinkedUserRepository<T> delegate) {
+        this(delegate, new BoundedCache<>(configuredMaxSize(), configuredTtl()));
+    }
+
+    public CachingStripeLinkedUserRepository(StripeLinkedUserRepository<T> delegate, int maxSize, Duration ttl) {
+        this(delegate, new BoundedCache<>(maxSize, ttl), new BoundedCache<>(maxSize, ttl));
+    }
+
+    /**
+     * Creates a caching repository with the given forward cache and a reverse cache configured from properties.
+     */
+    public CachingStripeLinkedUserRepository(StripeLinkedUserRepository<T> delegate, BoundedCache<T, StripeLinkedUser<T>> cache) {
+        this(delegate, cache, new BoundedCache<>(
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "reverse-max-size", String.valueOf(configuredMaxSize()))),
+                configuredTtl()));
+    }
+
+    public CachingStripeLinkedUserRepository(StripeLinkedUserRepository<T> delegate, BoundedCache<T, StripeLinkedUser<T>> cache, BoundedCache<String, StripeLinkedUser<T>> reverseCache) {
+        this.delegate = delegate;
+        this.primaryByUserId = cache;
+        this.byStripeCustomerId = reverseCache;
+    }
+
+    private static int configuredMaxSize() {
+        return Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "max-size", "10000"));
+    }
+
+    private static Duration configuredTtl() {
+        return Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "ttl-seconds", "300")));
+    }
+
+    @Override
+    public Optional<StripeLinkedUser<T>> findPrimaryByUserId(T userId) {
+        if (transactionWrites.get() != null) {
+            return delegate.findPrimaryByUserId(userId);
+        }
+        StripeLinkedUser<T> cached = primaryByUserId.get(userId);
+        if (cached != null) {
+            return Optional.of(copy(cached));
+        }
+
+        long sequence = writeSequence.get();
+        Optional<StripeLinkedUser<T>> link = delegate.findPrimaryByUserId(userId);
+        link.ifPresent(found -> primaryByUserId.putIf(userId, copy(found), () -> writeSequence.get() == sequence));
+        return link;
+    }
+
+    @Override
+    public Map<T, StripeLinkedUser<T>> findPrimaryByUserIds(Collection<T> userIds) {
+        if (transactionWrites.get() != null) {
+            return delegate.findPrimaryByUserIds(userIds);
+        }
+        Map<T, StripeLinkedUser<T>> links = new HashMap<>();
+        List<T> misses = new ArrayList<>();
+        for (T userId : userIds) {
+            StripeLinkedUser<T> cached = primaryByUserId.get(userId);
+            if (cached != null) {
+                links.put(userId, copy(cached));
+            } else {
+                misses.add(userId);
+            }
+        }
+        if (misses.isEmpty()) {
+            return links;
+        }
+
+        long sequence = writeSequence.get();
+        Map<T, StripeLinkedUser<T>> loaded = delegate.findPrimaryByUserIds(misses);
+        loaded.forEach((userId, link) -> primaryByUserId.putIf(userId, copy(link), () -> writeSequence.get() == sequence));
+        links.putAll(loaded);
+        return links;
+    }
+
+    @Override
+    public Optional<StripeLinkedUser<T>> findByStripeCustomerId(String stripeCustomerId) {
+        if (transactionWrites.get() != null) {
+            return delegate.findByStripeCustomerId(stripeCustomerId);
+        }
+        StripeLinkedUser<T> cached = byStripeCustomerId.get(stripeCustomerId);
+        if (cached != null) {
+            return Optional.of(copy(cached));
+        }
+
+        long sequence = writeSequence.get();
+        Optional<StripeLinkedUser<T>> link = delegate.findByStripeCustomerId(stripeCustomerId);
+        link.ifPresent(found -> byStripeCustomerId.putIf(stripeCustomerId, copy(found), () -> writeSequence.get() == sequence));
+        return link;
+    }
+
+    @Override
+    public Map<String, StripeLinkedUser<T>> findByStripeCustomerIds(Collection<String> stripeCustomerIds) {
+        if (transactionWrites.get() != null) {
+            return delegate.findByStripeCustomerIds(stripeCustomerIds);
+        }
+        Map<String, StripeLinkedUser<T>> links = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String stripeCustomerId : stripeCustomerIds) {
+            StripeLinkedUser<T> cached = byStripeCustomerId.get(stripeCustomerId);
+            if (cached != null) {
+                links.put(stripeCustomerId, copy(cached));
+            } else {
+                misses.add(stripeCustomerId);
+            }
+        }
+        if (misses.isEmpty()) {
+            return links;
+        }
+
+        long sequence = writeSequence.get();
+        Map<String, StripeLinkedUser<T>> loaded = delegate.findByStripeCustomerIds(misses);
+        loaded.forEach((stripeCustomerId, link) -> byStripeCustomerId.putIf(stripeCustomerId, copy(link), () -> writeSequence.get() == sequence));
+        links.putAll(loaded);
+        return links;
+    }
+
+    @Override
+    public List<StripeLinkedUser<T>> findAllLinksByUserId(T userId) {
+        return delegate.findAllLinksByUserId(userId);
+    }
+
+    @Override
+    public List<StripeLinkedUser<T>> findAll() {
+        return delegate.findAll();
+    }
+
+    @Override
+    public Stream<StripeLinkedUser<T>> streamAll() {
+        return delegate.streamAll();
+    }
+
+    @Override
+    public Optional<StripeLinkedUser<T>> findLatestLinkByUserId(T userId) {
+        return delegate.findLatestLinkByUserId(userId);
+    }
+
+    @Override
+    public int insert(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.insert(stripeLinkedUser);
+        } finally {
+            invalidate(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public int insertAll(Collection<StripeLinkedUser<T>> stripeLinkedUsers) {
+        try {
+            return delegate.insertAll(stripeLinkedUsers);
+        } finally {
+            stripeLinkedUsers.forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public StripeLinkedUser<T> insertIfAbsent(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.insertIfAbsent(stripeLinkedUser);
+        } finally {
+            invalidate(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public int update(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.update(stripeLinkedUser);
+        } finally {
+            invalidate(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public int delete(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.delete(stripeLinkedUser);
+        } finally {
+            invalidate(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public <R> R inTransaction(Supplier<R> work) {
+        if (transactionWrites.get() != null) {
+            return delegate.inTransaction(work);
+        }
+        List<StripeLinkedUser<T>> written = new ArrayList<>();
+        transactionWrites.set(written);
+        try {
+            return delegate.inTransaction(work);
+        } finally {
+            transactionWrites.remove();
+            written.forEach(this::invalidate);
+        }
+    }
+
+    /**
+     * Returns the hit, miss and eviction counters of the primary link cache.
+     *
+     * @return The current cache statistics.
+     */
+    public CacheStats stats() {
+        return primaryByUserId.stats();
+    }
+
+    /**
+     * Returns the hit, miss and eviction counters of the reverse cache by Stripe customer ID.
+     *
+     * @return The current cache statistics.
+     */
+    public CacheStats reverseStats() {
+        return byStripeCustomerId.stats();
+    }
+
+    /**
+     * Drops every cached entry.
+     */
+    public void invalidateAll() {
+        writeSequence.incrementAndGet();
+        primaryByUserId.invalidateAll();
+        byStripeCustomerId.invalidateAll();
+    }
+
+    private void invalidate(StripeLinkedUser<T> link) {
+        List<StripeLinkedUser<T>> written = transactionWrites.get();
+        if (written != null) {
+            written.add(link);
+        }
+        writeSequence.incrementAndGet();
+        if (link.getUserId() != null) {
+            primaryByUserId.invalidate(link.getUserId());
+        } else {
+            // delete() only needs the link ID, so fall back to matching cached rows by ID.
+            primaryByUserId.invalidateIf((userId, cached) -> Objects.equals(cached.getId(), link.getId()));
+        }
+        // An update may move the link to another customer, so entries are also matched by link and user, not only
+        // by the link's current customer ID. Writes are rare compared to lookups, which makes the scan affordable.
+        byStripeCustomerId.invalidateIf((stripeCustomerId, cached) -> stripeCustomerId.equals(link.getStripeCustomerId())
+                || Objects.equals(cached.getId(), link.getId())
+                || (link.getUserId() != null && link.getUserId().equals(cached.getUserId())));
+    }
+
+    private static <T> StripeLinkedUser<T> copy(StripeLinkedUser<T> link) {
+        StripeLinkedUser<T> copy = new StripeLinkedUser<>();
+        copy.setId(link.getId());
+        copy.setUserId(link.getUserId());
+        copy.setStripeCustomerId(link.getStripeCustomerId());
+        copy.setIsPrimary(link.getIsPrimary());
+        copy.setDeleted(link.getDeleted());
+        copy.setCreatedAt(link.getCreatedAt());
+        copy.setUpdatedAt(link.getUpdatedAt());
+        copy.setVersion(link.getVersion());
+        return copy;
+    }
+}
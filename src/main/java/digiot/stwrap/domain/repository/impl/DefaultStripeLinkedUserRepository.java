@@ -1,36 +1,174 @@
 package digiot.stwrap.domain.repository.impl;
 
 import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserConflictException;
 import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.codec.LinkIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodecs;
+import digiot.stwrap.domain.repository.dialect.SqlDialect;
+import digiot.stwrap.infrastructure.jdbc.JdbcSession;
+import digiot.stwrap.infrastructure.jdbc.TransactionTemplate;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Default JDBC implementation of the UserStripeLinkRepository.
  */
 public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRepository<T> {
 
-    private final DataSource dataSource;
+    /**
+     * Maximum number of user IDs per IN list and rows per JDBC batch.
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Default number of rows fetched per page by {@link #streamAll()}.
+     */
+    static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Columns read by every query, in the order mapRowToUserStripeLinkEntity reads them.
+     */
+    static final String COLUMNS = "id, user_id, stripe_customer_id, is_primary, deleted, created_at, updated_at, version";
+
+    /**
+     * The ORDER BY repeats the equality columns so that it matches the key of the primary lookup index exactly,
+     * which lets the database read the first row from the index instead of sorting.
+     */
+    static final String FIND_PRIMARY_SQL = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE user_id = ? AND is_primary = TRUE AND deleted = FALSE ORDER BY user_id, is_primary, deleted, updated_at DESC LIMIT 1";
+
+    static final String FIND_LATEST_SQL = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE user_id = ? AND deleted = FALSE ORDER BY user_id, deleted, updated_at DESC LIMIT 1";
+
+    static final String FIND_BY_STRIPE_CUSTOMER_SQL = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE stripe_customer_id = ? AND deleted = FALSE ORDER BY is_primary DESC, updated_at DESC LIMIT 1";
 
+    private static final String INSERT_SQL = "INSERT INTO stripe_linked_user (id, user_id, stripe_customer_id, is_primary) VALUES (?, ?, ?, ?)";
+
+    /**
+     * Columns filled in by the database on insert, read back through getGeneratedKeys where the driver supports it.
+     */
+    private static final String[] GENERATED_COLUMNS = {"created_at", "updated_at", "version"};
+
+    private final DataSource dataSource;
+    private final UserIdCodec<T> userIdCodec;
+    private final LinkIdCodec linkIdCodec;
+    private final TransactionTemplate transactionTemplate;
+    private volatile SqlDialect dialect;
+
+    /**
+     * Creates a repository that binds user IDs with setObject and stores link IDs as text, as earlier versions did.
+     * Pass an explicit {@link UserIdCodec} instead for non-String user IDs or when the repository backs a
+     * {@link SnapshotStripeLinkedUserRepository}.
+     *
+     * @param dataSource The data source holding the stripe_linked_user table.
+     */
     public DefaultStripeLinkedUserRepository(DataSource dataSource) {
+        this(dataSource, UserIdCodecs.ofObject());
+    }
+
+    public DefaultStripeLinkedUserRepository(DataSource dataSource, UserIdCodec<T> userIdCodec) {
+        this(dataSource, userIdCodec, LinkIdCodec.TEXT);
+    }
+
+    /**
+     * Creates a repository whose SQL dialect is detected from the database on first use.
+     *
+     * @param dataSource  The data source holding the stripe_linked_user table.
+     * @param userIdCodec The codec for the user_id column.
+     * @param linkIdCodec The storage format of the id column.
+     */
+    public DefaultStripeLinkedUserRepository(DataSource dataSource, UserIdCodec<T> userIdCodec, LinkIdCodec linkIdCodec) {
+        this(dataSource, userIdCodec, linkIdCodec, null);
+    }
+
+    public DefaultStripeLinkedUserRepository(DataSource dataSource, UserIdCodec<T> userIdCodec, LinkIdCodec linkIdCodec, SqlDialect dialect) {
         this.dataSource = dataSource;
+        this.userIdCodec = userIdCodec;
+        this.linkIdCodec = linkIdCodec;
+        this.dialect = dialect;
+        this.transactionTemplate = new TransactionTemplate(dataSource);
     }
 
     @Override
     public Optional<StripeLinkedUser<T>> findPrimaryByUserId(T userId) {
-        String sql = "SELECT * FROM stripe_linked_user WHERE user_id = ? AND is_primary = true AND deleted = FALSE ORDER BY updated_at DESC LIMIT 1";
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(FIND_PRIMARY_SQL);
+
+            userIdCodec.bind(stmt, 1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.ofNullable(mapRowToUserStripeLinkEntity(rs));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_linked_user", e);
+        }
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        return Optional.empty();
+    }
 
-            stmt.setObject(1, userId);
+    @Override
+    public Map<T, StripeLinkedUser<T>> findPrimaryByUserIds(Collection<T> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        List<T> ids = new ArrayList<>(userIds);
+        Map<T, StripeLinkedUser<T>> links = new HashMap<>();
+
+        // primary_user_id holds user_id only for active primary links and is unique, so each user matches at most one
+        // row. An IN list on user_id combined with the is_primary and deleted conditions makes H2 scan the whole
+        // primary lookup index instead of seeking each user.
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                List<T> chunk = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+                String sql = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE primary_user_id IN (" + placeholders(chunk.size()) + ")";
+
+                PreparedStatement stmt = session.prepare(sql);
+                for (int i = 0; i < chunk.size(); i++) {
+                    userIdCodec.bind(stmt, i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        StripeLinkedUser<T> link = mapRowToUserStripeLinkEntity(rs);
+                        links.putIfAbsent(link.getUserId(), link);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_linked_user", e);
+        }
+
+        return links;
+    }
+
+    @Override
+    public Optional<StripeLinkedUser<T>> findByStripeCustomerId(String stripeCustomerId) {
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(FIND_BY_STRIPE_CUSTOMER_SQL);
+
+            stmt.setString(1, stripeCustomerId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
                     return Optional.ofNullable(mapRowToUserStripeLinkEntity(rs));
@@ -43,13 +181,45 @@ public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRep
         return Optional.empty();
     }
 
+    @Override
+    public Map<String, StripeLinkedUser<T>> findByStripeCustomerIds(Collection<String> stripeCustomerIds) {
+        if (stripeCustomerIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        List<String> ids = new ArrayList<>(stripeCustomerIds);
+        Map<String, StripeLinkedUser<T>> links = new HashMap<>();
+
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                List<String> chunk = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+                String sql = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE stripe_customer_id IN (" + placeholders(chunk.size()) + ") AND deleted = FALSE ORDER BY is_primary DESC, updated_at DESC";
+
+                PreparedStatement stmt = session.prepare(sql);
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        StripeLinkedUser<T> link = mapRowToUserStripeLinkEntity(rs);
+                        links.putIfAbsent(link.getStripeCustomerId(), link);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_linked_user", e);
+        }
+
+        return links;
+    }
+
     @Override
     public List<StripeLinkedUser<T>> findAll() {
         List<StripeLinkedUser<T>> links = new ArrayList<>();
-        String sql = "SELECT * FROM stripe_linked_user WHERE deleted = FALSE";
+        String sql = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE deleted = FALSE";
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
@@ -63,15 +233,90 @@ public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRep
         return links;
     }
 
+    @Override
+    public Stream<StripeLinkedUser<T>> streamAll() {
+        return streamAll(DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * Streams all active links in ID order using keyset pagination.
+     * Each page is read with its own short-lived statement and connection, so only one page is held in memory
+     * and nothing is left open when the consumer stops early.
+     *
+     * @param fetchSize The number of rows read per page.
+     * @return A lazily populated stream of UserStripeLinkEntity objects.
+     */
+    public Stream<StripeLinkedUser<T>> streamAll(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+        }
+        return StreamSupport.stream(new KeysetSpliterator(fetchSize), false);
+    }
+
+    private List<StripeLinkedUser<T>> findPageAfter(String lastId, int pageSize) {
+        List<StripeLinkedUser<T>> links = new ArrayList<>(pageSize);
+        String sql = lastId == null
+                ? "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE deleted = FALSE ORDER BY id LIMIT ?"
+                : "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE deleted = FALSE AND id > ? ORDER BY id LIMIT ?";
+
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
+
+            int index = 1;
+            if (lastId != null) {
+                linkIdCodec.bind(stmt, index++, lastId);
+            }
+            stmt.setInt(index, pageSize);
+            stmt.setFetchSize(pageSize);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    links.add(mapRowToUserStripeLinkEntity(rs));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_linked_user", e);
+        }
+
+        return links;
+    }
+
+    /**
+     * Finds every link changed at or after the given time, including deleted and non-primary links, oldest first.
+     * Used to refresh snapshots incrementally from an updated_at watermark.
+     *
+     * @param since The lower bound of updated_at, inclusive.
+     * @return The changed links ordered by updated_at.
+     */
+    public List<StripeLinkedUser<T>> findChangedSince(LocalDateTime since) {
+        List<StripeLinkedUser<T>> links = new ArrayList<>();
+        String sql = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE updated_at >= ? ORDER BY updated_at, id";
+
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
+
+            stmt.setTimestamp(1, Timestamp.valueOf(since));
+            stmt.setFetchSize(DEFAULT_FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    links.add(mapRowToUserStripeLinkEntity(rs));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_linked_user", e);
+        }
+
+        return links;
+    }
+
     @Override
     public List<StripeLinkedUser<T>> findAllLinksByUserId(T userId) {
         List<StripeLinkedUser<T>> links = new ArrayList<>();
-        String sql = "SELECT * FROM stripe_linked_user WHERE user_id = ? AND deleted = FALSE";
+        String sql = "SELECT " + COLUMNS + " FROM stripe_linked_user WHERE user_id = ? AND deleted = FALSE";
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
 
-            stmt.setObject(1, userId);
+            userIdCodec.bind(stmt, 1, userId);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
                     links.add(mapRowToUserStripeLinkEntity(rs));
@@ -86,12 +331,10 @@ public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRep
 
     @Override
     public Optional<StripeLinkedUser<T>> findLatestLinkByUserId(T userId) {
-        String sql = "SELECT * FROM stripe_linked_user WHERE user_id = ? AND deleted = FALSE ORDER BY updated_at DESC LIMIT 1";
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(FIND_LATEST_SQL);
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-
-            stmt.setObject(1, userId);
+            userIdCodec.bind(stmt, 1, userId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
                     return Optional.ofNullable(mapRowToUserStripeLinkEntity(rs));
@@ -106,14 +349,11 @@ public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRep
 
     @Override
     public int insert(StripeLinkedUser<T> stripeLinkedUser) {
-        String sql = "INSERT INTO stripe_linked_user (id, user_id, stripe_customer_id) VALUES (?, ?, ?)";
 
-        try (Connection conn = dataSource.getConnection();
-            PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(INSERT_SQL);
 
-            stmt.setString(1, stripeLinkedUser.getId());
-            stmt.setObject(2, stripeLinkedUser.getUserId());
-            stmt.setString(3, stripeLinkedUser.getStripeCustomerId());
+            bindInsert(stmt, stripeLinkedUser);
             int affectedRows = stmt.executeUpdate();
 
             if (affectedRows == 0) {
@@ -122,19 +362,121 @@ public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRep
 
             return affectedRows;
         } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new StripeLinkedUserConflictException("A primary stripe_linked_user already exists for user " + stripeLinkedUser.getUserId(), e);
+            }
             throw new RuntimeException("Error creating a new stripe_linked_user", e);
         }
     }
 
+    @Override
+    public int insertAll(Collection<StripeLinkedUser<T>> stripeLinkedUsers) {
+        if (stripeLinkedUsers.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return TransactionTemplate.execute(dataSource, session -> {
+                PreparedStatement stmt = session.prepare(INSERT_SQL);
+                int affectedRows = 0;
+                int pending = 0;
+                for (StripeLinkedUser<T> stripeLinkedUser : stripeLinkedUsers) {
+                    bindInsert(stmt, stripeLinkedUser);
+                    stmt.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        affectedRows += sum(stmt.executeBatch());
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    affectedRows += sum(stmt.executeBatch());
+                }
+                return affectedRows;
+            });
+        } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                throw new StripeLinkedUserConflictException("A primary stripe_linked_user already exists for one of the batched users", e);
+            }
+            throw new RuntimeException("Error creating stripe_linked_user batch", e);
+        }
+    }
+
+    @Override
+    public StripeLinkedUser<T> insertIfAbsent(StripeLinkedUser<T> stripeLinkedUser) {
+        if (Boolean.FALSE.equals(stripeLinkedUser.getIsPrimary())) {
+            insert(stripeLinkedUser);
+            return stripeLinkedUser;
+        }
+        Objects.requireNonNull(stripeLinkedUser.getUserId(), "userId");
+        Objects.requireNonNull(stripeLinkedUser.getStripeCustomerId(), "stripeCustomerId");
+
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            String sql = dialect(session.getConnection()).insertPrimaryIfAbsent(linkIdCodec.sqlType(), userIdCodec.sqlType());
+            PreparedStatement stmt = session.prepare(sql, GENERATED_COLUMNS);
+            linkIdCodec.bind(stmt, 1, stripeLinkedUser.getId());
+            userIdCodec.bind(stmt, 2, stripeLinkedUser.getUserId());
+            stmt.setString(3, stripeLinkedUser.getStripeCustomerId());
+
+            if (stmt.executeUpdate() > 0) {
+                stripeLinkedUser.setIsPrimary(true);
+                stripeLinkedUser.setDeleted(false);
+                stripeLinkedUser.setVersion(0L);
+                readGeneratedColumns(stmt, stripeLinkedUser);
+                return stripeLinkedUser;
+            }
+        } catch (SQLException e) {
+            // A dialect without an insert-if-absent form, or a concurrent insert the statement did not see, reports
+            // the existing primary link as a unique violation.
+            if (!isUniqueViolation(e)) {
+                throw new RuntimeException("Error creating a new stripe_linked_user", e);
+            }
+        }
+
+        // Lost the race against another primary link; only this path needs a second round trip.
+        return findPrimaryByUserId(stripeLinkedUser.getUserId())
+                .orElseThrow(() -> new IllegalStateException("Primary stripe_linked_user disappeared for user " + stripeLinkedUser.getUserId()));
+    }
+
     @Override
     public int update(StripeLinkedUser<T> link) {
-        String sql = "UPDATE stripe_linked_user SET stripe_customer_id = ?, updated_at = CURRENT_TIMESTAMP WHERE user_id = ? AND deleted = FALSE";
+        if (link.getId() == null) {
+            return updateByUserId(link);
+        }
+
+        String sql = link.getVersion() == null
+                ? "UPDATE stripe_linked_user SET stripe_customer_id = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP WHERE id = ? AND deleted = FALSE"
+                : "UPDATE stripe_linked_user SET stripe_customer_id = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP WHERE id = ? AND deleted = FALSE AND version = ?";
+
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(sql);
+
+            stmt.setString(1, link.getStripeCustomerId());
+            linkIdCodec.bind(stmt, 2, link.getId());
+            if (link.getVersion() != null) {
+                stmt.setLong(3, link.getVersion());
+            }
 
-        try (Connection conn = dataSource.getConnection();
-            PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int affectedRows = stmt.executeUpdate();
+            if (affectedRows > 0 && link.getVersion() != null) {
+                link.setVersion(link.getVersion() + 1);
+            }
+            return affectedRows;
+        } catch (SQLException e) {
+            throw new RuntimeException("Error updating stripe_linked_user", e);
+        }
+    }
+
+    /**
+     * Links without an ID are updated by user ID, as earlier versions did.
+     */
+    private int updateByUserId(StripeLinkedUser<T> link) {
+        String sql = "UPDATE stripe_linked_user SET stripe_customer_id = ?, version = version + 1, updated_at = CURRENT_TIMESTAMP WHERE user_id = ? AND deleted = FALSE";
+
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(sql);
 
             stmt.setString(1, link.getStripeCustomerId());
-            stmt.setObject(2, link.getUserId());
+            userIdCodec.bind(stmt, 2, link.getUserId());
 
             return stmt.executeUpdate();
         } catch (SQLException e) {
@@ -144,27 +486,128 @@ public class DefaultStripeLinkedUserRepository<T> implements StripeLinkedUserRep
 
     @Override
     public int delete(StripeLinkedUser<T> link) {
-        String sql = "UPDATE stripe_linked_user SET deleted = TRUE, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
+        String sql = "UPDATE stripe_linked_user SET deleted = TRUE, version = version + 1, updated_at = CURRENT_TIMESTAMP WHERE id = ?";
 
-        try (Connection conn = dataSource.getConnection();
-            PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(sql);
 
-            stmt.setString(1, link.getId());
+            linkIdCodec.bind(stmt, 1, link.getId());
             return stmt.executeUpdate();
         } catch (SQLException e) {
             throw new RuntimeException("Error deleting stripe_linked_user", e);
         }
     }
 
+    /**
+     * Runs the work in one transaction on one connection. Repository calls inside the work reuse the connection
+     * and the statements prepared on it; nested calls join the outer transaction.
+     */
+    @Override
+    public <R> R inTransaction(Supplier<R> work) {
+        return transactionTemplate.execute(work);
+    }
+
+    /**
+     * Pulls pages of links ordered by ID, resuming after the last ID of the previous page.
+     * ULIDs sort by creation time, so rows inserted during iteration are picked up by the last pages.
+     */
+    private class KeysetSpliterator extends Spliterators.AbstractSpliterator<StripeLinkedUser<T>> {
+
+        private final int pageSize;
+        private final ArrayDeque<StripeLinkedUser<T>> page = new ArrayDeque<>();
+        private String lastId;
+        private boolean exhausted;
+
+        KeysetSpliterator(int pageSize) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT);
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super StripeLinkedUser<T>> action) {
+            if (page.isEmpty() && !exhausted) {
+                List<StripeLinkedUser<T>> links = findPageAfter(lastId, pageSize);
+                exhausted = links.size() < pageSize;
+                if (!links.isEmpty()) {
+                    lastId = links.get(links.size() - 1).getId();
+                    page.addAll(links);
+                }
+            }
+
+            StripeLinkedUser<T> link = page.poll();
+            if (link == null) {
+                return false;
+            }
+            action.accept(link);
+            return true;
+        }
+    }
+
+    UserIdCodec<T> userIdCodec() {
+        return userIdCodec;
+    }
+
+    private SqlDialect dialect(Connection conn) throws SQLException {
+        SqlDialect current = dialect;
+        if (current == null) {
+            current = SqlDialect.detect(conn);
+            dialect = current;
+        }
+        return current;
+    }
+
+    /**
+     * Drivers that only return auto-increment keys (e.g. MySQL) yield no row here; the fields then stay unset.
+     */
+    private void readGeneratedColumns(PreparedStatement stmt, StripeLinkedUser<T> link) throws SQLException {
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            if (keys.next() && keys.getMetaData().getColumnCount() == GENERATED_COLUMNS.length) {
+                link.setCreatedAt(keys.getTimestamp(1).toLocalDateTime());
+                link.setUpdatedAt(keys.getTimestamp(2).toLocalDateTime());
+                link.setVersion(keys.getLong(3));
+            }
+        }
+    }
+
+    private void bindInsert(PreparedStatement stmt, StripeLinkedUser<T> stripeLinkedUser) throws SQLException {
+        linkIdCodec.bind(stmt, 1, stripeLinkedUser.getId());
+        userIdCodec.bind(stmt, 2, stripeLinkedUser.getUserId());
+        stmt.setString(3, stripeLinkedUser.getStripeCustomerId());
+        stmt.setBoolean(4, !Boolean.FALSE.equals(stripeLinkedUser.getIsPrimary()));
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * Drivers may report {@link java.sql.Statement#SUCCESS_NO_INFO} for batched rows; count those as one row each.
+     */
+    private static int sum(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count < 0 ? 1 : count;
+        }
+        return total;
+    }
+
+    /**
+     * SQLState 23505 is the standard unique violation (H2, PostgreSQL); MySQL reports 23000 with error code 1062.
+     */
+    private static boolean isUniqueViolation(SQLException e) {
+        return "23505".equals(e.getSQLState()) || ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062);
+    }
+
     private StripeLinkedUser<T> mapRowToUserStripeLinkEntity(ResultSet rs) throws SQLException {
         StripeLinkedUser<T> StripeLinkedUser = new StripeLinkedUser<>();
-        StripeLinkedUser.setId(rs.getString("id"));
-        StripeLinkedUser.setUserId((T) rs.getObject("user_id"));
-        StripeLinkedUser.setStripeCustomerId(rs.getString("stripe_customer_id"));
-        StripeLinkedUser.setIsPrimary(rs.getBoolean("is_primary"));
-        StripeLinkedUser.setDeleted(rs.getBoolean("deleted"));
-        StripeLinkedUser.setCreatedAt(rs.getTimestamp("created_at").toLocalDateTime());
-        StripeLinkedUser.setUpdatedAt(rs.getTimestamp("updated_at").toLocalDateTime());
+        StripeLinkedUser.setId(linkIdCodec.read(rs, 1));
+        StripeLinkedUser.setUserId(userIdCodec.read(rs, 2));
+        StripeLinkedUser.setStripeCustomerId(rs.getString(3));
+        StripeLinkedUser.setIsPrimary(rs.getBoolean(4));
+        StripeLinkedUser.setDeleted(rs.getBoolean(5));
+        StripeLinkedUser.setCreatedAt(rs.getTimestamp(6).toLocalDateTime());
+        StripeLinkedUser.setUpdatedAt(rs.getTimestamp(7).toLocalDateTime());
+        StripeLinkedUser.setVersion(rs.getLong(8));
         return StripeLinkedUser;
     }
 
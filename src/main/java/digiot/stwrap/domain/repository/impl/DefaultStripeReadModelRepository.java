@@ -0,0 +1,392 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.model.LocalInvoice;
+import digiot.stwrap.domain.model.LocalPaymentMethod;
+import digiot.stwrap.domain.model.LocalSubscription;
+import digiot.stwrap.domain.model.LocalSubscriptionItem;
+import digiot.stwrap.domain.repository.StripeReadModelRepository;
+import digiot.stwrap.infrastructure.jdbc.JdbcSession;
+import digiot.stwrap.infrastructure.jdbc.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Default JDBC implementation of the StripeReadModelRepository, over the stripe_subscription,
+ * stripe_subscription_item, stripe_invoice and stripe_payment_method tables.
+ * <p>
+ * A batch is applied in one transaction: the stored event times of the batch are read with one IN query per
+ * {@value #BATCH_SIZE} IDs, then new rows are inserted and newer rows updated with JDBC batches. The update repeats the
+ * event time check in its WHERE clause, so a row written concurrently from a newer event is kept.
+ */
+public class DefaultStripeReadModelRepository implements StripeReadModelRepository {
+
+    /**
+     * Maximum number of IDs per IN list and rows per JDBC batch.
+     */
+    static final int BATCH_SIZE = 500;
+
+    private static final String[] SUBSCRIPTION_COLUMNS = {
+            "stripe_customer_id", "status", "cancel_at_period_end", "cancel_at", "current_period_start", "current_period_end", "event_created"};
+    private static final String[] INVOICE_COLUMNS = {
+            "stripe_customer_id", "subscription_id", "status", "currency", "amount_due", "amount_paid", "created", "event_created"};
+    private static final String[] PAYMENT_METHOD_COLUMNS = {
+            "stripe_customer_id", "type", "card_brand", "card_last4", "card_exp_month", "card_exp_year", "event_created"};
+
+    private static final String INSERT_ITEM_SQL = "INSERT INTO stripe_subscription_item (id, subscription_id, plan_id, quantity) VALUES (?, ?, ?, ?)";
+
+    private final DataSource dataSource;
+    private final TransactionTemplate transactionTemplate;
+
+    public DefaultStripeReadModelRepository(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.transactionTemplate = new TransactionTemplate(dataSource);
+    }
+
+    @Override
+    public int applySubscriptions(Collection<LocalSubscription> subscriptions) {
+        if (subscriptions.isEmpty()) {
+            return 0;
+        }
+        try {
+            return TransactionTemplate.execute(dataSource, session -> {
+                List<LocalSubscription> written = apply(session, "stripe_subscription", SUBSCRIPTION_COLUMNS, subscriptions,
+                        LocalSubscription::getId, LocalSubscription::getEventCreated, DefaultStripeReadModelRepository::bindSubscription);
+                replaceItems(session, written);
+                return written.size();
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException("Error applying stripe_subscription batch", e);
+        }
+    }
+
+    @Override
+    public int applyInvoices(Collection<LocalInvoice> invoices) {
+        if (invoices.isEmpty()) {
+            return 0;
+        }
+        try {
+            return TransactionTemplate.execute(dataSource, session -> apply(session, "stripe_invoice", INVOICE_COLUMNS, invoices,
+                    LocalInvoice::getId, LocalInvoice::getEventCreated, DefaultStripeReadModelRepository::bindInvoice).size());
+        } catch (SQLException e) {
+            throw new RuntimeException("Error applying stripe_invoice batch", e);
+        }
+    }
+
+    @Override
+    public int applyPaymentMethods(Collection<LocalPaymentMethod> paymentMethods) {
+        if (paymentMethods.isEmpty()) {
+            return 0;
+        }
+        try {
+            return TransactionTemplate.execute(dataSource, session -> apply(session, "stripe_payment_method", PAYMENT_METHOD_COLUMNS, paymentMethods,
+                    LocalPaymentMethod::getId, LocalPaymentMethod::getEventCreated, DefaultStripeReadModelRepository::bindPaymentMethod).size());
+        } catch (SQLException e) {
+            throw new RuntimeException("Error applying stripe_payment_method batch", e);
+        }
+    }
+
+    @Override
+    public List<LocalSubscription> findSubscriptionsByCustomerId(String stripeCustomerId, Collection<String> statuses) {
+        if (statuses.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String sql = "SELECT id, " + String.join(", ", SUBSCRIPTION_COLUMNS) + " FROM stripe_subscription"
+                + " WHERE stripe_customer_id = ? AND status IN (" + placeholders(statuses.size()) + ") ORDER BY current_period_end DESC";
+
+        Map<String, LocalSubscription> subscriptions = new LinkedHashMap<>();
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
+            int index = 1;
+            stmt.setString(index++, stripeCustomerId);
+            for (String status : statuses) {
+                stmt.setString(index++, status);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LocalSubscription subscription = mapSubscription(rs);
+                    subscriptions.put(subscription.getId(), subscription);
+                }
+            }
+            readItems(session, subscriptions);
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_subscription", e);
+        }
+        return new ArrayList<>(subscriptions.values());
+    }
+
+    @Override
+    public List<LocalInvoice> findInvoicesByCustomerId(String stripeCustomerId) {
+        String sql = "SELECT id, " + String.join(", ", INVOICE_COLUMNS) + " FROM stripe_invoice WHERE stripe_customer_id = ? ORDER BY created DESC";
+
+        List<LocalInvoice> invoices = new ArrayList<>();
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
+            stmt.setString(1, stripeCustomerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LocalInvoice invoice = new LocalInvoice();
+                    invoice.setId(rs.getString("id"));
+                    invoice.setStripeCustomerId(rs.getString("stripe_customer_id"));
+                    invoice.setSubscriptionId(rs.getString("subscription_id"));
+                    invoice.setStatus(rs.getString("status"));
+                    invoice.setCurrency(rs.getString("currency"));
+                    invoice.setAmountDue(getLong(rs, "amount_due"));
+                    invoice.setAmountPaid(getLong(rs, "amount_paid"));
+                    invoice.setCreated(getLong(rs, "created"));
+                    invoice.setEventCreated(getLong(rs, "event_created"));
+                    invoices.add(invoice);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_invoice", e);
+        }
+        return invoices;
+    }
+
+    @Override
+    public List<LocalPaymentMethod> findPaymentMethodsByCustomerId(String stripeCustomerId) {
+        String sql = "SELECT id, " + String.join(", ", PAYMENT_METHOD_COLUMNS) + " FROM stripe_payment_method WHERE stripe_customer_id = ? ORDER BY id";
+
+        List<LocalPaymentMethod> paymentMethods = new ArrayList<>();
+        try (JdbcSession session = JdbcSession.open(dataSource, true)) {
+            PreparedStatement stmt = session.prepare(sql);
+            stmt.setString(1, stripeCustomerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LocalPaymentMethod paymentMethod = new LocalPaymentMethod();
+                    paymentMethod.setId(rs.getString("id"));
+                    paymentMethod.setStripeCustomerId(rs.getString("stripe_customer_id"));
+                    paymentMethod.setType(rs.getString("type"));
+                    paymentMethod.setCardBrand(rs.getString("card_brand"));
+                    paymentMethod.setCardLast4(rs.getString("card_last4"));
+                    paymentMethod.setCardExpMonth(getLong(rs, "card_exp_month"));
+                    paymentMethod.setCardExpYear(getLong(rs, "card_exp_year"));
+                    paymentMethod.setEventCreated(getLong(rs, "event_created"));
+                    paymentMethods.add(paymentMethod);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error querying stripe_payment_method", e);
+        }
+        return paymentMethods;
+    }
+
+    /**
+     * Runs the work in one transaction on one connection; nested calls join the outer transaction.
+     */
+    @Override
+    public <R> R inTransaction(Supplier<R> work) {
+        return transactionTemplate.execute(work);
+    }
+
+    /**
+     * Inserts the rows that are not stored yet and updates those whose event is not older than the stored one.
+     *
+     * @return The rows written.
+     */
+    private static <R> List<R> apply(JdbcSession session, String table, String[] columns, Collection<R> rows,
+                                     Function<R, String> id, Function<R, Long> eventCreated, RowBinder<R> binder) throws SQLException {
+        List<R> all = new ArrayList<>(rows);
+        Map<String, Long> stored = readEventCreated(session, table, all, id);
+
+        List<R> inserts = new ArrayList<>();
+        List<R> updates = new ArrayList<>();
+        for (R row : all) {
+            Long current = stored.get(id.apply(row));
+            if (current == null) {
+                inserts.add(row);
+            } else if (eventCreated.apply(row) >= current) {
+                updates.add(row);
+            }
+        }
+
+        List<R> written = new ArrayList<>(inserts);
+        PreparedStatement insert = session.prepare("INSERT INTO " + table + " (id, " + String.join(", ", columns) + ") VALUES (" + placeholders(columns.length + 1) + ")");
+        executeBatches(insert, inserts, (stmt, row) -> {
+            stmt.setString(1, id.apply(row));
+            binder.bind(stmt, 2, row);
+        });
+
+        PreparedStatement update = session.prepare("UPDATE " + table + " SET " + String.join(" = ?, ", columns) + " = ? WHERE id = ? AND event_created <= ?");
+        int[] counts = executeBatches(update, updates, (stmt, row) -> {
+            binder.bind(stmt, 1, row);
+            stmt.setString(columns.length + 1, id.apply(row));
+            stmt.setLong(columns.length + 2, eventCreated.apply(row));
+        });
+        for (int i = 0; i < updates.size(); i++) {
+            if (counts[i] != 0) {
+                written.add(updates.get(i));
+            }
+        }
+        return written;
+    }
+
+    private static <R> Map<String, Long> readEventCreated(JdbcSession session, String table, List<R> rows, Function<R, String> id) throws SQLException {
+        Map<String, Long> stored = new HashMap<>();
+        for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+            List<R> chunk = rows.subList(from, Math.min(from + BATCH_SIZE, rows.size()));
+            PreparedStatement stmt = session.prepare("SELECT id, event_created FROM " + table + " WHERE id IN (" + placeholders(chunk.size()) + ")");
+            for (int i = 0; i < chunk.size(); i++) {
+                stmt.setString(i + 1, id.apply(chunk.get(i)));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    stored.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Replaces the items of the written subscriptions with the items they carry.
+     */
+    private static void replaceItems(JdbcSession session, List<LocalSubscription> subscriptions) throws SQLException {
+        for (int from = 0; from < subscriptions.size(); from += BATCH_SIZE) {
+            List<LocalSubscription> chunk = subscriptions.subList(from, Math.min(from + BATCH_SIZE, subscriptions.size()));
+            PreparedStatement delete = session.prepare("DELETE FROM stripe_subscription_item WHERE subscription_id IN (" + placeholders(chunk.size()) + ")");
+            for (int i = 0; i < chunk.size(); i++) {
+                delete.setString(i + 1, chunk.get(i).getId());
+            }
+            delete.executeUpdate();
+        }
+
+        List<LocalSubscriptionItem> items = new ArrayList<>();
+        for (LocalSubscription subscription : subscriptions) {
+            if (subscription.getItems() != null) {
+                items.addAll(subscription.getItems());
+            }
+        }
+        executeBatches(session.prepare(INSERT_ITEM_SQL), items, (stmt, item) -> {
+            stmt.setString(1, item.getId());
+            stmt.setString(2, item.getSubscriptionId());
+            stmt.setString(3, item.getPlanId());
+            setLong(stmt, 4, item.getQuantity());
+        });
+    }
+
+    private static void readItems(JdbcSession session, Map<String, LocalSubscription> subscriptions) throws SQLException {
+        for (LocalSubscription subscription : subscriptions.values()) {
+            subscription.setItems(new ArrayList<>());
+        }
+        List<String> ids = new ArrayList<>(subscriptions.keySet());
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+            PreparedStatement stmt = session.prepare("SELECT id, subscription_id, plan_id, quantity FROM stripe_subscription_item"
+                    + " WHERE subscription_id IN (" + placeholders(chunk.size()) + ") ORDER BY id");
+            for (int i = 0; i < chunk.size(); i++) {
+                stmt.setString(i + 1, chunk.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LocalSubscriptionItem item = new LocalSubscriptionItem();
+                    item.setId(rs.getString("id"));
+                    item.setSubscriptionId(rs.getString("subscription_id"));
+                    item.setPlanId(rs.getString("plan_id"));
+                    item.setQuantity(getLong(rs, "quantity"));
+                    subscriptions.get(item.getSubscriptionId()).getItems().add(item);
+                }
+            }
+        }
+    }
+
+    private static <R> int[] executeBatches(PreparedStatement stmt, List<R> rows, StatementBinder<R> binder) throws SQLException {
+        int[] counts = new int[rows.size()];
+        int pending = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            binder.bind(stmt, rows.get(i));
+            stmt.addBatch();
+            if (++pending == BATCH_SIZE || i == rows.size() - 1) {
+                int[] batch = stmt.executeBatch();
+                System.arraycopy(batch, 0, counts, i + 1 - pending, batch.length);
+                pending = 0;
+            }
+        }
+        return counts;
+    }
+
+    private static LocalSubscription mapSubscription(ResultSet rs) throws SQLException {
+        LocalSubscription subscription = new LocalSubscription();
+        subscription.setId(rs.getString("id"));
+        subscription.setStripeCustomerId(rs.getString("stripe_customer_id"));
+        subscription.setStatus(rs.getString("status"));
+        boolean cancelAtPeriodEnd = rs.getBoolean("cancel_at_period_end");
+        subscription.setCancelAtPeriodEnd(rs.wasNull() ? null : cancelAtPeriodEnd);
+        subscription.setCancelAt(getLong(rs, "cancel_at"));
+        subscription.setCurrentPeriodStart(getLong(rs, "current_period_start"));
+        subscription.setCurrentPeriodEnd(getLong(rs, "current_period_end"));
+        subscription.setEventCreated(getLong(rs, "event_created"));
+        return subscription;
+    }
+
+    private static void bindSubscription(PreparedStatement stmt, int index, LocalSubscription subscription) throws SQLException {
+        stmt.setString(index, subscription.getStripeCustomerId());
+        stmt.setString(index + 1, subscription.getStatus());
+        stmt.setObject(index + 2, subscription.getCancelAtPeriodEnd(), Types.BOOLEAN);
+        setLong(stmt, index + 3, subscription.getCancelAt());
+        setLong(stmt, index + 4, subscription.getCurrentPeriodStart());
+        setLong(stmt, index + 5, subscription.getCurrentPeriodEnd());
+        setLong(stmt, index + 6, subscription.getEventCreated());
+    }
+
+    private static void bindInvoice(PreparedStatement stmt, int index, LocalInvoice invoice) throws SQLException {
+        stmt.setString(index, invoice.getStripeCustomerId());
+        stmt.setString(index + 1, invoice.getSubscriptionId());
+        stmt.setString(index + 2, invoice.getStatus());
+        stmt.setString(index + 3, invoice.getCurrency());
+        setLong(stmt, index + 4, invoice.getAmountDue());
+        setLong(stmt, index + 5, invoice.getAmountPaid());
+        setLong(stmt, index + 6, invoice.getCreated());
+        setLong(stmt, index + 7, invoice.getEventCreated());
+    }
+
+    private static void bindPaymentMethod(PreparedStatement stmt, int index, LocalPaymentMethod paymentMethod) throws SQLException {
+        stmt.setString(index, paymentMethod.getStripeCustomerId());
+        stmt.setString(index + 1, paymentMethod.getType());
+        stmt.setString(index + 2, paymentMethod.getCardBrand());
+        stmt.setString(index + 3, paymentMethod.getCardLast4());
+        setLong(stmt, index + 4, paymentMethod.getCardExpMonth());
+        setLong(stmt, index + 5, paymentMethod.getCardExpYear());
+        setLong(stmt, index + 6, paymentMethod.getEventCreated());
+    }
+
+    private static void setLong(PreparedStatement stmt, int index, Long value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(index, Types.BIGINT);
+        } else {
+            stmt.setLong(index, value);
+        }
+    }
+
+    private static Long getLong(ResultSet rs, String column) throws SQLException {
+        long value = rs.getLong(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    @FunctionalInterface
+    private interface RowBinder<R> {
+        void bind(PreparedStatement stmt, int index, R row) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface StatementBinder<R> {
+        void bind(PreparedStatement stmt, R row) throws SQLException;
+    }
+}
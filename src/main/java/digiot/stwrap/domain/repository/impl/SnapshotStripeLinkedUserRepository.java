@@ -0,0 +1,482 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.codec.UserIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodecs;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.concurrent.AsyncExecutors;
+import digiot.stwrap.infrastructure.snapshot.LinkSnapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Decorator that answers primary link lookups from a memory-mapped {@link LinkSnapshot} file, so a node can serve
+ * lookups right after boot without a database query.
+ * <p>
+ * {@link #refresh()} builds the snapshot from the repository the first time, and afterwards only reads the rows
+ * changed since the snapshot's updated_at watermark, minus a small overlap for rows committed late. A row committed
+ * later than the overlap after its updated_at is missed by the incremental refresh, so the snapshot is rebuilt in
+ * full once the full refresh interval has passed, and on the first refresh after a restart. Lookups fall back
+ * to the repository when there is no snapshot, when it was not refreshed within the maximum staleness, when the user
+ * is not in it, or when the user was written through this repository since the last refresh.
+ * Writes by other nodes become visible with the next refresh, so the staleness bound is the same as for a cache TTL.
+ * Writes inside {@link #inTransaction(Supplier)} stay marked until a refresh that started after the commit; a
+ * transaction opened around this repository by other means is not tracked.
+ * <p>
+ * Probing the snapshot allocates nothing, but a lookup still formats non-String user IDs as text and materializes
+ * the returned link.
+ */
+public class SnapshotStripeLinkedUserRepository<T> implements StripeLinkedUserRepository<T>, AutoCloseable {
+
+    private static final String PREFIX = "stwrap.snapshot.";
+
+    private final DefaultStripeLinkedUserRepository<T> delegate;
+    private final UserIdCodec<T> userIdCodec;
+    private final Path path;
+    private final long maxStalenessMillis;
+    private final long watermarkOverlapMillis;
+    private final long fullRefreshMillis;
+    private final LongSupplier clock;
+
+    private volatile LinkSnapshot snapshot;
+    private volatile long refreshedAt;
+    /** When this instance last rebuilt the snapshot in full, guarded by {@link #refresh()}. */
+    private long rebuiltAt;
+
+    /**
+     * Users written through this repository, with the write sequence at the time. Entries older than the start
+     * of the last refresh are removed when that refresh is installed.
+     */
+    private final ConcurrentMap<T, Long> dirty = new ConcurrentHashMap<>();
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    /**
+     * Links written inside the current thread's {@link #inTransaction(Supplier)}. They are marked again once the
+     * transaction has ended, because a refresh that ran before the commit did not see them.
+     */
+    private final ThreadLocal<List<StripeLinkedUser<T>>> transactionWrites = new ThreadLocal<>();
+    private volatile long unknownWriteSequence;
+    private volatile long snapshotSequence;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a snapshot repository configured by stwrap.snapshot.path, stwrap.snapshot.max-staleness-seconds,
+     * stwrap.snapshot.watermark-overlap-seconds and stwrap.snapshot.full-refresh-seconds, loading the snapshot file
+     * if it exists.
+     *
+     * @param delegate The repository to build the snapshot from and to fall back to. It needs an explicit
+     *                 UserIdCodec, since the snapshot stores user IDs as text.
+     */
+    public SnapshotStripeLinkedUserRepository(DefaultStripeLinkedUserRepository<T> delegate) {
+        this(delegate,
+                Paths.get(PropertiesLoader.getProperty(PREFIX + "path", "stwrap-linked-user.snapshot")),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "max-staleness-seconds", "300"))),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "watermark-overlap-seconds", "5"))),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "full-refresh-seconds", "3600"))),
+                System::currentTimeMillis);
+    }
+
+    public SnapshotStripeLinkedUserRepository(DefaultStripeLinkedUserRepository<T> delegate, Path path, Duration maxStaleness, Duration watermarkOverlap, Duration fullRefresh, LongSupplier clock) {
+        if (delegate.userIdCodec() == UserIdCodecs.<T>ofObject()) {
+            throw new IllegalArgumentException("The snapshot needs a delegate with an explicit UserIdCodec to parse user IDs");
+        }
+        this.delegate = delegate;
+        this.userIdCodec = delegate.userIdCodec();
+        this.path = path;
+        this.maxStalenessMillis = maxStaleness.toMillis();
+        this.watermarkOverlapMillis = watermarkOverlap.toMillis();
+        this.fullRefreshMillis = fullRefresh.toMillis();
+        this.clock = clock;
+        load();
+    }
+
+    /**
+     * Maps the snapshot file if it exists. A snapshot loaded from disk counts as refreshed when it was built,
+     * so an old file is only used once it has been refreshed.
+     */
+    private void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            LinkSnapshot loaded = LinkSnapshot.open(path);
+            snapshot = loaded;
+            refreshedAt = loaded.getBuiltAt();
+        } catch (IOException e) {
+            // A corrupt or incompatible file is rebuilt by the next refresh.
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Brings the snapshot up to date, incrementally when a snapshot exists that this instance rebuilt within the full
+     * refresh interval.
+     *
+     * @return The number of primary links in the new snapshot.
+     */
+    public synchronized int refresh() {
+        long sequence = writeSequence.get();
+        long startedAt = clock.getAsLong();
+        LinkSnapshot current = snapshot;
+
+        boolean full = current == null || rebuiltAt == 0 || startedAt - rebuiltAt >= fullRefreshMillis;
+
+        Map<String, LinkSnapshot.Entry> entries = new LinkedHashMap<>();
+        long watermark;
+        if (full) {
+            watermark = 0;
+            try (Stream<StripeLinkedUser<T>> links = delegate.streamAll()) {
+                for (StripeLinkedUser<T> link : (Iterable<StripeLinkedUser<T>>) links::iterator) {
+                    watermark = Math.max(watermark, apply(entries, link));
+                }
+            }
+        } else {
+            watermark = current.getWatermark();
+            current.forEach(entry -> entries.put(entry.getUserId(), entry));
+            LocalDateTime since = toLocalDateTime(Math.max(0, watermark - watermarkOverlapMillis));
+            for (StripeLinkedUser<T> link : delegate.findChangedSince(since)) {
+                watermark = Math.max(watermark, apply(entries, link));
+            }
+        }
+
+        try {
+            LinkSnapshot.write(path, entries.values(), watermark, startedAt);
+            snapshot = LinkSnapshot.open(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing link snapshot " + path, e);
+        }
+        refreshedAt = startedAt;
+        if (full) {
+            rebuiltAt = startedAt;
+        }
+        snapshotSequence = sequence;
+        dirty.entrySet().removeIf(written -> written.getValue() <= sequence);
+        return entries.size();
+    }
+
+    /**
+     * Applies one changed row: active primary links replace the user's entry, any other row removes the entry
+     * if it is the same link.
+     *
+     * @return The row's updated_at in epoch milliseconds.
+     */
+    private long apply(Map<String, LinkSnapshot.Entry> entries, StripeLinkedUser<T> link) {
+        String userId = userIdCodec.format(link.getUserId());
+        if (Boolean.TRUE.equals(link.getIsPrimary()) && !Boolean.TRUE.equals(link.getDeleted())) {
+            entries.put(userId, new LinkSnapshot.Entry(link.getId(), userId, link.getStripeCustomerId(),
+                    toMillis(link.getCreatedAt()), toMillis(link.getUpdatedAt()), link.getVersion() == null ? 0 : link.getVersion()));
+        } else {
+            LinkSnapshot.Entry existing = entries.get(userId);
+            if (existing != null && existing.getLinkId().equals(link.getId())) {
+                entries.remove(userId);
+            }
+        }
+        return toMillis(link.getUpdatedAt());
+    }
+
+    /**
+     * Refreshes the snapshot on a daemon thread at the given interval, starting with an immediate refresh.
+     *
+     * @param interval The time between refreshes.
+     */
+    public synchronized void start(Duration interval) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(AsyncExecutors.daemonThreadFactory("stwrap-snapshot-refresh"));
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                // Lookups fall back to the repository until a refresh succeeds.
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes at the interval configured by stwrap.snapshot.refresh-seconds (default 60).
+     */
+    public void start() {
+        start(Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "refresh-seconds", "60"))));
+    }
+
+    /**
+     * Stops the periodic refresh.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public Optional<StripeLinkedUser<T>> findPrimaryByUserId(T userId) {
+        LinkSnapshot.Entry entry = lookup(userId);
+        if (entry == null) {
+            return delegate.findPrimaryByUserId(userId);
+        }
+        return Optional.of(toLink(userId, entry));
+    }
+
+    @Override
+    public Map<T, StripeLinkedUser<T>> findPrimaryByUserIds(Collection<T> userIds) {
+        Map<T, StripeLinkedUser<T>> links = new HashMap<>();
+        List<T> misses = new ArrayList<>();
+        for (T userId : userIds) {
+            LinkSnapshot.Entry entry = lookup(userId);
+            if (entry != null) {
+                links.put(userId, toLink(userId, entry));
+            } else {
+                misses.add(userId);
+            }
+        }
+        if (!misses.isEmpty()) {
+            links.putAll(delegate.findPrimaryByUserIds(misses));
+        }
+        return links;
+    }
+
+    /**
+     * Finds the Stripe customer ID of a user's primary link, reading only that field from the snapshot.
+     *
+     * @param userId The unique identifier of the user.
+     * @return The Stripe customer ID, or empty if the user has no active primary link.
+     */
+    public Optional<String> findStripeCustomerIdByUserId(T userId) {
+        LinkSnapshot current = usableSnapshot(userId);
+        if (current != null) {
+            String stripeCustomerId = current.findStripeCustomerId(userIdCodec.format(userId));
+            if (stripeCustomerId != null) {
+                return Optional.of(stripeCustomerId);
+            }
+        }
+        return delegate.findPrimaryByUserId(userId).map(StripeLinkedUser::getStripeCustomerId);
+    }
+
+    /**
+     * Finds the user linked to a Stripe customer, reading only the user ID from the snapshot.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @return The user ID, or empty if no active link points at the customer.
+     */
+    public Optional<T> findUserIdByStripeCustomerId(String stripeCustomerId) {
+        LinkSnapshot current = usableSnapshot();
+        if (current != null) {
+            String userId = current.findUserId(stripeCustomerId);
+            if (userId != null) {
+                T parsed = userIdCodec.parse(userId);
+                if (!dirty.containsKey(parsed)) {
+                    return Optional.of(parsed);
+                }
+            }
+        }
+        return delegate.findByStripeCustomerId(stripeCustomerId).map(StripeLinkedUser::getUserId);
+    }
+
+    /**
+     * Primary links are answered from the snapshot; the snapshot holds no other links, so misses go to the repository.
+     */
+    @Override
+    public Optional<StripeLinkedUser<T>> findByStripeCustomerId(String stripeCustomerId) {
+        StripeLinkedUser<T> link = lookupByStripeCustomerId(stripeCustomerId);
+        return link != null ? Optional.of(link) : delegate.findByStripeCustomerId(stripeCustomerId);
+    }
+
+    @Override
+    public Map<String, StripeLinkedUser<T>> findByStripeCustomerIds(Collection<String> stripeCustomerIds) {
+        Map<String, StripeLinkedUser<T>> links = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String stripeCustomerId : stripeCustomerIds) {
+            StripeLinkedUser<T> link = lookupByStripeCustomerId(stripeCustomerId);
+            if (link != null) {
+                links.put(stripeCustomerId, link);
+            } else {
+                misses.add(stripeCustomerId);
+            }
+        }
+        if (!misses.isEmpty()) {
+            links.putAll(delegate.findByStripeCustomerIds(misses));
+        }
+        return links;
+    }
+
+    private StripeLinkedUser<T> lookupByStripeCustomerId(String stripeCustomerId) {
+        LinkSnapshot current = usableSnapshot();
+        if (current == null) {
+            return null;
+        }
+        LinkSnapshot.Entry entry = current.findByStripeCustomerId(stripeCustomerId);
+        if (entry == null) {
+            return null;
+        }
+        T userId = userIdCodec.parse(entry.getUserId());
+        return dirty.containsKey(userId) ? null : toLink(userId, entry);
+    }
+
+    private LinkSnapshot.Entry lookup(T userId) {
+        LinkSnapshot current = usableSnapshot(userId);
+        return current == null ? null : current.findByUserId(userIdCodec.format(userId));
+    }
+
+    private LinkSnapshot usableSnapshot(T userId) {
+        return dirty.containsKey(userId) ? null : usableSnapshot();
+    }
+
+    private LinkSnapshot usableSnapshot() {
+        LinkSnapshot current = snapshot;
+        if (current == null || isStale() || unknownWriteSequence > snapshotSequence) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Whether the snapshot was last refreshed longer ago than the maximum staleness.
+     */
+    public boolean isStale() {
+        return snapshot == null || clock.getAsLong() - refreshedAt > maxStalenessMillis;
+    }
+
+    private StripeLinkedUser<T> toLink(T userId, LinkSnapshot.Entry entry) {
+        StripeLinkedUser<T> link = new StripeLinkedUser<>();
+        link.setId(entry.getLinkId());
+        link.setUserId(userId);
+        link.setStripeCustomerId(entry.getStripeCustomerId());
+        link.setIsPrimary(true);
+        link.setDeleted(false);
+        link.setCreatedAt(toLocalDateTime(entry.getCreatedAt()));
+        link.setUpdatedAt(toLocalDateTime(entry.getUpdatedAt()));
+        link.setVersion(entry.getVersion());
+        return link;
+    }
+
+    @Override
+    public List<StripeLinkedUser<T>> findAllLinksByUserId(T userId) {
+        return delegate.findAllLinksByUserId(userId);
+    }
+
+    @Override
+    public List<StripeLinkedUser<T>> findAll() {
+        return delegate.findAll();
+    }
+
+    @Override
+    public Stream<StripeLinkedUser<T>> streamAll() {
+        return delegate.streamAll();
+    }
+
+    @Override
+    public Optional<StripeLinkedUser<T>> findLatestLinkByUserId(T userId) {
+        return delegate.findLatestLinkByUserId(userId);
+    }
+
+    @Override
+    public int insert(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.insert(stripeLinkedUser);
+        } finally {
+            markDirty(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public int insertAll(Collection<StripeLinkedUser<T>> stripeLinkedUsers) {
+        try {
+            return delegate.insertAll(stripeLinkedUsers);
+        } finally {
+            stripeLinkedUsers.forEach(this::markDirty);
+        }
+    }
+
+    @Override
+    public StripeLinkedUser<T> insertIfAbsent(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.insertIfAbsent(stripeLinkedUser);
+        } finally {
+            markDirty(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public int update(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.update(stripeLinkedUser);
+        } finally {
+            markDirty(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public int delete(StripeLinkedUser<T> stripeLinkedUser) {
+        try {
+            return delegate.delete(stripeLinkedUser);
+        } finally {
+            markDirty(stripeLinkedUser);
+        }
+    }
+
+    @Override
+    public <R> R inTransaction(Supplier<R> work) {
+        if (transactionWrites.get() != null) {
+            return delegate.inTransaction(work);
+        }
+        List<StripeLinkedUser<T>> written = new ArrayList<>();
+        transactionWrites.set(written);
+        try {
+            return delegate.inTransaction(work);
+        } finally {
+            transactionWrites.remove();
+            written.forEach(this::markDirty);
+        }
+    }
+
+    private void markDirty(StripeLinkedUser<T> link) {
+        long sequence = writeSequence.incrementAndGet();
+        if (link.getUserId() != null) {
+            dirty.put(link.getUserId(), sequence);
+        } else {
+            // delete() only needs the link ID; without the user, bypass the snapshot until the next refresh.
+            unknownWriteSequence = sequence;
+        }
+        List<StripeLinkedUser<T>> written = transactionWrites.get();
+        if (written != null) {
+            written.add(link);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? 0 : time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+}
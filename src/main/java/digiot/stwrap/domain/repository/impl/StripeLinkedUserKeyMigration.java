@@ -0,0 +1,156 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.repository.codec.LinkIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodecs;
+import digiot.stwrap.domain.repository.dialect.SqlDialect;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Converts an existing stripe_linked_user table with VARCHAR keys to the column types of the given codecs,
+ * using the script db/migration/stripe_linked_user_native_keys_&lt;dialect&gt;.sql for H2, MySQL or PostgreSQL.
+ * The original table is kept as stripe_linked_user_legacy, and the new table gets the lookup indexes of
+ * {@link StripeLinkedUserSchemaManager}.
+ * <p>
+ * The migration runs in one transaction. On PostgreSQL it therefore commits or rolls back as a whole; MySQL and H2
+ * commit each DDL statement, see the comments in their scripts.
+ */
+public class StripeLinkedUserKeyMigration<T> {
+
+    private static final String SCRIPT = "db/migration/stripe_linked_user_native_keys_%s.sql";
+    private static final String COPY_MARKER = "-- @copy";
+
+    private final DataSource dataSource;
+    private final UserIdCodec<T> userIdCodec;
+    private final LinkIdCodec linkIdCodec;
+    private final SqlDialect dialect;
+
+    public StripeLinkedUserKeyMigration(DataSource dataSource, UserIdCodec<T> userIdCodec, LinkIdCodec linkIdCodec) {
+        this(dataSource, userIdCodec, linkIdCodec, null);
+    }
+
+    /**
+     * @param dataSource  The data source holding the stripe_linked_user table.
+     * @param userIdCodec The codec of the target user_id column, which also parses the existing text values.
+     *                    {@link UserIdCodecs#ofObject()} cannot parse and is rejected.
+     * @param linkIdCodec The storage format of the target id column.
+     * @param dialect     The dialect selecting the script, or null to detect it from the database.
+     */
+    public StripeLinkedUserKeyMigration(DataSource dataSource, UserIdCodec<T> userIdCodec, LinkIdCodec linkIdCodec, SqlDialect dialect) {
+        if (userIdCodec == UserIdCodecs.<T>ofObject()) {
+            throw new IllegalArgumentException("The migration needs an explicit UserIdCodec to parse the existing user IDs");
+        }
+        this.dataSource = dataSource;
+        this.userIdCodec = userIdCodec;
+        this.linkIdCodec = linkIdCodec;
+        this.dialect = dialect;
+    }
+
+    /**
+     * Creates the new table, copies every row, swaps the tables and creates the lookup indexes.
+     *
+     * @return The number of rows copied.
+     * @throws IllegalStateException If there is no migration script for the database.
+     */
+    public int migrate() {
+        try (Connection conn = dataSource.getConnection()) {
+            SqlDialect dialect = this.dialect != null ? this.dialect : SqlDialect.detect(conn);
+            if (dialect.scriptName() == null) {
+                throw new IllegalStateException("No key migration script for " + conn.getMetaData().getDatabaseProductName());
+            }
+            String script = loadScript(String.format(SCRIPT, dialect.scriptName()))
+                    .replace("${id_type}", dialect.columnType(linkIdCodec.sqlType()))
+                    .replace("${user_id_type}", dialect.columnType(userIdCodec.sqlType()));
+            int marker = script.indexOf(COPY_MARKER);
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                execute(conn, script.substring(0, marker));
+                int copied = copyRows(conn);
+                execute(conn, script.substring(marker + COPY_MARKER.length()));
+                new StripeLinkedUserSchemaManager(dataSource, dialect).ensureIndexes(conn);
+                conn.commit();
+                return copied;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error migrating stripe_linked_user keys", e);
+        }
+    }
+
+    private int copyRows(Connection conn) throws SQLException {
+        String select = "SELECT id, user_id, stripe_customer_id, is_primary, deleted, created_at, updated_at, version FROM stripe_linked_user";
+        String insert = "INSERT INTO stripe_linked_user_native (id, user_id, stripe_customer_id, is_primary, deleted, created_at, updated_at, version) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+        try (PreparedStatement read = conn.prepareStatement(select);
+             PreparedStatement write = conn.prepareStatement(insert)) {
+
+            read.setFetchSize(DefaultStripeLinkedUserRepository.BATCH_SIZE);
+            int copied = 0;
+            try (ResultSet rs = read.executeQuery()) {
+                while (rs.next()) {
+                    linkIdCodec.bind(write, 1, rs.getString(1));
+                    userIdCodec.bind(write, 2, userIdCodec.parse(rs.getString(2)));
+                    write.setString(3, rs.getString(3));
+                    write.setBoolean(4, rs.getBoolean(4));
+                    write.setBoolean(5, rs.getBoolean(5));
+                    write.setTimestamp(6, rs.getTimestamp(6));
+                    write.setTimestamp(7, rs.getTimestamp(7));
+                    write.setLong(8, rs.getLong(8));
+                    write.addBatch();
+                    if (++copied % DefaultStripeLinkedUserRepository.BATCH_SIZE == 0) {
+                        write.executeBatch();
+                    }
+                }
+            }
+            write.executeBatch();
+            return copied;
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String statement : stripComments(sql).split(";")) {
+                String trimmed = statement.trim();
+                if (!trimmed.isEmpty()) {
+                    stmt.execute(trimmed);
+                }
+            }
+        }
+    }
+
+    private static String stripComments(String script) {
+        StringBuilder sql = new StringBuilder();
+        for (String line : script.split("\n")) {
+            if (!line.trim().startsWith("--")) {
+                sql.append(line).append('\n');
+            }
+        }
+        return sql.toString();
+    }
+
+    private static String loadScript(String name) {
+        try (InputStream input = StripeLinkedUserKeyMigration.class.getClassLoader().getResourceAsStream(name)) {
+            if (input == null) {
+                throw new IOException("Unable to find " + name);
+            }
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading migration script", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.repository.dialect.SqlDialect;
+import lombok.Value;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Creates and checks the indexes that the hot lookups of DefaultStripeLinkedUserRepository rely on.
+ * Both lookup indexes lead with the equality columns followed by updated_at DESC, matching the ORDER BY of
+ * the queries, and carry the remaining selected columns so that the lookups can be answered from the index.
+ */
+public class StripeLinkedUserSchemaManager {
+
+    static final IndexDefinition PRIMARY_LOOKUP = new IndexDefinition(
+            "idx_stripe_linked_user_primary_lookup",
+            Arrays.asList("user_id", "is_primary", "deleted", "updated_at DESC"),
+            Arrays.asList("id", "stripe_customer_id", "created_at", "version"));
+
+    static final IndexDefinition LATEST_LOOKUP = new IndexDefinition(
+            "idx_stripe_linked_user_latest_lookup",
+            Arrays.asList("user_id", "deleted", "updated_at DESC"),
+            Arrays.asList("id", "stripe_customer_id", "is_primary", "created_at", "version"));
+
+    static final List<IndexDefinition> INDEXES = Collections.unmodifiableList(Arrays.asList(PRIMARY_LOOKUP, LATEST_LOOKUP));
+
+    private final DataSource dataSource;
+    private volatile SqlDialect dialect;
+
+    public StripeLinkedUserSchemaManager(DataSource dataSource) {
+        this(dataSource, null);
+    }
+
+    public StripeLinkedUserSchemaManager(DataSource dataSource, SqlDialect dialect) {
+        this.dataSource = dataSource;
+        this.dialect = dialect;
+    }
+
+    /**
+     * Creates the lookup indexes that do not exist yet.
+     *
+     * @return The names of the indexes created.
+     */
+    public List<String> ensureIndexes() {
+        try (Connection conn = dataSource.getConnection()) {
+            return ensureIndexes(conn);
+        } catch (SQLException e) {
+            throw new RuntimeException("Error creating stripe_linked_user indexes", e);
+        }
+    }
+
+    /**
+     * Creates the missing lookup indexes on the given connection, inside its current transaction if there is one.
+     */
+    List<String> ensureIndexes(Connection conn) throws SQLException {
+        Map<String, List<String>> existing = readIndexes(conn);
+        SqlDialect dialect = dialect(conn);
+        List<String> created = new ArrayList<>();
+
+        try (Statement stmt = conn.createStatement()) {
+            for (IndexDefinition index : INDEXES) {
+                if (!existing.containsKey(index.getName().toLowerCase(Locale.ROOT))) {
+                    stmt.execute(dialect.createCoveringIndex(index.getName(), index.getKeyColumns(), index.getCoveredColumns()));
+                    created.add(index.getName());
+                }
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Checks that every lookup index exists and leads with the expected key columns.
+     *
+     * @throws IllegalStateException If an index is missing or its key columns differ.
+     */
+    public void verify() {
+        Map<String, List<String>> existing;
+        try (Connection conn = dataSource.getConnection()) {
+            existing = readIndexes(conn);
+        } catch (SQLException e) {
+            throw new RuntimeException("Error reading stripe_linked_user indexes", e);
+        }
+
+        List<String> problems = new ArrayList<>();
+        for (IndexDefinition index : INDEXES) {
+            List<String> columns = existing.get(index.getName().toLowerCase(Locale.ROOT));
+            List<String> expected = index.keyColumnNames();
+            if (columns == null) {
+                problems.add(index.getName() + " is missing");
+            } else if (columns.size() < expected.size() || !columns.subList(0, expected.size()).equals(expected)) {
+                problems.add(index.getName() + " has columns " + columns + ", expected to start with " + expected);
+            }
+        }
+        if (!problems.isEmpty()) {
+            throw new IllegalStateException("stripe_linked_user indexes are not as expected: " + String.join("; ", problems));
+        }
+    }
+
+    /**
+     * Reads the columns of every index on stripe_linked_user, keyed by lower-case index name.
+     */
+    static Map<String, List<String>> readIndexes(Connection conn) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        String table = meta.storesUpperCaseIdentifiers() ? "STRIPE_LINKED_USER" : "stripe_linked_user";
+
+        Map<String, TreeMap<Integer, String>> ordered = new HashMap<>();
+        try (ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, table, false, false)) {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                String column = rs.getString("COLUMN_NAME");
+                if (name == null || column == null) {
+                    continue;
+                }
+                ordered.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> new TreeMap<>())
+                        .put(rs.getInt("ORDINAL_POSITION"), column.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        Map<String, List<String>> indexes = new HashMap<>();
+        ordered.forEach((name, columns) -> indexes.put(name, new ArrayList<>(columns.values())));
+        return indexes;
+    }
+
+    private SqlDialect dialect(Connection conn) throws SQLException {
+        if (dialect == null) {
+            dialect = SqlDialect.detect(conn);
+        }
+        return dialect;
+    }
+
+    /**
+     * A lookup index: the key columns the query filters and sorts on, and the other columns it reads.
+     */
+    @Value
+    static class IndexDefinition {
+        String name;
+        List<String> keyColumns;
+        List<String> coveredColumns;
+
+        List<String> keyColumnNames() {
+            List<String> names = new ArrayList<>();
+            for (String column : keyColumns) {
+                names.add(column.split(" ")[0].toLowerCase(Locale.ROOT));
+            }
+            return names;
+        }
+
+        List<String> allColumnNames() {
+            List<String> names = keyColumnNames();
+            coveredColumns.forEach(column -> names.add(column.toLowerCase(Locale.ROOT)));
+            return names;
+        }
+    }
+}
@@ -4,46 +4,149 @@ import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
 import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+/**
+ * Registry of named connection pools. Each pool is created once, on first use, and shared by every caller
+ * asking for the same name. All pools are closed by a shutdown hook, or explicitly with {@link #closeAll()}.
+ * <p>
+ * The default pool reads its settings from stwrap.datasource.*, a named pool from stwrap.datasource.&lt;name&gt;.*.
+ * When stwrap.datasource.replica.jdbc-url is set, {@link #getReadWriteDataSource()} routes read-only queries to the
+ * "replica" pool.
+ */
 public class DataSourceProvider {
 
+    public static final String DEFAULT_POOL = "default";
+    public static final String REPLICA_POOL = "replica";
+
     private static final String PREFIX = "stwrap.datasource.";
 
+    private static final ConcurrentMap<String, HikariDataSource> pools = new ConcurrentHashMap<>();
+    private static final AtomicBoolean shutdownHookRegistered = new AtomicBoolean();
+    private static volatile ReadWriteDataSource readWriteDataSource;
+
+    /**
+     * Returns the shared default pool.
+     */
     public static DataSource getDataSource() {
+        return getDataSource(DEFAULT_POOL);
+    }
+
+    /**
+     * Returns the shared pool with the given name, creating it on first use.
+     *
+     * @param name The pool name.
+     * @return The pool.
+     */
+    public static DataSource getDataSource(String name) {
+        HikariDataSource dataSource = pools.get(name);
+        if (dataSource != null && !dataSource.isClosed()) {
+            return dataSource;
+        }
+        registerShutdownHook();
+        return pools.compute(name, (key, current) -> current != null && !current.isClosed() ? current : createDataSource(key));
+    }
+
+    /**
+     * Returns the shared DataSource that writes to the default pool and reads from the replica pool, if configured.
+     * Reads fall back to the default pool for stwrap.datasource.replica.read-after-write-ms (default 1000) after a
+     * write by the same thread, and for stwrap.datasource.replica.retry-ms (default 5000) after the replica failed.
+     */
+    public static ReadWriteDataSource getReadWriteDataSource() {
+        ReadWriteDataSource current = readWriteDataSource;
+        if (current == null) {
+            synchronized (DataSourceProvider.class) {
+                current = readWriteDataSource;
+                if (current == null) {
+                    String replicaPrefix = PREFIX + REPLICA_POOL + ".";
+                    boolean hasReplica = PropertiesLoader.getProperty(replicaPrefix + "jdbc-url") != null;
+                    current = new ReadWriteDataSource(
+                            getDataSource(),
+                            hasReplica ? () -> getDataSource(REPLICA_POOL) : null,
+                            Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(replicaPrefix + "read-after-write-ms", "1000"))),
+                            Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(replicaPrefix + "retry-ms", "5000"))),
+                            System::nanoTime);
+                    readWriteDataSource = current;
+                }
+            }
+        }
+        return current;
+    }
 
+    /**
+     * Closes the pool with the given name, if it was created. A later call to getDataSource creates a new pool.
+     * Closing the default pool also drops the shared ReadWriteDataSource, so the next
+     * {@link #getReadWriteDataSource()} writes to the new default pool.
+     *
+     * @param name The pool name.
+     */
+    public static void close(String name) {
+        if (DEFAULT_POOL.equals(name)) {
+            synchronized (DataSourceProvider.class) {
+                readWriteDataSource = null;
+            }
+        }
+        HikariDataSource dataSource = pools.remove(name);
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Closes every pool created so far.
+     */
+    public static void closeAll() {
+        for (String name : pools.keySet()) {
+            close(name);
+        }
+    }
+
+    private static void registerShutdownHook() {
+        if (shutdownHookRegistered.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(DataSourceProvider::closeAll, "stwrap-datasource-shutdown"));
+        }
+    }
+
+    private static HikariDataSource createDataSource(String name) {
+
+        String prefix = DEFAULT_POOL.equals(name) ? PREFIX : PREFIX + name + ".";
         HikariConfig config = new HikariConfig();
+        config.setPoolName("stwrap-" + name);
 
         // 数値や論理値のプロパティを安全に設定
-        setPropertyAsLong(config::setConnectionTimeout, PREFIX + "connection-timeout");
-        setPropertyAsLong(config::setValidationTimeout, PREFIX + "validation-timeout");
-        setPropertyAsLong(config::setIdleTimeout, PREFIX + "idle-timeout");
-        setPropertyAsLong(config::setLeakDetectionThreshold, PREFIX + "leak-detection-threshold");
-        setPropertyAsLong(config::setMaxLifetime, PREFIX + "max-lifetime");
-        setPropertyAsInt(config::setMaximumPoolSize, PREFIX + "max-pool-size");
-        setPropertyAsInt(config::setMinimumIdle, PREFIX + "min-idle");
-        setPropertyAsLong(config::setInitializationFailTimeout, PREFIX + "initialization-fail-timeout");
-        setPropertyAsLong(config::setKeepaliveTime, PREFIX + "keepalive-time");
-
-        // TODO null 対策: 文字列や他の型のプロパティはそのまま設定
-//        config.setCatalog(PropertiesLoader.getProperty(PREFIX + "catalog"));
-        config.setUsername(PropertiesLoader.getProperty(PREFIX + "username"));
-        config.setPassword(PropertiesLoader.getProperty(PREFIX + "password"));
-//        config.setConnectionInitSql(PropertiesLoader.getProperty(PREFIX + "connection-init-sql"));
-//        config.setConnectionTestQuery(PropertiesLoader.getProperty(PREFIX + "connection-test-query"));
-//        config.setDataSourceClassName(PropertiesLoader.getProperty(PREFIX + "data-source-class-name"));
-//        config.setDataSourceJNDI(PropertiesLoader.getProperty(PREFIX + "data-source-jndi-name"));
-//        config.setDriverClassName(PropertiesLoader.getProperty(PREFIX + "driver-class-name"));
-//        config.setExceptionOverrideClassName(PropertiesLoader.getProperty(PREFIX + "exception-override-class-name"));
-        config.setJdbcUrl(PropertiesLoader.getProperty(PREFIX + "jdbc-url"));
-//        config.setPoolName(PropertiesLoader.getProperty(PREFIX + "pool-name"));
-//        config.setSchema(PropertiesLoader.getProperty(PREFIX + "schema"));
-//        config.setTransactionIsolation(PropertiesLoader.getProperty(PREFIX + "transaction-isolation-name"));
-//        config.setAutoCommit(Boolean.parseBoolean(PropertiesLoader.getProperty(PREFIX + "auto-commit")));
-//        config.setReadOnly(Boolean.parseBoolean(PropertiesLoader.getProperty(PREFIX + "read-only")));
-//        config.setIsolateInternalQueries(Boolean.parseBoolean(PropertiesLoader.getProperty(PREFIX + "isolate-internal-queries")));
-//        config.setRegisterMbeans(Boolean.parseBoolean(PropertiesLoader.getProperty(PREFIX + "register-mbeans")));
-//        config.setAllowPoolSuspension(Boolean.parseBoolean(PropertiesLoader.getProperty(PREFIX + "allow-pool-suspension")));
+        setPropertyAsLong(config::setConnectionTimeout, prefix + "connection-timeout");
+        setPropertyAsLong(config::setValidationTimeout, prefix + "validation-timeout");
+        setPropertyAsLong(config::setIdleTimeout, prefix + "idle-timeout");
+        setPropertyAsLong(config::setLeakDetectionThreshold, prefix + "leak-detection-threshold");
+        setPropertyAsLong(config::setMaxLifetime, prefix + "max-lifetime");
+        setPropertyAsInt(config::setMaximumPoolSize, prefix + "max-pool-size");
+        setPropertyAsInt(config::setMinimumIdle, prefix + "min-idle");
+        setPropertyAsLong(config::setInitializationFailTimeout, prefix + "initialization-fail-timeout");
+        setPropertyAsLong(config::setKeepaliveTime, prefix + "keepalive-time");
+        setPropertyAsBoolean(config::setAutoCommit, prefix + "auto-commit");
+        setPropertyAsBoolean(config::setReadOnly, prefix + "read-only");
+        setPropertyAsBoolean(config::setIsolateInternalQueries, prefix + "isolate-internal-queries");
+        setPropertyAsBoolean(config::setRegisterMbeans, prefix + "register-mbeans");
+        setPropertyAsBoolean(config::setAllowPoolSuspension, prefix + "allow-pool-suspension");
+
+        // 文字列のプロパティは設定されている場合のみ設定
+        setPropertyAsString(config::setCatalog, prefix + "catalog");
+        setPropertyAsString(config::setUsername, prefix + "username");
+        setPropertyAsString(config::setPassword, prefix + "password");
+        setPropertyAsString(config::setConnectionInitSql, prefix + "connection-init-sql");
+        setPropertyAsString(config::setConnectionTestQuery, prefix + "connection-test-query");
+        setPropertyAsString(config::setDataSourceClassName, prefix + "data-source-class-name");
+        setPropertyAsString(config::setDataSourceJNDI, prefix + "data-source-jndi-name");
+        setPropertyAsString(config::setDriverClassName, prefix + "driver-class-name");
+        setPropertyAsString(config::setExceptionOverrideClassName, prefix + "exception-override-class-name");
+        setPropertyAsString(config::setJdbcUrl, prefix + "jdbc-url");
+        setPropertyAsString(config::setPoolName, prefix + "pool-name");
+        setPropertyAsString(config::setSchema, prefix + "schema");
+        setPropertyAsString(config::setTransactionIsolation, prefix + "transaction-isolation-name");
         config.setHealthCheckProperties(System.getProperties());
 
         return new HikariDataSource(config);
@@ -70,5 +173,11 @@ public class DataSourceProvider {
         }
     }
 
-}
+    private static void setPropertyAsBoolean(Consumer<Boolean> setterMethod, String propertyName) {
+        String propertyValue = PropertiesLoader.getProperty(propertyName);
+        if (propertyValue != null) {
+            setterMethod.accept(Boolean.parseBoolean(propertyValue));
+        }
+    }
 
+}
@@ -25,5 +25,9 @@ public class PropertiesLoader {
         return properties.getProperty(key);
     }
 
+    public static String getProperty(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
 }
 
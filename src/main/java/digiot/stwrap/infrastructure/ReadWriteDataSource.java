@@ -0,0 +1,146 @@
+package digiot.stwrap.infrastructure;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * A DataSource that sends writes to a primary database and read-only queries to a replica.
+ * <p>
+ * {@link #getConnection()} always returns a primary connection and counts as a write by the calling thread.
+ * {@link #getConnection(boolean)} with readOnly = true returns a replica connection, except
+ * <ul>
+ *     <li>within the read-after-write window after the calling thread's last write, so the thread reads its own
+ *     writes,</li>
+ *     <li>while the replica is marked unavailable after a failed connection attempt.</li>
+ * </ul>
+ * The replica is obtained through a supplier on each read, so a replica pool that could not be created yet is retried
+ * after the retry interval. Without a replica, every connection comes from the primary.
+ */
+public class ReadWriteDataSource implements DataSource {
+
+    private final DataSource primary;
+    private final Supplier<DataSource> replica;
+    private final long readAfterWriteNanos;
+    private final long replicaRetryNanos;
+    private final LongSupplier ticker;
+
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+    private volatile long replicaDownUntil;
+
+    public ReadWriteDataSource(DataSource primary, DataSource replica, Duration readAfterWrite, Duration replicaRetry) {
+        this(primary, replica == null ? null : () -> replica, readAfterWrite, replicaRetry, System::nanoTime);
+    }
+
+    public ReadWriteDataSource(DataSource primary, Supplier<DataSource> replica, Duration readAfterWrite, Duration replicaRetry, LongSupplier ticker) {
+        this.primary = primary;
+        this.replica = replica;
+        this.readAfterWriteNanos = readAfterWrite.toNanos();
+        this.replicaRetryNanos = replicaRetry.toNanos();
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns a primary connection and starts the read-after-write window of the calling thread.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        lastWrite.set(ticker.getAsLong());
+        return primary.getConnection();
+    }
+
+    /**
+     * Returns a connection for a read-only query when readOnly is true, otherwise the same as {@link #getConnection()}.
+     *
+     * @param readOnly Whether the connection is only used to read.
+     * @return A replica connection when the read can be served by the replica, otherwise a primary connection.
+     * @throws SQLException If no connection could be obtained from the primary.
+     */
+    public Connection getConnection(boolean readOnly) throws SQLException {
+        if (!readOnly) {
+            return getConnection();
+        }
+        if (!useReplica()) {
+            return primary.getConnection();
+        }
+        try {
+            return replica.get().getConnection();
+        } catch (SQLException | RuntimeException e) {
+            replicaDownUntil = ticker.getAsLong() + replicaRetryNanos;
+            return primary.getConnection();
+        }
+    }
+
+    private boolean useReplica() {
+        if (replica == null) {
+            return false;
+        }
+        long now = ticker.getAsLong();
+        if (replicaDownUntil != 0 && now - replicaDownUntil < 0) {
+            return false;
+        }
+        Long written = lastWrite.get();
+        if (written == null) {
+            return true;
+        }
+        if (now - written < readAfterWriteNanos) {
+            return false;
+        }
+        lastWrite.remove();
+        return true;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        lastWrite.set(ticker.getAsLong());
+        return primary.getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        primary.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        primary.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return primary.getParentLogger();
+    }
+
+    @Override
+    public <U> U unwrap(Class<U> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return primary.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,182 @@
+package digiot.stwrap.infrastructure.cache;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * A size-bounded in-memory cache with least-recently-used eviction and a fixed time-to-live per entry.
+ * All operations are thread-safe.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class BoundedCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache using {@link System#nanoTime()} as its time source.
+     *
+     * @param maxSize The maximum number of entries to keep.
+     * @param ttl     How long an entry stays valid after it has been written.
+     */
+    public BoundedCache(int maxSize, Duration ttl) {
+        this(maxSize, ttl, System::nanoTime);
+    }
+
+    /**
+     * Creates a cache with an explicit time source.
+     *
+     * @param maxSize The maximum number of entries to keep.
+     * @param ttl     How long an entry stays valid after it has been written.
+     * @param ticker  Time source returning nanoseconds.
+     */
+    public BoundedCache(int maxSize, Duration ttl, LongSupplier ticker) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.ticker = ticker;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cached value for the key, or null if it is absent or expired.
+     *
+     * @param key The key to look up.
+     * @return The cached value, or null.
+     */
+    public V get(K key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && isExpired(entry)) {
+                entries.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value;
+        }
+    }
+
+    /**
+     * Stores a value, evicting the least recently used entry if the cache is full.
+     *
+     * @param key   The key.
+     * @param value The value, must not be null.
+     */
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, ticker.getAsLong() + ttlNanos));
+            if (entries.size() > maxSize) {
+                Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Stores a value if the condition holds, checking it under the same lock as {@link #invalidate(Object)}. A writer
+     * that makes the condition false before invalidating then either prevents the put or removes its entry.
+     *
+     * @param key       The key.
+     * @param value     The value, must not be null.
+     * @param condition Whether the value is still current, e.g. no write happened since it was read.
+     * @return Whether the value was stored.
+     */
+    public boolean putIf(K key, V value, BooleanSupplier condition) {
+        synchronized (entries) {
+            if (!condition.getAsBoolean()) {
+                return false;
+            }
+            put(key, value);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the entry for the key, if any.
+     *
+     * @param key The key to invalidate.
+     */
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes every entry matching the predicate.
+     *
+     * @param predicate Receives the key and the value of each entry.
+     */
+    public void invalidateIf(BiPredicate<? super K, ? super V> predicate) {
+        synchronized (entries) {
+            entries.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue().value));
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries currently held, including expired ones not yet removed.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the hit, miss and eviction counters.
+     *
+     * @return The current statistics.
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size());
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return ticker.getAsLong() - entry.expiresAt >= 0;
+    }
+
+    private static final class Entry<V> {
+
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
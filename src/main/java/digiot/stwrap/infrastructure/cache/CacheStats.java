@@ -0,0 +1,25 @@
+package digiot.stwrap.infrastructure.cache;
+
+import lombok.Value;
+
+/**
+ * Immutable snapshot of the counters of a {@link BoundedCache}.
+ */
+@Value
+public class CacheStats {
+
+    long hitCount;
+    long missCount;
+    long evictionCount;
+    long size;
+
+    /**
+     * Returns the ratio of lookups that were served from the cache.
+     *
+     * @return The hit rate between 0.0 and 1.0, or 1.0 if no lookup has been made yet.
+     */
+    public double hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+}
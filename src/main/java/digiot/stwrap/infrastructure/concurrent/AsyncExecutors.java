@@ -0,0 +1,105 @@
+package digiot.stwrap.infrastructure.concurrent;
+
+import digiot.stwrap.infrastructure.PropertiesLoader;
+import digiot.stwrap.infrastructure.stripe.StripeCall;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor the asynchronous services run their blocking calls on, and the helper turning such a call into a
+ * CompletableFuture.
+ * <p>
+ * The default executor comes from {@link DefaultExecutorFactory}, which the jar ships in two versions: on Java 21 and
+ * later it starts a virtual thread per task, so a call waiting on Stripe does not hold a platform thread; on Java 11
+ * it is {@link #newBoundedExecutor()}.
+ */
+public final class AsyncExecutors {
+
+    private static final String PREFIX = "stwrap.async.";
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * Returns the executor shared by the asynchronous services, created on first use.
+     */
+    public static ExecutorService getDefault() {
+        ExecutorService executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (AsyncExecutors.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    executor = DefaultExecutorFactory.create();
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Creates a pool of daemon threads configured by the stwrap.async.* properties: max-threads (64), the number of
+     * calls running at once, and keep-alive-seconds (60), after which idle threads end. Tasks beyond max-threads wait
+     * in the queue.
+     */
+    public static ExecutorService newBoundedExecutor() {
+        return newBoundedExecutor("stwrap-async",
+                Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "max-threads", "64")),
+                Duration.ofSeconds(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "keep-alive-seconds", "60"))));
+    }
+
+    /**
+     * Creates a pool of at most maxThreads daemon threads, which end after being idle for keepAlive, so an unused pool
+     * holds no threads. Tasks beyond maxThreads wait in the queue.
+     *
+     * @param namePrefix The prefix of the thread names.
+     */
+    public static ExecutorService newBoundedExecutor(String namePrefix, int maxThreads, Duration keepAlive) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, keepAlive.toNanos(), TimeUnit.NANOSECONDS,
+                new LinkedBlockingQueue<>(), daemonThreadFactory(namePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns a factory of daemon threads named after the given prefix and a sequence number, for the background
+     * work of stwrap, which must not keep the JVM alive.
+     *
+     * @param namePrefix The prefix of the thread names, e.g. "stwrap-usage".
+     */
+    public static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threads = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs a blocking call on the executor.
+     *
+     * @return A future completed with the result of the call, or exceptionally with the StripeException or runtime
+     * exception it threw.
+     */
+    public static <R> CompletableFuture<R> supply(StripeCall<R> call, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,17 @@
+package digiot.stwrap.infrastructure.concurrent;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the default executor on Java 11 to 20: a bounded pool of platform threads. The jar replaces this class
+ * with a version using virtual threads on Java 21 and later.
+ */
+final class DefaultExecutorFactory {
+
+    private DefaultExecutorFactory() {
+    }
+
+    static ExecutorService create() {
+        return AsyncExecutors.newBoundedExecutor();
+    }
+}
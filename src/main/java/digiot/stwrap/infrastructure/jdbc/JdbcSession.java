@@ -0,0 +1,135 @@
+package digiot.stwrap.infrastructure.jdbc;
+
+import digiot.stwrap.infrastructure.ReadWriteDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection together with the statements prepared on it.
+ * <p>
+ * Inside {@link TransactionTemplate#execute(DataSource, UnitOfWork)} every session opened for the same DataSource on
+ * the same thread is the one bound to the transaction: prepared statements are reused across repository calls and
+ * {@link #close()} does nothing, the transaction closes the session when it ends. Outside a transaction the session
+ * owns a fresh auto-commit connection and closes it together with its statements.
+ * <p>
+ * Statements returned by {@link #prepare(String)} belong to the session and must not be closed by the caller.
+ */
+public class JdbcSession implements AutoCloseable {
+
+    private final Connection connection;
+    private final boolean transactional;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    JdbcSession(Connection connection, boolean transactional) {
+        this.connection = connection;
+        this.transactional = transactional;
+    }
+
+    /**
+     * Returns the session bound to the current transaction, or a new session on its own connection.
+     *
+     * @param dataSource The data source to connect to.
+     * @param readOnly   Whether the session is only used to read; such sessions may use a replica
+     *                   when the data source is a {@link ReadWriteDataSource}.
+     * @return The session to run statements on; close it when done.
+     * @throws SQLException If no connection could be obtained.
+     */
+    public static JdbcSession open(DataSource dataSource, boolean readOnly) throws SQLException {
+        JdbcSession bound = TransactionTemplate.boundSession(dataSource);
+        if (bound != null) {
+            return bound;
+        }
+        if (readOnly && dataSource instanceof ReadWriteDataSource) {
+            return new JdbcSession(((ReadWriteDataSource) dataSource).getConnection(true), false);
+        }
+        return new JdbcSession(dataSource.getConnection(), false);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Whether the session belongs to a transaction, so statements run on it are committed together.
+     */
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * Prepares the statement, or returns the one already prepared for the same SQL in this session.
+     *
+     * @param sql The SQL statement.
+     * @return The prepared statement, with its parameters still set from any earlier use.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Prepares the statement so that the given columns can be read through getGeneratedKeys.
+     *
+     * @param sql         The SQL statement.
+     * @param columnNames The generated columns to return.
+     * @return The prepared statement.
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    public PreparedStatement prepare(String sql, String[] columnNames) throws SQLException {
+        String key = sql + '\u0000' + String.join(",", columnNames);
+        PreparedStatement stmt = statements.get(key);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql, columnNames);
+            statements.put(key, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Closes the statements and the connection, unless the session belongs to a transaction.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (!transactional) {
+            release();
+        }
+    }
+
+    void release() throws SQLException {
+        SQLException failure = null;
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
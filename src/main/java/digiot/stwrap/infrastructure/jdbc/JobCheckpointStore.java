@@ -0,0 +1,89 @@
+package digiot.stwrap.infrastructure.jdbc;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+
+/**
+ * Keeps the position reached by a long-running job in the job_checkpoint table, so the job can resume after a crash.
+ * <p>
+ * A position is a count of source items that are fully processed. Saving it inside a
+ * {@link TransactionTemplate#execute(DataSource, UnitOfWork)} on the same DataSource commits it together with the
+ * job's own writes.
+ */
+public class JobCheckpointStore {
+
+    private static final String SELECT_SQL = "SELECT position FROM job_checkpoint WHERE job_name = ?";
+    private static final String UPDATE_SQL = "UPDATE job_checkpoint SET position = ?, updated_at = ? WHERE job_name = ?";
+    private static final String INSERT_SQL = "INSERT INTO job_checkpoint (job_name, position, updated_at) VALUES (?, ?, ?)";
+    private static final String DELETE_SQL = "DELETE FROM job_checkpoint WHERE job_name = ?";
+
+    private final DataSource dataSource;
+
+    public JobCheckpointStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Returns the position saved for a job.
+     *
+     * @param jobName The name of the job.
+     * @return The saved position, or 0 if the job has not saved one.
+     */
+    public long load(String jobName) {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(SELECT_SQL);
+            stmt.setString(1, jobName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error loading the checkpoint of job " + jobName, e);
+        }
+    }
+
+    /**
+     * Saves the position of a job, replacing the previous one.
+     * Only one process may run a job under a given name at a time.
+     *
+     * @param jobName  The name of the job.
+     * @param position The number of source items fully processed.
+     */
+    public void save(String jobName, long position) {
+        try {
+            TransactionTemplate.execute(dataSource, session -> {
+                Timestamp now = Timestamp.from(Instant.now());
+                PreparedStatement update = session.prepare(UPDATE_SQL);
+                update.setLong(1, position);
+                update.setTimestamp(2, now);
+                update.setString(3, jobName);
+                if (update.executeUpdate() == 0) {
+                    PreparedStatement insert = session.prepare(INSERT_SQL);
+                    insert.setString(1, jobName);
+                    insert.setLong(2, position);
+                    insert.setTimestamp(3, now);
+                    insert.executeUpdate();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException("Error saving the checkpoint of job " + jobName, e);
+        }
+    }
+
+    /**
+     * Removes the checkpoint of a job, so the next run starts from the beginning.
+     */
+    public void delete(String jobName) {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(DELETE_SQL);
+            stmt.setString(1, jobName);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error deleting the checkpoint of job " + jobName, e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package digiot.stwrap.infrastructure.jdbc;
+
+import de.huxhorn.sulky.ulid.ULID;
+import lombok.Value;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps metered usage that has not been reported to Stripe yet in the stripe_usage_pending table, so it survives a
+ * restart.
+ * <p>
+ * Each row is one usage record to send, identified by the idempotency key it is sent with. A row is never changed once
+ * it has been sent, since Stripe would reject a retry with the same key but another quantity; rows not sent yet are
+ * merged into one row per subscription item before sending.
+ */
+public class PendingUsageStore {
+
+    private static final String INSERT_SQL = "INSERT INTO stripe_usage_pending (idempotency_key, subscription_item_id, quantity, usage_timestamp, attempted, created_at) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_SQL = "SELECT idempotency_key, subscription_item_id, quantity, usage_timestamp, attempted FROM stripe_usage_pending ORDER BY created_at, idempotency_key";
+    private static final String DELETE_SQL = "DELETE FROM stripe_usage_pending WHERE idempotency_key = ?";
+
+    private final DataSource dataSource;
+    private final ULID ulid = new ULID();
+
+    public PendingUsageStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Stores usage to be reported, as one row per subscription item.
+     *
+     * @param quantities The quantities by subscription item ID.
+     * @param timestamp  The time of the usage, in epoch seconds.
+     */
+    public void append(Map<String, Long> quantities, long timestamp) {
+        if (quantities.isEmpty()) {
+            return;
+        }
+        try {
+            TransactionTemplate.execute(dataSource, session -> {
+                PreparedStatement insert = session.prepare(INSERT_SQL);
+                Timestamp now = Timestamp.from(Instant.now());
+                for (Map.Entry<String, Long> quantity : quantities.entrySet()) {
+                    bind(insert, newKey(), quantity.getKey(), quantity.getValue(), timestamp, false, now);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException("Error storing pending usage", e);
+        }
+    }
+
+    /**
+     * Merges the rows not sent yet into one row per subscription item and marks them as sent, then returns every row
+     * marked as sent, including those left by an earlier attempt that failed or did not finish.
+     *
+     * @return The usage records to send, oldest first.
+     */
+    public List<PendingUsage> prepareBatch() {
+        try {
+            return TransactionTemplate.execute(dataSource, session -> {
+                List<PendingUsage> batch = new ArrayList<>();
+                Map<String, long[]> merged = new LinkedHashMap<>();
+                PreparedStatement delete = session.prepare(DELETE_SQL);
+                try (ResultSet rs = session.prepare(SELECT_SQL).executeQuery()) {
+                    while (rs.next()) {
+                        String key = rs.getString(1);
+                        String itemId = rs.getString(2);
+                        long quantity = rs.getLong(3);
+                        long timestamp = rs.getLong(4);
+                        if (rs.getBoolean(5)) {
+                            batch.add(new PendingUsage(key, itemId, quantity, timestamp));
+                        } else {
+                            long[] total = merged.computeIfAbsent(itemId, id -> new long[2]);
+                            total[0] += quantity;
+                            total[1] = Math.max(total[1], timestamp);
+                            delete.setString(1, key);
+                            delete.addBatch();
+                        }
+                    }
+                }
+                if (merged.isEmpty()) {
+                    return batch;
+                }
+                delete.executeBatch();
+
+                PreparedStatement insert = session.prepare(INSERT_SQL);
+                Timestamp now = Timestamp.from(Instant.now());
+                for (Map.Entry<String, long[]> total : merged.entrySet()) {
+                    PendingUsage usage = new PendingUsage(newKey(), total.getKey(), total.getValue()[0], total.getValue()[1]);
+                    bind(insert, usage.getIdempotencyKey(), usage.getSubscriptionItemId(), usage.getQuantity(), usage.getTimestamp(), true, now);
+                    insert.addBatch();
+                    batch.add(usage);
+                }
+                insert.executeBatch();
+                return batch;
+            });
+        } catch (SQLException e) {
+            throw new RuntimeException("Error preparing pending usage", e);
+        }
+    }
+
+    /**
+     * Removes a usage record once Stripe has recorded it.
+     */
+    public void delete(String idempotencyKey) {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(DELETE_SQL);
+            stmt.setString(1, idempotencyKey);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error deleting pending usage " + idempotencyKey, e);
+        }
+    }
+
+    private String newKey() {
+        return "stwrap-usage-" + ulid.nextULID();
+    }
+
+    private static void bind(PreparedStatement stmt, String key, String itemId, long quantity, long timestamp, boolean attempted, Timestamp now) throws SQLException {
+        stmt.setString(1, key);
+        stmt.setString(2, itemId);
+        stmt.setLong(3, quantity);
+        stmt.setLong(4, timestamp);
+        stmt.setBoolean(5, attempted);
+        stmt.setTimestamp(6, now);
+    }
+
+    /**
+     * A usage record waiting to be sent.
+     */
+    @Value
+    public static class PendingUsage {
+        String idempotencyKey;
+        String subscriptionItemId;
+        long quantity;
+        /** The time of the usage, in epoch seconds. */
+        long timestamp;
+    }
+}
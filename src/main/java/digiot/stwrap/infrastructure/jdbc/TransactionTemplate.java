@@ -0,0 +1,101 @@
+package digiot.stwrap.infrastructure.jdbc;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Runs work in one transaction on one connection, bound to the current thread so that every
+ * {@link JdbcSession#open(DataSource, boolean)} for the same DataSource inside the work shares it.
+ * Nested calls join the outer transaction, which commits once when the outermost call returns
+ * and rolls back if it throws.
+ */
+public class TransactionTemplate {
+
+    private static final ThreadLocal<Map<DataSource, JdbcSession>> boundSessions = new ThreadLocal<>();
+
+    private final DataSource dataSource;
+
+    public TransactionTemplate(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Runs the work in a transaction, joining the current one if there is one.
+     *
+     * @param work The work to run.
+     * @return The result of the work.
+     * @throws RuntimeException If the transaction could not be started, committed or rolled back.
+     */
+    public <R> R execute(Supplier<R> work) {
+        try {
+            return execute(dataSource, session -> work.get());
+        } catch (SQLException e) {
+            throw new RuntimeException("Error running transaction", e);
+        }
+    }
+
+    /**
+     * Runs the work in a transaction on the given data source, joining the current one if there is one.
+     *
+     * @param dataSource The data source to connect to.
+     * @param work       The work to run on the transaction's session.
+     * @return The result of the work.
+     * @throws SQLException If the work fails, or the transaction could not be started or committed.
+     */
+    public static <R> R execute(DataSource dataSource, UnitOfWork<R> work) throws SQLException {
+        JdbcSession bound = boundSession(dataSource);
+        if (bound != null) {
+            return work.run(bound);
+        }
+
+        Connection conn = dataSource.getConnection();
+        boolean autoCommit;
+        try {
+            autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+
+        JdbcSession session = new JdbcSession(conn, true);
+        Map<DataSource, JdbcSession> sessions = boundSessions.get();
+        if (sessions == null) {
+            sessions = new HashMap<>();
+            boundSessions.set(sessions);
+        }
+        sessions.put(dataSource, session);
+
+        try {
+            R result = work.run(session);
+            conn.commit();
+            return result;
+        } catch (Throwable e) {
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        } finally {
+            sessions.remove(dataSource);
+            if (sessions.isEmpty()) {
+                boundSessions.remove();
+            }
+            try {
+                conn.setAutoCommit(autoCommit);
+            } finally {
+                session.release();
+            }
+        }
+    }
+
+    static JdbcSession boundSession(DataSource dataSource) {
+        Map<DataSource, JdbcSession> sessions = boundSessions.get();
+        return sessions == null ? null : sessions.get(dataSource);
+    }
+}
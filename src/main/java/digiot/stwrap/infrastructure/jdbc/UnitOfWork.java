@@ -0,0 +1,14 @@
+package digiot.stwrap.infrastructure.jdbc;
+
+import java.sql.SQLException;
+
+/**
+ * Work run by {@link TransactionTemplate} on the session bound to the current transaction.
+ *
+ * @param <R> The result type.
+ */
+@FunctionalInterface
+public interface UnitOfWork<R> {
+
+    R run(JdbcSession session) throws SQLException;
+}
@@ -0,0 +1,317 @@
+package digiot.stwrap.infrastructure.snapshot;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Read-only, memory-mapped index of primary links, searchable by user ID and by Stripe customer ID.
+ * <p>
+ * The file holds a header, two open-addressing hash tables with linear probing (one per direction) and the records.
+ * Table slots hold the file offset of a record, or 0 when empty. Strings are stored as a length followed by UTF-16
+ * chars, so a probe compares the key in place and allocates nothing; only the returned values are materialized.
+ * <pre>
+ * header   magic, format version, entry count, table capacity, watermark, built-at, table and data offsets
+ * forward  int[capacity], keyed by user ID
+ * reverse  int[capacity], keyed by Stripe customer ID
+ * records  user ID, Stripe customer ID, link ID, created-at, updated-at, version
+ * </pre>
+ * A snapshot is never modified; {@link #write(Path, Collection, long, long)} writes a complete new file to a
+ * temporary path and moves it over the old one, so readers of the previous mapping are not affected.
+ */
+public final class LinkSnapshot {
+
+    private static final int MAGIC = 0x53545753;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    private static final int COUNT = 8;
+    private static final int CAPACITY = 12;
+    private static final int WATERMARK = 16;
+    private static final int BUILT_AT = 24;
+    private static final int FORWARD_TABLE = 32;
+    private static final int REVERSE_TABLE = 36;
+    private static final int DATA = 40;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int mask;
+    private final int forwardTable;
+    private final int reverseTable;
+    private final long watermark;
+    private final long builtAt;
+
+    private LinkSnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a link snapshot file of format version " + FORMAT_VERSION);
+        }
+        int capacity = buffer.getInt(CAPACITY);
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IOException("Corrupt link snapshot: table capacity " + capacity);
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(COUNT);
+        this.mask = capacity - 1;
+        this.forwardTable = buffer.getInt(FORWARD_TABLE);
+        this.reverseTable = buffer.getInt(REVERSE_TABLE);
+        this.watermark = buffer.getLong(WATERMARK);
+        this.builtAt = buffer.getLong(BUILT_AT);
+    }
+
+    /**
+     * Maps an existing snapshot file.
+     *
+     * @param path The snapshot file.
+     * @return The mapped snapshot.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public static LinkSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new LinkSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given entries, replacing the file at the path.
+     *
+     * @param path      The snapshot file.
+     * @param entries   The primary links; user IDs must be unique.
+     * @param watermark The latest updated_at reflected in the entries, in epoch milliseconds.
+     * @param builtAt   The time the entries were read, in epoch milliseconds.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Path path, Collection<Entry> entries, long watermark, long builtAt) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(16, entries.size() * 2 - 1)) << 1;
+        int forwardTable = HEADER_SIZE;
+        int reverseTable = forwardTable + capacity * Integer.BYTES;
+        int data = reverseTable + capacity * Integer.BYTES;
+
+        long size = data;
+        for (Entry entry : entries) {
+            size += recordSize(entry);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Link snapshot would exceed 2 GB: " + size + " bytes");
+        }
+
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                out.putInt(0, MAGIC);
+                out.putInt(4, FORMAT_VERSION);
+                out.putInt(COUNT, entries.size());
+                out.putInt(CAPACITY, capacity);
+                out.putLong(WATERMARK, watermark);
+                out.putLong(BUILT_AT, builtAt);
+                out.putInt(FORWARD_TABLE, forwardTable);
+                out.putInt(REVERSE_TABLE, reverseTable);
+                out.putInt(DATA, data);
+
+                int mask = capacity - 1;
+                int offset = data;
+                for (Entry entry : entries) {
+                    insertSlot(out, forwardTable, mask, entry.getUserId(), offset);
+                    insertSlot(out, reverseTable, mask, entry.getStripeCustomerId(), offset);
+                    out.position(offset);
+                    putString(out, entry.getUserId());
+                    putString(out, entry.getStripeCustomerId());
+                    putString(out, entry.getLinkId());
+                    out.putLong(entry.getCreatedAt());
+                    out.putLong(entry.getUpdatedAt());
+                    out.putLong(entry.getVersion());
+                    offset = out.position();
+                }
+                out.force();
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Finds the Stripe customer ID of a user without materializing the rest of the record.
+     *
+     * @param userId The textual user ID.
+     * @return The Stripe customer ID, or null if the user is not in the snapshot.
+     */
+    public String findStripeCustomerId(String userId) {
+        int record = probe(forwardTable, userId, 0);
+        return record == 0 ? null : readString(skipString(record));
+    }
+
+    /**
+     * Finds the user linked to a Stripe customer.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @return The textual user ID, or null if the customer is not in the snapshot.
+     */
+    public String findUserId(String stripeCustomerId) {
+        int record = probe(reverseTable, stripeCustomerId, 1);
+        return record == 0 ? null : readString(record);
+    }
+
+    /**
+     * Finds the full record of a user.
+     *
+     * @param userId The textual user ID.
+     * @return The entry, or null if the user is not in the snapshot.
+     */
+    public Entry findByUserId(String userId) {
+        int record = probe(forwardTable, userId, 0);
+        return record == 0 ? null : readEntry(record);
+    }
+
+    /**
+     * Finds the full record of a Stripe customer.
+     *
+     * @param stripeCustomerId The Stripe customer ID.
+     * @return The entry, or null if the customer is not in the snapshot.
+     */
+    public Entry findByStripeCustomerId(String stripeCustomerId) {
+        int record = probe(reverseTable, stripeCustomerId, 1);
+        return record == 0 ? null : readEntry(record);
+    }
+
+    /**
+     * Passes every entry to the consumer, in file order.
+     *
+     * @param consumer The consumer of the entries.
+     */
+    public void forEach(Consumer<Entry> consumer) {
+        int offset = buffer.getInt(DATA);
+        for (int i = 0; i < count; i++) {
+            consumer.accept(readEntry(offset));
+            offset = skipString(skipString(skipString(offset))) + 3 * Long.BYTES;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The latest updated_at reflected in the snapshot, in epoch milliseconds.
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * The time the snapshot was built, in epoch milliseconds.
+     */
+    public long getBuiltAt() {
+        return builtAt;
+    }
+
+    /**
+     * Returns the offset of the record whose field-th string equals the key, or 0.
+     */
+    private int probe(int table, String key, int field) {
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int record = buffer.getInt(table + slot * Integer.BYTES);
+            if (record == 0) {
+                return 0;
+            }
+            int position = field == 0 ? record : skipString(record);
+            if (matches(position, key)) {
+                return record;
+            }
+        }
+    }
+
+    private boolean matches(int position, String key) {
+        int length = buffer.getInt(position);
+        if (length != key.length()) {
+            return false;
+        }
+        int chars = position + Integer.BYTES;
+        for (int i = 0; i < length; i++) {
+            if (buffer.getChar(chars + i * Character.BYTES) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipString(int position) {
+        return position + Integer.BYTES + buffer.getInt(position) * Character.BYTES;
+    }
+
+    private String readString(int position) {
+        int length = buffer.getInt(position);
+        char[] chars = new char[length];
+        int start = position + Integer.BYTES;
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar(start + i * Character.BYTES);
+        }
+        return new String(chars);
+    }
+
+    private Entry readEntry(int record) {
+        int customer = skipString(record);
+        int link = skipString(customer);
+        int longs = skipString(link);
+        return new Entry(readString(link), readString(record), readString(customer),
+                buffer.getLong(longs), buffer.getLong(longs + Long.BYTES), buffer.getLong(longs + 2 * Long.BYTES));
+    }
+
+    private static void insertSlot(ByteBuffer out, int table, int mask, String key, int record) {
+        int slot = hash(key) & mask;
+        while (out.getInt(table + slot * Integer.BYTES) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        out.putInt(table + slot * Integer.BYTES, record);
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        out.putInt(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            out.putChar(value.charAt(i));
+        }
+    }
+
+    private static long recordSize(Entry entry) {
+        return 3L * Integer.BYTES
+                + (long) Character.BYTES * (entry.getUserId().length() + entry.getStripeCustomerId().length() + entry.getLinkId().length())
+                + 3L * Long.BYTES;
+    }
+
+    /**
+     * Spreads String.hashCode, which is cached on the key, so probing does not compute anything over the key twice.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * One primary link as stored in the snapshot; times are epoch milliseconds.
+     */
+    @Value
+    public static class Entry {
+        String linkId;
+        String userId;
+        String stripeCustomerId;
+        long createdAt;
+        long updatedAt;
+        long version;
+    }
+}
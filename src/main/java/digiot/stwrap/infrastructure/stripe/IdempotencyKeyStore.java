@@ -0,0 +1,160 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import de.huxhorn.sulky.ulid.ULID;
+import digiot.stwrap.infrastructure.jdbc.JdbcSession;
+import digiot.stwrap.infrastructure.jdbc.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Keeps the idempotency key of each Stripe write that has not completed yet in the stripe_idempotency_key table, so a
+ * retry of the same logical operation reuses the key, even from another process or after a restart.
+ * <p>
+ * An operation is identified by a description of what it does, e.g. "customer.create|user-1", which is stored as its
+ * SHA-256 hash. The description must name something that happens once: two separate operations with the same
+ * description would share a pending key, and Stripe would answer the second with the result of the first. Once the
+ * write has a definite outcome, {@link #complete(String)} removes the key, so the next identical operation is a new
+ * one and gets a new key. Keys older than the TTL are replaced, since Stripe keeps them for 24 hours only.
+ */
+public class IdempotencyKeyStore {
+
+    private static final String SELECT_SQL = "SELECT idempotency_key, created_at FROM stripe_idempotency_key WHERE operation = ?";
+    private static final String INSERT_SQL = "INSERT INTO stripe_idempotency_key (operation, idempotency_key, created_at) VALUES (?, ?, ?)";
+    private static final String RENEW_SQL = "UPDATE stripe_idempotency_key SET idempotency_key = ?, created_at = ? WHERE operation = ? AND idempotency_key = ?";
+    private static final String DELETE_SQL = "DELETE FROM stripe_idempotency_key WHERE operation = ?";
+    private static final String PURGE_SQL = "DELETE FROM stripe_idempotency_key WHERE created_at < ?";
+
+    private final DataSource dataSource;
+    private final Duration ttl;
+    private final Clock clock;
+    private final ULID ulid = new ULID();
+
+    public IdempotencyKeyStore(DataSource dataSource) {
+        this(dataSource, Duration.ofHours(24));
+    }
+
+    public IdempotencyKeyStore(DataSource dataSource, Duration ttl) {
+        this(dataSource, ttl, Clock.systemUTC());
+    }
+
+    IdempotencyKeyStore(DataSource dataSource, Duration ttl, Clock clock) {
+        this.dataSource = dataSource;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the key of a pending operation, or stores and returns a new key.
+     *
+     * @param operation The description of the operation.
+     * @return The idempotency key to send with every attempt of the operation.
+     */
+    public String acquire(String operation) {
+        String id = hash(operation);
+        try {
+            try {
+                return TransactionTemplate.execute(dataSource, session -> acquire(session, id));
+            } catch (SQLException e) {
+                if (!isUniqueViolation(e)) {
+                    throw e;
+                }
+                // Another caller stored a key for the same operation first; use that one.
+                return TransactionTemplate.execute(dataSource, session -> acquire(session, id));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error acquiring an idempotency key", e);
+        }
+    }
+
+    private String acquire(JdbcSession session, String id) throws SQLException {
+        Instant now = clock.instant();
+        PreparedStatement select = session.prepare(SELECT_SQL);
+        select.setString(1, id);
+        try (ResultSet rs = select.executeQuery()) {
+            if (rs.next()) {
+                String key = rs.getString(1);
+                if (rs.getTimestamp(2).toInstant().isAfter(now.minus(ttl))) {
+                    return key;
+                }
+                String renewed = newKey();
+                PreparedStatement renew = session.prepare(RENEW_SQL);
+                renew.setString(1, renewed);
+                renew.setTimestamp(2, Timestamp.from(now));
+                renew.setString(3, id);
+                renew.setString(4, key);
+                renew.executeUpdate();
+                return renewed;
+            }
+        }
+
+        String key = newKey();
+        PreparedStatement insert = session.prepare(INSERT_SQL);
+        insert.setString(1, id);
+        insert.setString(2, key);
+        insert.setTimestamp(3, Timestamp.from(now));
+        insert.executeUpdate();
+        return key;
+    }
+
+    /**
+     * Removes the key of an operation whose outcome is known, succeeded or definitely failed.
+     */
+    public void complete(String operation) {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(DELETE_SQL);
+            stmt.setString(1, hash(operation));
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error completing an idempotency key", e);
+        }
+    }
+
+    /**
+     * Removes the keys older than the TTL, left behind by operations that were never retried.
+     *
+     * @return The number of keys removed.
+     */
+    public int purgeExpired() {
+        try (JdbcSession session = JdbcSession.open(dataSource, false)) {
+            PreparedStatement stmt = session.prepare(PURGE_SQL);
+            stmt.setTimestamp(1, Timestamp.from(clock.instant().minus(ttl)));
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error purging idempotency keys", e);
+        }
+    }
+
+    private String newKey() {
+        return "stwrap-" + ulid.nextULID();
+    }
+
+    /**
+     * Returns the SHA-256 of an operation description as 64 hex characters.
+     */
+    public static String hash(String operation) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(operation.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        return "23505".equals(e.getSQLState()) || ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062);
+    }
+}
@@ -0,0 +1,15 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+
+/**
+ * A Stripe write that sends the given request options, which carry its idempotency key, with every attempt.
+ *
+ * @param <R> The type of the response.
+ */
+@FunctionalInterface
+public interface IdempotentStripeCall<R> {
+
+    R call(RequestOptions options) throws StripeException;
+}
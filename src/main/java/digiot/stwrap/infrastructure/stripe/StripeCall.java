@@ -0,0 +1,14 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import com.stripe.exception.StripeException;
+
+/**
+ * A single Stripe API request, run through a {@link StripeGateway}. It may be invoked more than once when retried.
+ *
+ * @param <R> The type of the response.
+ */
+@FunctionalInterface
+public interface StripeCall<R> {
+
+    R call() throws StripeException;
+}
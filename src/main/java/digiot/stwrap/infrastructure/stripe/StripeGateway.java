@@ -0,0 +1,279 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+import com.stripe.net.StripeResponse;
+import de.huxhorn.sulky.ulid.ULID;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.PropertiesLoader;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single path through which the services call Stripe. Reads and writes draw on separate {@link TokenBucket}s,
+ * whose rates adapt to the 429 responses Stripe returns, and failed calls are retried with exponential backoff and
+ * full jitter, waiting at least as long as a Retry-After header asks.
+ * <p>
+ * Rate-limited calls are always retried, since Stripe did not process them. Connection errors and 5xx responses are
+ * only retried for reads and for writes sent with an idempotency key, because retrying any other write could apply it
+ * twice. A Stripe-Should-Retry header overrides both rules.
+ * <p>
+ * {@link #write(String, String, IdempotentStripeCall)} sends the same idempotency key with every attempt: the caller's
+ * key, a key kept in an {@link IdempotencyKeyStore} until the operation completes, or otherwise a new key per call.
+ * Only operations that can happen once, such as creating the customer of a user, may use the store: any later write
+ * with the same description reuses a key left behind by a lost response, and Stripe then replays the old result
+ * instead of making the new write.
+ */
+public class StripeGateway {
+
+    private static final String PREFIX = "stwrap.stripe.";
+
+    private static final ULID ULID = new ULID();
+
+    private static volatile StripeGateway defaultGateway;
+
+    private final TokenBucket readLimiter;
+    private final TokenBucket writeLimiter;
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final IdempotencyKeyStore idempotencyKeys;
+    private final Integer connectTimeoutMillis;
+    private final Integer readTimeoutMillis;
+    private final Sleeper sleeper;
+
+    /**
+     * @param readLimiter  The limiter for reads, or null for no limit.
+     * @param writeLimiter The limiter for writes, or null for no limit.
+     * @param maxAttempts  The number of attempts per call, including the first.
+     * @param baseDelay    The backoff before the first retry, doubled for each further retry.
+     * @param maxDelay     The cap on the backoff before jitter.
+     */
+    public StripeGateway(TokenBucket readLimiter, TokenBucket writeLimiter, int maxAttempts, Duration baseDelay, Duration maxDelay) {
+        this(readLimiter, writeLimiter, maxAttempts, baseDelay, maxDelay, null, null, null);
+    }
+
+    /**
+     * @param idempotencyKeys The store keeping the keys of pending idempotent writes, or null to use a new key per
+     *                        call.
+     * @param connectTimeout  The connect timeout of idempotent writes, or null for the Stripe client's default.
+     * @param readTimeout     The read timeout of idempotent writes, or null for the Stripe client's default.
+     */
+    public StripeGateway(TokenBucket readLimiter, TokenBucket writeLimiter, int maxAttempts, Duration baseDelay, Duration maxDelay,
+                         IdempotencyKeyStore idempotencyKeys, Duration connectTimeout, Duration readTimeout) {
+        this(readLimiter, writeLimiter, maxAttempts, baseDelay, maxDelay, idempotencyKeys, connectTimeout, readTimeout, TimeUnit.NANOSECONDS::sleep);
+    }
+
+    StripeGateway(TokenBucket readLimiter, TokenBucket writeLimiter, int maxAttempts, Duration baseDelay, Duration maxDelay,
+                  IdempotencyKeyStore idempotencyKeys, Duration connectTimeout, Duration readTimeout, Sleeper sleeper) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+        }
+        this.readLimiter = readLimiter;
+        this.writeLimiter = writeLimiter;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = baseDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.idempotencyKeys = idempotencyKeys;
+        this.connectTimeoutMillis = connectTimeout == null ? null : Math.toIntExact(connectTimeout.toMillis());
+        this.readTimeoutMillis = readTimeout == null ? null : Math.toIntExact(readTimeout.toMillis());
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Returns the gateway shared by services created without one, configured by the stwrap.stripe.* properties:
+     * read.rate-per-second (80), read.min-rate-per-second (5), read.burst (the rate), the same three for write, and
+     * retry.max-attempts (4), retry.base-delay-ms (500) and retry.max-delay-ms (10000). Idempotent writes use
+     * connect-timeout-ms and read-timeout-ms when set, and keep their keys in the stripe_idempotency_key table of the
+     * default data source when idempotency.store-enabled is true, for idempotency.ttl-hours (24).
+     */
+    public static StripeGateway getDefault() {
+        StripeGateway current = defaultGateway;
+        if (current == null) {
+            synchronized (StripeGateway.class) {
+                current = defaultGateway;
+                if (current == null) {
+                    current = new StripeGateway(
+                            configuredLimiter("read."),
+                            configuredLimiter("write."),
+                            Integer.parseInt(PropertiesLoader.getProperty(PREFIX + "retry.max-attempts", "4")),
+                            Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "retry.base-delay-ms", "500"))),
+                            Duration.ofMillis(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "retry.max-delay-ms", "10000"))),
+                            configuredKeyStore(),
+                            configuredDuration("connect-timeout-ms"),
+                            configuredDuration("read-timeout-ms"));
+                    defaultGateway = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Runs a call that only reads from Stripe.
+     */
+    public <R> R read(StripeCall<R> call) throws StripeException {
+        return execute(readLimiter, call, true);
+    }
+
+    /**
+     * Runs a call that creates, updates or deletes Stripe objects.
+     */
+    public <R> R write(StripeCall<R> call) throws StripeException {
+        return execute(writeLimiter, call, false);
+    }
+
+    /**
+     * Runs a write with an idempotency key. Stripe answers every attempt with the same key with the result of the first
+     * one it processed, so the write is retried on connection errors, timeouts and 5xx responses like a read.
+     *
+     * @param operation      A description of an operation that happens at most once, such as "customer.create|user-1",
+     *                       which identifies its key in the {@link IdempotencyKeyStore}; or null to use a new key per
+     *                       call. Ignored when a key is given.
+     * @param idempotencyKey The caller's key for the operation, or null to use one kept for the operation.
+     * @param call           The write, which must send the request options it is given.
+     */
+    public <R> R write(String operation, String idempotencyKey, IdempotentStripeCall<R> call) throws StripeException {
+        boolean stored = idempotencyKey == null && operation != null && idempotencyKeys != null;
+        String key = idempotencyKey != null ? idempotencyKey : stored ? idempotencyKeys.acquire(operation) : "stwrap-" + ULID.nextULID();
+        RequestOptions options = RequestOptions.builder()
+                .setIdempotencyKey(key)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setReadTimeout(readTimeoutMillis)
+                .build();
+        try {
+            R response = execute(writeLimiter, () -> call.call(options), true);
+            if (stored) {
+                idempotencyKeys.complete(operation);
+            }
+            return response;
+        } catch (StripeException e) {
+            // Keep the key while the outcome is unknown, so the next attempt cannot apply the write a second time.
+            if (stored && isDefinite(e)) {
+                idempotencyKeys.complete(operation);
+            }
+            throw e;
+        }
+    }
+
+    private <R> R execute(TokenBucket limiter, StripeCall<R> call, boolean retrySafe) throws StripeException {
+        for (int attempt = 1; ; attempt++) {
+            if (limiter != null) {
+                sleep(limiter.reserve());
+            }
+            try {
+                R response = call.call();
+                if (limiter != null) {
+                    limiter.onSuccess();
+                }
+                return response;
+            } catch (StripeException e) {
+                boolean throttled = isRateLimited(e);
+                if (throttled && limiter != null) {
+                    limiter.onThrottled();
+                }
+                if (attempt >= maxAttempts || !isRetryable(e, throttled, retrySafe)) {
+                    throw e;
+                }
+                sleep(backoff(attempt, e));
+            }
+        }
+    }
+
+    private static boolean isRateLimited(StripeException e) {
+        return e instanceof RateLimitException || Integer.valueOf(429).equals(e.getStatusCode());
+    }
+
+    private static boolean isRetryable(StripeException e, boolean throttled, boolean retrySafe) {
+        Optional<String> shouldRetry = header(e, "Stripe-Should-Retry");
+        if (shouldRetry.isPresent()) {
+            return Boolean.parseBoolean(shouldRetry.get());
+        }
+        if (throttled) {
+            return true;
+        }
+        Integer status = e.getStatusCode();
+        return retrySafe && (e instanceof ApiConnectionException || (status != null && status >= 500));
+    }
+
+    /**
+     * Whether Stripe answered with a final client error, such as a declined card, as opposed to a rate limit, a
+     * concurrent request with the same key (409), a server error or no answer at all.
+     */
+    public static boolean isDefinite(StripeException e) {
+        Integer status = e.getStatusCode();
+        return status != null && status >= 400 && status < 500 && status != 409 && status != 429;
+    }
+
+    /**
+     * Returns a random delay up to the exponential backoff of the attempt, and at least the Retry-After of the
+     * response.
+     * The backoff doubles until it reaches the maximum delay and stays there, so it cannot overflow.
+     */
+    long backoff(int attempt, StripeException e) {
+        long ceiling = Math.min(baseDelayNanos, maxDelayNanos);
+        for (int i = 1; i < attempt && 0 < ceiling && ceiling < maxDelayNanos; i++) {
+            ceiling = ceiling > maxDelayNanos >> 1 ? maxDelayNanos : ceiling << 1;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(Math.max(1, Math.min(ceiling, Long.MAX_VALUE - 1)) + 1);
+        Optional<String> retryAfter = header(e, "Retry-After");
+        if (retryAfter.isPresent()) {
+            try {
+                delay = Math.max(delay, TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.get().trim())));
+            } catch (NumberFormatException ignored) {
+                // An HTTP date; the exponential backoff applies instead.
+            }
+        }
+        return delay;
+    }
+
+    private static Optional<String> header(StripeException e, String name) {
+        if (e.getStripeError() == null) {
+            return Optional.empty();
+        }
+        StripeResponse response = e.getStripeError().getLastResponse();
+        return response == null ? Optional.empty() : response.headers().firstValue(name);
+    }
+
+    private void sleep(long nanos) throws StripeException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            sleeper.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiConnectionException("Interrupted while waiting to call Stripe", e);
+        }
+    }
+
+    private static TokenBucket configuredLimiter(String kind) {
+        double rate = Double.parseDouble(PropertiesLoader.getProperty(PREFIX + kind + "rate-per-second", "80"));
+        double minRate = Double.parseDouble(PropertiesLoader.getProperty(PREFIX + kind + "min-rate-per-second", "5"));
+        double burst = Double.parseDouble(PropertiesLoader.getProperty(PREFIX + kind + "burst", String.valueOf(rate)));
+        return new TokenBucket(rate, Math.min(minRate, rate), burst);
+    }
+
+    private static IdempotencyKeyStore configuredKeyStore() {
+        if (!Boolean.parseBoolean(PropertiesLoader.getProperty(PREFIX + "idempotency.store-enabled", "false"))) {
+            return null;
+        }
+        return new IdempotencyKeyStore(DataSourceProvider.getDataSource(),
+                Duration.ofHours(Long.parseLong(PropertiesLoader.getProperty(PREFIX + "idempotency.ttl-hours", "24"))));
+    }
+
+    private static Duration configuredDuration(String key) {
+        String value = PropertiesLoader.getProperty(PREFIX + key);
+        return value == null ? null : Duration.ofMillis(Long.parseLong(value));
+    }
+
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long nanos) throws InterruptedException;
+    }
+}
@@ -0,0 +1,100 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token-bucket rate limiter whose rate adapts to throttling by the server (additive increase, multiplicative
+ * decrease).
+ * <p>
+ * Each throttled response halves the rate, at most once per second so that a burst of 429s from requests already in
+ * flight counts as one signal, and never below the minimum rate. Each successful request raises the rate by
+ * 1 / rate, which adds about one permit per second for every second spent at the current rate, up to the maximum.
+ * Permits are reserved in order: a caller that finds the bucket empty is told how long to wait for its permit.
+ */
+public class TokenBucket {
+
+    private static final double ADDITIVE_INCREASE = 1.0;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+    private final LongSupplier ticker;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastDecrease;
+
+    /**
+     * @param ratePerSecond    The maximum and initial rate.
+     * @param minRatePerSecond The rate below which throttling does not push the limit.
+     * @param burst            The number of permits that can be taken at once after an idle period.
+     */
+    public TokenBucket(double ratePerSecond, double minRatePerSecond, double burst) {
+        this(ratePerSecond, minRatePerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double ratePerSecond, double minRatePerSecond, double burst, LongSupplier ticker) {
+        if (ratePerSecond <= 0 || minRatePerSecond <= 0 || minRatePerSecond > ratePerSecond || burst < 1) {
+            throw new IllegalArgumentException("Invalid token bucket: rate " + ratePerSecond + ", min rate " + minRatePerSecond + ", burst " + burst);
+        }
+        this.maxRate = ratePerSecond;
+        this.minRate = minRatePerSecond;
+        this.burst = burst;
+        this.ticker = ticker;
+        this.rate = ratePerSecond;
+        this.tokens = burst;
+        this.lastRefill = ticker.getAsLong();
+        this.lastDecrease = lastRefill - DECREASE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Takes a permit.
+     *
+     * @return The number of nanoseconds the caller has to wait before using the permit, 0 if it can proceed now.
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Records a throttled response and lowers the rate, unless it was already lowered within the last second.
+     */
+    public synchronized void onThrottled() {
+        long now = ticker.getAsLong();
+        if (now - lastDecrease < DECREASE_INTERVAL_NANOS) {
+            return;
+        }
+        refill();
+        lastDecrease = now;
+        rate = Math.max(minRate, rate / 2);
+        tokens = Math.min(tokens, 0);
+    }
+
+    /**
+     * Records a successful response and raises the rate towards the maximum.
+     */
+    public synchronized void onSuccess() {
+        if (rate < maxRate) {
+            refill();
+            rate = Math.min(maxRate, rate + ADDITIVE_INCREASE / rate);
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private void refill() {
+        long now = ticker.getAsLong();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,23 @@
+package digiot.stwrap.infrastructure.concurrent;
+
+import digiot.stwrap.infrastructure.PropertiesLoader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the default executor on Java 21 and later: a virtual thread per task, unless
+ * stwrap.async.virtual-threads is false, in which case the bounded pool of platform threads is used.
+ */
+final class DefaultExecutorFactory {
+
+    private DefaultExecutorFactory() {
+    }
+
+    static ExecutorService create() {
+        if (!Boolean.parseBoolean(PropertiesLoader.getProperty("stwrap.async.virtual-threads", "true"))) {
+            return AsyncExecutors.newBoundedExecutor();
+        }
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("stwrap-async-", 1).factory());
+    }
+}
@@ -0,0 +1,34 @@
+-- Migrates a string-keyed stripe_linked_user table to native key columns on H2.
+--
+-- Run it through StripeLinkedUserKeyMigration, which substitutes ${id_type} and ${user_id_type} from the configured
+-- LinkIdCodec and UserIdCodec (e.g. BINARY(16) and BIGINT) and copies the rows at the copy marker below,
+-- converting each key with the codecs. Afterwards it creates the lookup indexes of StripeLinkedUserSchemaManager.
+--
+-- Index names are scoped per schema, so the indexes of the old table are renamed before the new ones are created.
+
+CREATE TABLE stripe_linked_user_native
+(
+    id                 ${id_type} PRIMARY KEY,
+    user_id            ${user_id_type} NOT NULL,
+    stripe_customer_id VARCHAR(255) NOT NULL,
+    is_primary         BOOLEAN   DEFAULT TRUE,
+    deleted            BOOLEAN   DEFAULT FALSE,
+    created_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    updated_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    version            BIGINT    DEFAULT 0 NOT NULL,
+    primary_user_id    ${user_id_type} GENERATED ALWAYS AS (CASE WHEN is_primary = TRUE AND deleted = FALSE THEN user_id END)
+);
+
+-- @copy
+
+ALTER INDEX IF EXISTS idx_stripe_linked_user_user_id RENAME TO idx_stripe_linked_user_legacy_user_id;
+ALTER INDEX IF EXISTS idx_stripe_linked_user_stripe_customer_id RENAME TO idx_stripe_linked_user_legacy_stripe_customer_id;
+ALTER INDEX IF EXISTS uq_stripe_linked_user_primary_user_id RENAME TO uq_stripe_linked_user_legacy_primary_user_id;
+ALTER INDEX IF EXISTS idx_stripe_linked_user_primary_lookup RENAME TO idx_stripe_linked_user_legacy_primary_lookup;
+ALTER INDEX IF EXISTS idx_stripe_linked_user_latest_lookup RENAME TO idx_stripe_linked_user_legacy_latest_lookup;
+
+ALTER TABLE stripe_linked_user RENAME TO stripe_linked_user_legacy;
+ALTER TABLE stripe_linked_user_native RENAME TO stripe_linked_user;
+
+CREATE INDEX idx_stripe_linked_user_stripe_customer_id ON stripe_linked_user (stripe_customer_id);
+CREATE UNIQUE INDEX uq_stripe_linked_user_primary_user_id ON stripe_linked_user (primary_user_id);
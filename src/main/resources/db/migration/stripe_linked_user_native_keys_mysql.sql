@@ -0,0 +1,29 @@
+-- Migrates a string-keyed stripe_linked_user table to native key columns on MySQL and MariaDB.
+--
+-- Run it through StripeLinkedUserKeyMigration, which substitutes ${id_type} and ${user_id_type} from the configured
+-- LinkIdCodec and UserIdCodec (e.g. BINARY(16) and BIGINT) and copies the rows at the copy marker below,
+-- converting each key with the codecs. Afterwards it creates the lookup indexes of StripeLinkedUserSchemaManager.
+--
+-- MySQL commits every DDL statement, so the new table gets its indexes before a single RENAME TABLE swaps both
+-- tables at once. A failure before the swap leaves stripe_linked_user untouched; drop stripe_linked_user_native and
+-- run the migration again. Index names are scoped per table, so they do not need renaming.
+
+CREATE TABLE stripe_linked_user_native
+(
+    id                 ${id_type} PRIMARY KEY,
+    user_id            ${user_id_type} NOT NULL,
+    stripe_customer_id VARCHAR(255) NOT NULL,
+    is_primary         BOOLEAN   DEFAULT TRUE,
+    deleted            BOOLEAN   DEFAULT FALSE,
+    created_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    updated_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    version            BIGINT    DEFAULT 0 NOT NULL,
+    primary_user_id    ${user_id_type} GENERATED ALWAYS AS (CASE WHEN is_primary = TRUE AND deleted = FALSE THEN user_id END) STORED
+);
+
+CREATE INDEX idx_stripe_linked_user_stripe_customer_id ON stripe_linked_user_native (stripe_customer_id);
+CREATE UNIQUE INDEX uq_stripe_linked_user_primary_user_id ON stripe_linked_user_native (primary_user_id);
+
+-- @copy
+
+RENAME TABLE stripe_linked_user TO stripe_linked_user_legacy, stripe_linked_user_native TO stripe_linked_user;
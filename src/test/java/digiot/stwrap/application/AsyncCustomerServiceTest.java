@@ -0,0 +1,97 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Subscription;
+import com.stripe.param.PaymentMethodCreateParams;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncCustomerServiceTest {
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    CustomerService<String> customerService = new CustomerService<>(userLinkRepository);
+
+    static StripeStub stripe;
+    static ExecutorService executor;
+
+    @BeforeAll
+    static void setUpAll() throws IOException {
+        stripe = StripeStub.start();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        executor.shutdownNow();
+        stripe.close();
+    }
+
+    @AfterEach
+    void tearDownEach() throws StripeException {
+        stripe.setLatency(Duration.ZERO);
+        StripeTestHelper.clean();
+    }
+
+    @Test
+    void addPaymentMethodToCustomer_createsWhileResolvingCustomer() {
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AsyncCustomerService<String> service = new AsyncCustomerService<>(customerService, task -> executor.execute(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        }));
+        stripe.setLatency(Duration.ofMillis(200));
+
+        PaymentMethod paymentMethod = service.addPaymentMethodToCustomer("async_user1", "tok_visa", PaymentMethodCreateParams.Type.CARD).join();
+
+        StripeLinkedUser<String> link = userLinkRepository.findPrimaryByUserId("async_user1").orElseThrow(AssertionError::new);
+        assertEquals(link.getStripeCustomerId(), paymentMethod.getCustomer());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    void addPaymentMethodToCustomer_completesExceptionallyWithStripeException() {
+
+        AsyncCustomerService<String> service = new AsyncCustomerService<>(customerService, executor);
+        stripe.failNext("POST /v1/payment_methods", 1, 400);
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> service.addPaymentMethodToCustomer("async_user2", "tok_visa", PaymentMethodCreateParams.Type.CARD).join());
+        assertTrue(e.getCause() instanceof StripeException);
+    }
+
+    @Test
+    void createSubscriptionWithToken_successful() throws StripeException {
+
+        AsyncSubscriptionService<String> service = new AsyncSubscriptionService<>(new SubscriptionService<>(customerService), executor);
+        String planId = StripeTestHelper.createTestPlan(StripeTestHelper.createTestProduct("Product").getId(), 1000, "usd", "month").getId();
+
+        Subscription subscription = service.createSubscriptionWithToken("async_user3", planId, "tok_visa", 1).join();
+
+        assertEquals("active", subscription.getStatus());
+        assertEquals(userLinkRepository.findPrimaryByUserId("async_user3").orElseThrow(AssertionError::new).getStripeCustomerId(), subscription.getCustomer());
+    }
+}
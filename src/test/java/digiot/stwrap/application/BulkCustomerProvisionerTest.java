@@ -0,0 +1,99 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.jdbc.JobCheckpointStore;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkCustomerProvisionerTest {
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    JobCheckpointStore checkpoints = new JobCheckpointStore(DataSourceProvider.getDataSource());
+    StripeGateway gateway = new StripeGateway(null, null, 3, Duration.ZERO, Duration.ZERO);
+    BulkCustomerProvisioner<String> provisioner = new BulkCustomerProvisioner<>(userLinkRepository, gateway, checkpoints, 4, 10, Duration.ofMinutes(1));
+    StripeStub stripe;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+    }
+
+    @Test
+    void provision_createsAndLinksCustomers() throws StripeException {
+
+        List<String> userIds = userIds("bulk_a_", 25);
+        userLinkRepository.insert(new StripeLinkedUserFactory<String>().create("bulk_a_3", "cus_existing"));
+
+        BulkCustomerProvisioner.Progress progress = provisioner.provision("bulk_a", userIds.stream());
+
+        assertEquals(25, progress.getPosition());
+        assertEquals(24, progress.getCreated());
+        assertEquals(1, progress.getAlreadyLinked());
+        assertEquals(24, stripe.count("customer"));
+        assertEquals(25, userLinkRepository.findPrimaryByUserIds(userIds).size());
+        assertEquals("cus_existing", userLinkRepository.findPrimaryByUserId("bulk_a_3").get().getStripeCustomerId());
+        assertEquals(25, checkpoints.load("bulk_a"));
+    }
+
+    @Test
+    void provision_resumesFromCheckpointWithoutDuplicates() throws StripeException {
+
+        List<String> userIds = userIds("bulk_b_", 25);
+        provisioner.provision("bulk_b", userIds.subList(0, 10).stream());
+        stripe.failNext("POST /v1/customers", 1, 400);
+
+        assertThrows(InvalidRequestException.class, () -> provisioner.provision("bulk_b", userIds.stream()));
+        assertEquals(10, checkpoints.load("bulk_b"));
+        assertEquals(19, userLinkRepository.findPrimaryByUserIds(userIds).size());
+
+        // A lost response is retried with the same idempotency key, so Stripe does not create a second customer.
+        stripe.loseResponseNext("POST /v1/customers", 1);
+        BulkCustomerProvisioner.Progress progress = provisioner.provision("bulk_b", userIds.stream());
+
+        assertEquals(15, progress.getProcessed());
+        assertEquals(6, progress.getCreated());
+        assertEquals(25, stripe.count("customer"));
+        assertEquals(25, userLinkRepository.findPrimaryByUserIds(userIds).size());
+        assertEquals(25, checkpoints.load("bulk_b"));
+    }
+
+    @Test
+    void provision_keepsCustomerOfUserListedTwice() throws StripeException {
+
+        List<String> userIds = List.of("bulk_c_0", "bulk_c_dup", "bulk_c_dup", "bulk_c_1");
+
+        BulkCustomerProvisioner.Progress progress = provisioner.provision("bulk_c", userIds.stream());
+
+        assertEquals(4, progress.getPosition());
+        assertEquals(3, stripe.count("customer"));
+        assertEquals(0, stripe.calls("DELETE /v1/customers/{id}"));
+        String customerId = userLinkRepository.findPrimaryByUserId("bulk_c_dup").orElseThrow().getStripeCustomerId();
+        assertEquals(customerId, gateway.read(() -> Customer.retrieve(customerId)).getId());
+    }
+
+    private static List<String> userIds(String prefix, int count) {
+        return IntStream.range(0, count).mapToObj(i -> prefix + i).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,112 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.param.CustomerCreateParams;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.H2TestDatabase;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CustomerReconcilerTest {
+
+    StripeGateway gateway = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO);
+    StripeLinkedUserRepository<String> userLinkRepository;
+    StripeStub stripe;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+    }
+
+    private CustomerReconciler<String> reconciler(String database, Duration grace) {
+        userLinkRepository = new DefaultStripeLinkedUserRepository<>(H2TestDatabase.create(database));
+        return new CustomerReconciler<>(userLinkRepository, gateway, 2, Instant.now().minus(Duration.ofHours(1)), grace);
+    }
+
+    private void link(String userId, String customerId) {
+        userLinkRepository.insert(new StripeLinkedUserFactory<String>().create(userId, customerId));
+    }
+
+    private static String createCustomer() throws StripeException {
+        return Customer.create(CustomerCreateParams.builder().build()).getId();
+    }
+
+    @Test
+    void reconcile_reportsLinksToMissingCustomersAndUnlinkedCustomers() throws StripeException {
+
+        CustomerReconciler<String> reconciler = reconciler("reconcile_report", Duration.ZERO);
+        link("user1", createCustomer());
+        String unlinked = createCustomer();
+        String deleted = createCustomer();
+        Customer.retrieve(deleted).delete();
+        link("user2", deleted);
+
+        List<CustomerReconciler.Difference<String>> differences = new ArrayList<>();
+        CustomerReconciler.Report report = reconciler.reconcile(differences::add, false);
+
+        assertEquals(2, report.getCustomers());
+        assertEquals(2, report.getLinks());
+        assertEquals(1, report.getCustomersWithoutLink());
+        assertEquals(1, report.getLinksToMissingCustomers());
+        assertEquals(0, report.getRepairedLinks());
+        assertEquals(2, differences.size());
+        assertTrue(differences.contains(new CustomerReconciler.Difference<String>(
+                CustomerReconciler.DifferenceType.CUSTOMER_WITHOUT_LINK, unlinked, null, false)));
+        assertTrue(userLinkRepository.findPrimaryByUserId("user2").isPresent());
+    }
+
+    @Test
+    void reconcile_repairsLinksToDeletedCustomers() throws StripeException {
+
+        CustomerReconciler<String> reconciler = reconciler("reconcile_repair", Duration.ZERO);
+        link("user1", createCustomer());
+        String deleted = createCustomer();
+        Customer.retrieve(deleted).delete();
+        link("user2", deleted);
+
+        CustomerReconciler.Report report = reconciler.reconcile(difference -> { }, true);
+
+        assertEquals(1, report.getRepairedLinks());
+        assertFalse(userLinkRepository.findPrimaryByUserId("user2").isPresent());
+        assertTrue(userLinkRepository.findPrimaryByUserId("user1").isPresent());
+    }
+
+    @Test
+    void reconcile_pagesThroughEveryCustomerAndSkipsRecentOnes() throws StripeException {
+
+        CustomerReconciler<String> reconciler = reconciler("reconcile_pages", Duration.ZERO);
+        for (int i = 0; i < 250; i++) {
+            String customerId = createCustomer();
+            if (i != 7) {
+                link("user" + i, customerId);
+            }
+        }
+
+        assertEquals(1, reconciler.reconcile(difference -> { }, false).getCustomersWithoutLink());
+        assertEquals(250, reconciler.reconcile(difference -> { }, false).getCustomers());
+        assertTrue(stripe.calls("GET /v1/customers") >= 3 * 2);
+
+        CustomerReconciler<String> lenient = new CustomerReconciler<>(userLinkRepository, gateway, 2,
+                Instant.now().minus(Duration.ofHours(1)), Duration.ofMinutes(10));
+        assertEquals(0, lenient.reconcile(difference -> { }, false).getCustomersWithoutLink());
+    }
+}
@@ -0,0 +1,81 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.stripe.IdempotentStripeCall;
+import digiot.stwrap.infrastructure.stripe.StripeCall;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CustomerServiceTest {
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    CustomerService<String> customerService = new CustomerService<>(userLinkRepository);
+
+    private static Customer customer(String id) {
+        Customer customer = new Customer();
+        customer.setId(id);
+        return customer;
+    }
+
+    @Test
+    void linkStripeCustomer_replacesPrimaryLink() throws StripeException {
+
+        customerService.linkStripeCustomer("service_relink", customer("cus_relink_old"));
+        StripeLinkedUser<String> link = customerService.linkStripeCustomer("service_relink", customer("cus_relink_new"));
+
+        assertEquals(link.getId(), userLinkRepository.findPrimaryByUserId("service_relink").orElseThrow().getId());
+        List<StripeLinkedUser<String>> links = userLinkRepository.findAllLinksByUserId("service_relink");
+        assertEquals(1, links.size());
+        assertEquals("cus_relink_new", links.get(0).getStripeCustomerId());
+    }
+
+    @Test
+    void getOrCreateStripeLinkedUser_keepsCustomerSharedWithWinnerOfLinkRace() throws StripeException {
+
+        String userId = "service_race_shared";
+        userLinkRepository.insert(new StripeLinkedUserFactory<String>().create(userId, "cus_race_shared"));
+
+        // The lookup misses as if the other process linked the user just after it, and the stored idempotency key
+        // hands this process the customer the other one created.
+        AtomicBoolean raced = new AtomicBoolean();
+        StripeLinkedUserRepository<String> racingRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource()) {
+            @Override
+            public Optional<StripeLinkedUser<String>> findPrimaryByUserId(String id) {
+                return raced.compareAndSet(false, true) ? Optional.empty() : super.findPrimaryByUserId(id);
+            }
+        };
+        AtomicInteger deletes = new AtomicInteger();
+        StripeGateway sharedKeyGateway = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <R> R write(String operation, String idempotencyKey, IdempotentStripeCall<R> call) {
+                return (R) customer("cus_race_shared");
+            }
+
+            @Override
+            public <R> R write(StripeCall<R> call) {
+                deletes.incrementAndGet();
+                return null;
+            }
+        };
+
+        StripeLinkedUser<String> link = new CustomerService<>(racingRepository, sharedKeyGateway).getOrCreateStripeLinkedUser(userId);
+
+        assertEquals("cus_race_shared", link.getStripeCustomerId());
+        assertEquals(0, deletes.get());
+    }
+}
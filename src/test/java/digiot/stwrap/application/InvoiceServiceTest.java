@@ -0,0 +1,109 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Coupon;
+import com.stripe.model.Invoice;
+import com.stripe.model.Plan;
+import com.stripe.model.Subscription;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InvoiceServiceTest {
+
+    static final String UPCOMING = "GET /v1/invoices/upcoming";
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    CustomerService<String> customerService = new CustomerService<>(userLinkRepository);
+    SubscriptionService<String> subscriptionService = new SubscriptionService<>(customerService);
+    InvoiceService<String> invoiceService = new InvoiceService<>(customerService, customerService.gateway,
+            new BoundedCache<>(100, Duration.ofMinutes(5)), 4);
+
+    static StripeStub stripe;
+
+    @BeforeAll
+    static void setUpAll() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        stripe.close();
+    }
+
+    @AfterEach
+    void tearDownEach() throws StripeException {
+        StripeTestHelper.clean();
+    }
+
+    private Plan plan(long amount) throws StripeException {
+        return StripeTestHelper.createTestPlan(StripeTestHelper.createTestProduct("Product").getId(), amount, "usd", "month");
+    }
+
+    @Test
+    void getNextInvoice_cachesUntilSubscriptionChanges() throws StripeException {
+
+        // Created from the subscription service, the invoice service hears of its changes without further wiring.
+        InvoiceService<String> invoiceService = new InvoiceService<>(subscriptionService);
+        String userId = "invoice_user1";
+        Subscription subscription = subscriptionService.createSubscriptionWithToken(userId, plan(1000).getId(),
+                StripeTestHelper.createTestToken().getId(), 1);
+        int before = stripe.calls(UPCOMING);
+
+        assertEquals(1000L, invoiceService.getNextInvoice(userId).getAmountDue());
+        assertEquals(1000L, invoiceService.getNextInvoice(userId).getAmountDue());
+        assertEquals(before + 1, stripe.calls(UPCOMING));
+
+        Coupon coupon = StripeTestHelper.createTestCoupon(10, "once");
+        subscriptionService.applyCouponToSubscription(subscription.getId(), coupon.getId());
+
+        assertEquals(900L, invoiceService.getNextInvoice(userId).getAmountDue());
+        assertEquals(before + 2, stripe.calls(UPCOMING));
+    }
+
+    @Test
+    void getNextInvoice_doesNotCacheWithoutSubscriptionService() throws StripeException {
+
+        String userId = "invoice_user5";
+        subscriptionService.createSubscriptionWithToken(userId, plan(700).getId(), StripeTestHelper.createTestToken().getId(), 1);
+        InvoiceService<String> uncached = new InvoiceService<>(customerService);
+        int before = stripe.calls(UPCOMING);
+
+        uncached.getNextInvoice(userId);
+        uncached.getNextInvoice(userId);
+        assertEquals(before + 2, stripe.calls(UPCOMING));
+    }
+
+    @Test
+    void getNextInvoices_retrievesMissesAndSkipsUsersWithoutInvoice() throws StripeException {
+
+        Plan plan = plan(500);
+        subscriptionService.createSubscriptionWithToken("invoice_user2", plan.getId(), StripeTestHelper.createTestToken().getId(), 1);
+        subscriptionService.createSubscriptionWithToken("invoice_user3", plan.getId(), StripeTestHelper.createTestToken().getId(), 3);
+        customerService.getOrCreateStripeLinkedUser("invoice_user4");
+        invoiceService.getNextInvoice("invoice_user2");
+        int before = stripe.calls(UPCOMING);
+
+        Map<String, Invoice> invoices = invoiceService.getNextInvoices(Arrays.asList("invoice_user2", "invoice_user3", "invoice_user4"));
+
+        assertEquals(2, invoices.size());
+        assertEquals(500L, invoices.get("invoice_user2").getAmountDue());
+        assertEquals(1500L, invoices.get("invoice_user3").getAmountDue());
+        assertFalse(invoices.containsKey("invoice_user4"));
+        assertEquals(before + 2, stripe.calls(UPCOMING));
+    }
+}
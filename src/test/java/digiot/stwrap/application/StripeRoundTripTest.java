@@ -0,0 +1,91 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Subscription;
+import com.stripe.param.PaymentMethodCreateParams;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Counts the Stripe calls made by each user-facing operation against a local stub.
+ */
+class StripeRoundTripTest {
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    CustomerService<String> customerService = new CustomerService<>(userLinkRepository);
+    SubscriptionService<String> subscriptionService = new SubscriptionService<>(customerService);
+    StripeStub stripe;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterEach
+    void tearDown() throws StripeException {
+        StripeTestHelper.clean();
+        stripe.close();
+    }
+
+    @Test
+    void addPaymentMethodToCustomer_createsAndAttaches() throws StripeException {
+
+        customerService.getOrCreateStripeLinkedUser("roundtrip_user1");
+        stripe.reset();
+
+        PaymentMethod paymentMethod = customerService.addPaymentMethodToCustomer("roundtrip_user1", "tok_visa", PaymentMethodCreateParams.Type.CARD);
+
+        assertNotNull(paymentMethod.getId());
+        assertEquals(1, stripe.calls("POST /v1/payment_methods"));
+        assertEquals(1, stripe.calls("POST /v1/payment_methods/{id}/attach"));
+        assertEquals(2, stripe.totalCalls());
+    }
+
+    @Test
+    void createSubscriptionWithToken_resolvesUserOnce() throws StripeException {
+
+        String productId = StripeTestHelper.createTestProduct("Product").getId();
+        String planId = StripeTestHelper.createTestPlan(productId, 1000, "usd", "month").getId();
+        stripe.reset();
+
+        Subscription subscription = subscriptionService.createSubscriptionWithToken("roundtrip_user2", planId, "tok_visa", 1);
+
+        assertEquals("active", subscription.getStatus());
+        assertEquals(1, stripe.calls("POST /v1/customers"));
+        assertEquals(1, stripe.calls("POST /v1/payment_methods"));
+        assertEquals(1, stripe.calls("POST /v1/payment_methods/{id}/attach"));
+        assertEquals(1, stripe.calls("POST /v1/subscriptions"));
+        assertEquals(4, stripe.totalCalls());
+    }
+
+    @Test
+    void subscriptionUpdates_makeOneCallEach() throws StripeException {
+
+        String customerId = customerService.getOrCreateStripeLinkedUser("roundtrip_user3").getStripeCustomerId();
+        String productId = StripeTestHelper.createTestProduct("Product").getId();
+        String planId = StripeTestHelper.createTestPlan(productId, 1000, "usd", "month").getId();
+        String couponId = StripeTestHelper.createTestCoupon(10, "once").getId();
+        String subscriptionId = StripeTestHelper.createSubscription(customerId, planId).getId();
+        stripe.reset();
+
+        subscriptionService.applyCouponToSubscription(subscriptionId, couponId);
+        subscriptionService.cancelSubscriptionAtDate(subscriptionId, OffsetDateTime.now().plusDays(30));
+        Subscription subscription = subscriptionService.cancelSubscriptionAtPeriodEnd(subscriptionId);
+
+        assertTrue(subscription.getCancelAtPeriodEnd());
+        assertEquals(3, stripe.calls("POST /v1/subscriptions/{id}"));
+        assertEquals(3, stripe.totalCalls());
+    }
+}
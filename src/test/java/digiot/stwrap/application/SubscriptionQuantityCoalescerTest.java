@@ -0,0 +1,131 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Subscription;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriptionQuantityCoalescerTest {
+
+    static final String UPDATE = "POST /v1/subscriptions/{id}";
+    static final String RETRIEVE = "GET /v1/subscriptions/{id}";
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    CustomerService<String> customerService = new CustomerService<>(userLinkRepository);
+    SubscriptionService<String> subscriptionService = new SubscriptionService<>(customerService);
+
+    static StripeStub stripe;
+
+    ExecutorService executor;
+    SubscriptionQuantityCoalescer<String> coalescer;
+
+    @BeforeAll
+    static void setUpAll() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        stripe.close();
+    }
+
+    @BeforeEach
+    void setUpEach() {
+        executor = Executors.newCachedThreadPool();
+        coalescer = new SubscriptionQuantityCoalescer<>(subscriptionService, Duration.ofMillis(200), executor,
+                new BoundedCache<>(100, Duration.ofHours(1)));
+    }
+
+    @AfterEach
+    void tearDownEach() throws StripeException {
+        stripe.setLatency(UPDATE, Duration.ZERO);
+        executor.shutdownNow();
+        StripeTestHelper.clean();
+    }
+
+    private Subscription subscription(String userId) throws StripeException {
+        String planId = StripeTestHelper.createTestPlan(StripeTestHelper.createTestProduct("Product").getId(), 1000, "usd", "month").getId();
+        return subscriptionService.createSubscriptionWithToken(userId, planId, StripeTestHelper.createTestToken().getId(), 1);
+    }
+
+    private static long quantity(Subscription subscription) {
+        return subscription.getItems().getData().get(0).getQuantity();
+    }
+
+    @Test
+    void updateQuantity_sendsOneUpdatePerWindowWithTheLastQuantity() throws StripeException {
+
+        Subscription subscription = subscription("coalescer_user1");
+        int before = stripe.calls(UPDATE);
+
+        CompletableFuture<Subscription> first = coalescer.updateQuantity(subscription.getId(), 2);
+        CompletableFuture<Subscription> second = coalescer.updateQuantity(subscription.getId(), 3);
+        CompletableFuture<Subscription> third = coalescer.updateQuantity(subscription.getId(), 5);
+
+        assertEquals(5L, quantity(first.join()));
+        assertEquals(5L, quantity(second.join()));
+        assertEquals(5L, quantity(third.join()));
+        assertEquals(before + 1, stripe.calls(UPDATE));
+        assertEquals(5L, quantity(Subscription.retrieve(subscription.getId())));
+    }
+
+    @Test
+    void updateQuantity_waitsForTheUpdateInFlight() throws Exception {
+
+        Subscription subscription = subscription("coalescer_user2");
+        int before = stripe.calls(UPDATE);
+        stripe.setLatency(UPDATE, Duration.ofMillis(600));
+
+        CompletableFuture<Subscription> first = coalescer.updateQuantity(subscription.getId(), 2);
+        while (stripe.calls(UPDATE) == before) {
+            Thread.sleep(10);
+        }
+        CompletableFuture<Subscription> second = coalescer.updateQuantity(subscription.getId(), 3);
+        CompletableFuture<Subscription> third = coalescer.updateQuantity(subscription.getId(), 4);
+
+        // The window of the second batch closes while the first update is still in flight.
+        Thread.sleep(300);
+        assertEquals(before + 1, stripe.calls(UPDATE));
+
+        assertEquals(2L, quantity(first.join()));
+        assertFalse(second.isDone());
+        assertEquals(4L, quantity(second.join()));
+        assertEquals(4L, quantity(third.join()));
+        assertEquals(before + 2, stripe.calls(UPDATE));
+    }
+
+    @Test
+    void updateQuantity_failsWaitersAndLooksUpTheItemAgainAfterRejection() throws StripeException {
+
+        Subscription subscription = subscription("coalescer_user3");
+        int retrievals = stripe.calls(RETRIEVE);
+        stripe.failNext(UPDATE, 1, 400);
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> coalescer.updateQuantity(subscription.getId(), 2).join());
+        assertInstanceOf(InvalidRequestException.class, e.getCause());
+        assertEquals(retrievals + 1, stripe.calls(RETRIEVE));
+
+        assertEquals(3L, quantity(coalescer.updateQuantity(subscription.getId(), 3).join()));
+        assertEquals(retrievals + 2, stripe.calls(RETRIEVE));
+    }
+}
@@ -7,12 +7,14 @@ import digiot.stwrap.domain.model.StripeLinkedUser;
 import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
 import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
 import digiot.stwrap.helper.StripeTestHelper;
+import digiot.stwrap.helper.StripeStub;
 import digiot.stwrap.infrastructure.DataSourceProvider;
-import digiot.stwrap.infrastructure.StripeApiKeyInitializer;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
 import java.time.OffsetDateTime;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -23,21 +25,21 @@ public class SubscriptionServiceTest {
     CustomerService<String> customerService = new CustomerService<>(userLinkRepository);
     SubscriptionService<String> subscriptionService = new SubscriptionService<>(customerService);
 
+    static StripeStub stripe;
+
     @BeforeAll
-    static void setUpAll() {
-        StripeApiKeyInitializer.initialize();
+    static void setUpAll() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        stripe.close();
     }
 
     @AfterEach
     void tearDownEach() throws StripeException {
         StripeTestHelper.clean();
-        userLinkRepository.findAll().forEach(u -> {
-            try {
-                Customer.retrieve(u.getStripeCustomerId()).delete();
-            } catch (StripeException e) {
-                e.printStackTrace();
-            }
-        });
     }
 
     @Test
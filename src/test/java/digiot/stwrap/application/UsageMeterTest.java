@@ -0,0 +1,157 @@
+package digiot.stwrap.application;
+
+import com.stripe.exception.StripeException;
+import digiot.stwrap.helper.H2TestDatabase;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.infrastructure.jdbc.PendingUsageStore;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UsageMeterTest {
+
+    static final String USAGE_RECORDS = "POST /v1/subscription_items/{id}/usage_records";
+
+    StripeGateway gateway = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO);
+    StripeStub stripe;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+    }
+
+    private static PendingUsageStore store(String name) {
+        return new PendingUsageStore(H2TestDatabase.create(name));
+    }
+
+    private UsageMeter meter(PendingUsageStore store, int maxPendingItems) {
+        return new UsageMeter(gateway, store, Duration.ofHours(1), Duration.ofHours(1), maxPendingItems);
+    }
+
+    @Test
+    void flush_reportsOneRecordPerItemForConcurrentIncrements() throws Exception {
+
+        try (UsageMeter meter = meter(store("usage_concurrent"), 1000)) {
+            meter.flush();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        meter.record(i % 2 == 0 ? "si_a" : "si_b");
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            meter.flush();
+
+            assertEquals(40000L, stripe.usage("si_a"));
+            assertEquals(40000L, stripe.usage("si_b"));
+            assertEquals(2, stripe.calls(USAGE_RECORDS));
+        }
+    }
+
+    @Test
+    void flush_resendsUnreportedUsageAfterRestartWithoutCountingTwice() throws StripeException {
+
+        PendingUsageStore store = store("usage_restart");
+        UsageMeter first = meter(store, 1000);
+        // Let the flush run at start finish, so that only the explicit flush sends the usage.
+        first.flush();
+        first.record("si_c", 5);
+        first.record("si_d", 7);
+        stripe.loseResponseNext(USAGE_RECORDS, 1);
+        assertThrows(StripeException.class, first::flush);
+        stripe.failNext(USAGE_RECORDS, 1, 503);
+        first.close();
+
+        // The first record was processed, its response lost; the second was not processed at all.
+        try (UsageMeter second = meter(store, 1000)) {
+            second.flush();
+        }
+        assertEquals(5L, stripe.usage("si_c"));
+        assertEquals(7L, stripe.usage("si_d"));
+    }
+
+    @Test
+    void record_flushesWhenEnoughItemsArePending() throws StripeException, InterruptedException {
+
+        try (UsageMeter meter = meter(store("usage_threshold"), 3)) {
+            meter.flush();
+            meter.record("si_e", 2);
+            meter.record("si_f", 3);
+            meter.record("si_g", 4);
+
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (stripe.usage("si_e") + stripe.usage("si_f") + stripe.usage("si_g") < 9 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2L, stripe.usage("si_e"));
+            assertEquals(4L, stripe.usage("si_g"));
+            assertEquals(3, stripe.calls(USAGE_RECORDS));
+        }
+    }
+
+    @Test
+    void close_reportsEveryRecordThatSucceeded() throws Exception {
+
+        UsageMeter meter = meter(store("usage_close"), 1000);
+        meter.flush();
+        AtomicLong recorded = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        meter.record("si_h");
+                        recorded.incrementAndGet();
+                    }
+                } catch (IllegalStateException e) {
+                    // Closed.
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(50);
+        meter.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(recorded.get(), stripe.usage("si_h"));
+    }
+
+    @Test
+    void flush_reportsUsageOfItemIdleSinceLastPersist() throws StripeException {
+
+        try (UsageMeter meter = meter(store("usage_idle"), 1000)) {
+            meter.flush();
+            meter.record("si_i", 2);
+            meter.flush();
+            // The counter had no usage since the previous persist and is removed.
+            meter.flush();
+            meter.record("si_i", 3);
+            meter.flush();
+
+            assertEquals(5L, stripe.usage("si_i"));
+        }
+    }
+}
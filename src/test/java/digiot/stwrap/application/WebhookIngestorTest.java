@@ -0,0 +1,122 @@
+package digiot.stwrap.application;
+
+import com.stripe.Stripe;
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.net.Webhook;
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.LocalSubscription;
+import digiot.stwrap.domain.repository.StripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.domain.repository.impl.DefaultStripeReadModelRepository;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import digiot.stwrap.infrastructure.stripe.StripeGateway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebhookIngestorTest {
+
+    static final String SECRET = "whsec_test";
+
+    StripeLinkedUserRepository<String> userLinkRepository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    DefaultStripeReadModelRepository readModel = new DefaultStripeReadModelRepository(DataSourceProvider.getDataSource());
+    StripeGateway gateway = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO);
+    SubscriptionService<String> subscriptionService = new SubscriptionService<>(new CustomerService<>(userLinkRepository, gateway), readModel);
+    WebhookIngestor ingestor = new WebhookIngestor(readModel, SECRET, Duration.ofMinutes(5), 100, Duration.ofMillis(50), 1000,
+            new BoundedCache<>(1000, Duration.ofHours(1)));
+
+    @AfterEach
+    void tearDown() {
+        ingestor.close();
+    }
+
+    private static String subscriptionEvent(String eventId, String type, long created, String subscriptionId, String customerId, String status) {
+        return "{\"id\":\"" + eventId + "\",\"object\":\"event\",\"api_version\":\"" + Stripe.API_VERSION + "\",\"created\":" + created
+                + ",\"type\":\"" + type + "\",\"data\":{\"object\":{\"id\":\"" + subscriptionId + "\",\"object\":\"subscription\""
+                + ",\"customer\":\"" + customerId + "\",\"status\":\"" + status + "\",\"cancel_at_period_end\":false"
+                + ",\"current_period_start\":" + created + ",\"current_period_end\":" + (created + 2592000)
+                + ",\"items\":{\"object\":\"list\",\"data\":[{\"id\":\"si_" + subscriptionId + "\",\"object\":\"subscription_item\""
+                + ",\"plan\":{\"id\":\"plan_basic\",\"object\":\"plan\"},\"quantity\":2}]}}}}";
+    }
+
+    private static String sign(String payload) throws Exception {
+        long timestamp = Webhook.Util.getTimeNow();
+        return "t=" + timestamp + ",v1=" + Webhook.Util.computeHmacSha256(SECRET, timestamp + "." + payload);
+    }
+
+    @Test
+    void ingest_keepsActiveSubscriptionsReadableWithoutStripe() throws Exception {
+
+        userLinkRepository.insert(new StripeLinkedUserFactory<String>().create("webhook_user1", "cus_wh1"));
+
+        String created = subscriptionEvent("evt_wh1", "customer.subscription.created", 1000, "sub_wh1", "cus_wh1", "active");
+        assertTrue(ingestor.ingest(created, sign(created)));
+
+        List<LocalSubscription> subscriptions = subscriptionService.getActiveSubscriptions("webhook_user1");
+        assertEquals(1, subscriptions.size());
+        assertEquals("plan_basic", subscriptions.get(0).getItems().get(0).getPlanId());
+        assertEquals(2L, subscriptions.get(0).getItems().get(0).getQuantity());
+
+        String deleted = subscriptionEvent("evt_wh2", "customer.subscription.deleted", 2000, "sub_wh1", "cus_wh1", "canceled");
+        assertTrue(ingestor.ingest(deleted, sign(deleted)));
+        assertTrue(subscriptionService.getActiveSubscriptions("webhook_user1").isEmpty());
+    }
+
+    @Test
+    void submit_ignoresOlderEventDeliveredLate() throws Exception {
+
+        userLinkRepository.insert(new StripeLinkedUserFactory<String>().create("webhook_user2", "cus_wh2"));
+        String newer = subscriptionEvent("evt_wh3", "customer.subscription.deleted", 2000, "sub_wh2", "cus_wh2", "canceled");
+        String older = subscriptionEvent("evt_wh4", "customer.subscription.updated", 1000, "sub_wh2", "cus_wh2", "active");
+
+        CompletableFuture<Boolean> first = ingestor.submit(newer, sign(newer));
+        CompletableFuture<Boolean> second = ingestor.submit(older, sign(older));
+        assertTrue(first.join());
+        assertTrue(second.join());
+        assertTrue(subscriptionService.getActiveSubscriptions("webhook_user2").isEmpty());
+
+        // Also when the older event arrives in a later batch.
+        String late = subscriptionEvent("evt_wh5", "customer.subscription.updated", 1500, "sub_wh2", "cus_wh2", "active");
+        ingestor.ingest(late, sign(late));
+        assertTrue(subscriptionService.getActiveSubscriptions("webhook_user2").isEmpty());
+    }
+
+    @Test
+    void ingest_rejectsBadSignatureAndSkipsRedelivery() throws Exception {
+
+        String payload = subscriptionEvent("evt_wh6", "customer.subscription.created", 1000, "sub_wh3", "cus_wh3", "active");
+
+        assertThrows(SignatureVerificationException.class, () -> ingestor.ingest(payload, "t=1,v1=bad"));
+        assertTrue(ingestor.ingest(payload, sign(payload)));
+        assertFalse(ingestor.ingest(payload, sign(payload)));
+    }
+
+    @Test
+    void submit_failsOnlyTheEventThatCannotBeApplied() throws Exception {
+
+        userLinkRepository.insert(new StripeLinkedUserFactory<String>().create("webhook_user4", "cus_wh4"));
+        // A subscription event carrying an invoice cannot be applied.
+        String poison = "{\"id\":\"evt_wh7\",\"object\":\"event\",\"api_version\":\"" + Stripe.API_VERSION + "\",\"created\":1000"
+                + ",\"type\":\"customer.subscription.updated\",\"data\":{\"object\":{\"id\":\"in_wh7\",\"object\":\"invoice\"}}}";
+        // The preview of invoice.upcoming has no ID.
+        String upcoming = "{\"id\":\"evt_wh8\",\"object\":\"event\",\"api_version\":\"" + Stripe.API_VERSION + "\",\"created\":1000"
+                + ",\"type\":\"invoice.upcoming\",\"data\":{\"object\":{\"object\":\"invoice\",\"customer\":\"cus_wh4\",\"amount_due\":1000}}}";
+        String created = subscriptionEvent("evt_wh9", "customer.subscription.created", 1000, "sub_wh4", "cus_wh4", "active");
+
+        CompletableFuture<Boolean> failed = ingestor.submit(poison, sign(poison));
+        CompletableFuture<Boolean> skipped = ingestor.submit(upcoming, sign(upcoming));
+        CompletableFuture<Boolean> applied = ingestor.submit(created, sign(created));
+
+        assertThrows(CompletionException.class, failed::join);
+        assertTrue(skipped.join());
+        assertTrue(applied.join());
+        assertEquals(1, subscriptionService.getActiveSubscriptions("webhook_user4").size());
+    }
+}
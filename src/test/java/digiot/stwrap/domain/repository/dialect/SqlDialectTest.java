@@ -0,0 +1,71 @@
+package digiot.stwrap.domain.repository.dialect;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.codec.LinkIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodecs;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.H2TestDatabase;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SqlDialectTest {
+
+    StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+
+    @Test
+    void h2Dialect_nativeMode() {
+        assertInsertsIfAbsentAndChecksVersion(H2TestDatabase.create("dialect_h2"), new H2Dialect());
+    }
+
+    @Test
+    void postgreSQLDialect_postgreSQLMode() {
+        assertInsertsIfAbsentAndChecksVersion(H2TestDatabase.create("dialect_postgresql", "PostgreSQL"), new PostgreSQLDialect());
+    }
+
+    @Test
+    void mySQLDialect_mySQLMode() {
+        assertInsertsIfAbsentAndChecksVersion(H2TestDatabase.create("dialect_mysql", "MySQL"), new MySQLDialect());
+    }
+
+    @Test
+    void genericDialect_fallsBackOnUniqueViolation() {
+        assertInsertsIfAbsentAndChecksVersion(H2TestDatabase.create("dialect_generic"), new GenericDialect());
+    }
+
+    @Test
+    void detect_h2() throws SQLException {
+        try (Connection conn = H2TestDatabase.create("dialect_detect", "PostgreSQL").getConnection()) {
+            assertInstanceOf(H2Dialect.class, SqlDialect.detect(conn));
+        }
+    }
+
+    private void assertInsertsIfAbsentAndChecksVersion(JdbcDataSource dataSource, SqlDialect dialect) {
+
+        DefaultStripeLinkedUserRepository<String> repository =
+                new DefaultStripeLinkedUserRepository<>(dataSource, UserIdCodecs.ofString(), LinkIdCodec.TEXT, dialect);
+
+        StripeLinkedUser<String> first = factory.create("dialect_user", "cus_first");
+        assertSame(first, repository.insertIfAbsent(first));
+        assertEquals(0L, first.getVersion());
+        assertNotNull(first.getCreatedAt());
+
+        StripeLinkedUser<String> second = repository.insertIfAbsent(factory.create("dialect_user", "cus_second"));
+        assertEquals(first.getId(), second.getId());
+        assertEquals("cus_first", second.getStripeCustomerId());
+
+        StripeLinkedUser<String> stale = repository.findPrimaryByUserId("dialect_user").orElseThrow();
+        first.setStripeCustomerId("cus_updated");
+        assertEquals(1, repository.update(first));
+        assertEquals(1L, first.getVersion());
+
+        stale.setStripeCustomerId("cus_stale");
+        assertEquals(0, repository.update(stale));
+        assertEquals("cus_updated", repository.findPrimaryByUserId("dialect_user").orElseThrow().getStripeCustomerId());
+    }
+}
@@ -0,0 +1,143 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import digiot.stwrap.infrastructure.cache.BoundedCache;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingStripeLinkedUserRepositoryTest {
+
+    AtomicInteger lookups = new AtomicInteger();
+    DefaultStripeLinkedUserRepository<String> database = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource()) {
+        @Override
+        public Optional<StripeLinkedUser<String>> findPrimaryByUserId(String userId) {
+            lookups.incrementAndGet();
+            return super.findPrimaryByUserId(userId);
+        }
+    };
+    StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+
+    @Test
+    void findPrimaryByUserId_servedFromCache() {
+
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database);
+        repository.insert(factory.create("cache_user1", "cus_cache1"));
+
+        assertEquals("cus_cache1", repository.findPrimaryByUserId("cache_user1").orElseThrow().getStripeCustomerId());
+        assertEquals("cus_cache1", repository.findPrimaryByUserId("cache_user1").orElseThrow().getStripeCustomerId());
+
+        assertEquals(1, lookups.get());
+        assertEquals(1, repository.stats().getHitCount());
+        assertEquals(1, repository.stats().getMissCount());
+    }
+
+    @Test
+    void findPrimaryByUserId_returnsCopiesOfCachedLink() {
+
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database);
+        repository.insert(factory.create("cache_user9", "cus_cache9"));
+
+        // Modifying a link returned by a miss or a hit must not change the cached entry.
+        repository.findPrimaryByUserId("cache_user9").orElseThrow().setStripeCustomerId("cus_modified");
+        repository.findPrimaryByUserId("cache_user9").orElseThrow().setStripeCustomerId("cus_modified");
+        repository.findByStripeCustomerId("cus_cache9").orElseThrow().setUserId("modified_user");
+
+        assertEquals("cus_cache9", repository.findPrimaryByUserId("cache_user9").orElseThrow().getStripeCustomerId());
+        assertEquals("cache_user9", repository.findByStripeCustomerId("cus_cache9").orElseThrow().getUserId());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void update_invalidatesCachedLink() {
+
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database);
+        StripeLinkedUser<String> link = factory.create("cache_user2", "cus_cache2");
+        repository.insert(link);
+        repository.findPrimaryByUserId("cache_user2");
+
+        link.setStripeCustomerId("cus_cache2_updated");
+        repository.update(link);
+
+        assertEquals("cus_cache2_updated", repository.findPrimaryByUserId("cache_user2").orElseThrow().getStripeCustomerId());
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void delete_invalidatesCachedLinkById() {
+
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database);
+        StripeLinkedUser<String> link = factory.create("cache_user3", "cus_cache3");
+        repository.insert(link);
+        repository.findPrimaryByUserId("cache_user3");
+
+        StripeLinkedUser<String> idOnly = new StripeLinkedUser<>();
+        idOnly.setId(link.getId());
+        repository.delete(idOnly);
+
+        assertTrue(repository.findPrimaryByUserId("cache_user3").isEmpty());
+    }
+
+    @Test
+    void entries_expireAndEvict() {
+
+        AtomicLong now = new AtomicLong();
+        BoundedCache<String, StripeLinkedUser<String>> cache = new BoundedCache<>(2, Duration.ofSeconds(10), now::get);
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database, cache);
+        repository.insert(factory.create("cache_user4", "cus_cache4"));
+        repository.insert(factory.create("cache_user5", "cus_cache5"));
+        repository.insert(factory.create("cache_user6", "cus_cache6"));
+
+        repository.findPrimaryByUserId("cache_user4");
+        repository.findPrimaryByUserId("cache_user5");
+        repository.findPrimaryByUserId("cache_user6");
+        assertEquals(1, repository.stats().getEvictionCount());
+        assertEquals(2, repository.stats().getSize());
+
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        repository.findPrimaryByUserId("cache_user6");
+        assertEquals(4, lookups.get());
+        assertEquals(0, repository.stats().getHitCount());
+    }
+
+    @Test
+    void inTransaction_doesNotCacheRolledBackLinks() {
+
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database);
+
+        assertThrows(IllegalStateException.class, () -> repository.inTransaction(() -> {
+            repository.insert(factory.create("cache_tx_user1", "cus_cache_tx1"));
+            assertTrue(repository.findPrimaryByUserId("cache_tx_user1").isPresent());
+            throw new IllegalStateException("abort");
+        }));
+
+        assertFalse(repository.findPrimaryByUserId("cache_tx_user1").isPresent());
+        assertEquals(0, repository.stats().getSize());
+    }
+
+    @Test
+    void findByStripeCustomerId_cachedAndInvalidatedWithForwardCache() {
+
+        CachingStripeLinkedUserRepository<String> repository = new CachingStripeLinkedUserRepository<>(database);
+        StripeLinkedUser<String> link = factory.create("cache_reverse_user1", "cus_cache_reverse1");
+        repository.insert(link);
+
+        assertEquals("cache_reverse_user1", repository.findByStripeCustomerId("cus_cache_reverse1").orElseThrow().getUserId());
+        assertEquals("cache_reverse_user1", repository.findByStripeCustomerIds(List.of("cus_cache_reverse1")).get("cus_cache_reverse1").getUserId());
+        assertEquals(1, repository.reverseStats().getHitCount());
+
+        link.setStripeCustomerId("cus_cache_reverse1_moved");
+        repository.update(link);
+
+        assertTrue(repository.findByStripeCustomerId("cus_cache_reverse1").isEmpty());
+        assertEquals("cache_reverse_user1", repository.findByStripeCustomerId("cus_cache_reverse1_moved").orElseThrow().getUserId());
+    }
+}
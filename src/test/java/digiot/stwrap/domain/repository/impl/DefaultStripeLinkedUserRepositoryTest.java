@@ -0,0 +1,175 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.StripeLinkedUserConflictException;
+import digiot.stwrap.helper.H2TestDatabase;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DefaultStripeLinkedUserRepositoryTest {
+
+    DefaultStripeLinkedUserRepository<String> repository = new DefaultStripeLinkedUserRepository<>(DataSourceProvider.getDataSource());
+    StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+
+    @Test
+    void insert_secondPrimaryLinkConflicts() {
+
+        repository.insert(factory.create("repo_user1", "cus_repo1"));
+
+        assertThrows(StripeLinkedUserConflictException.class, () -> repository.insert(factory.create("repo_user1", "cus_repo1_dup")));
+        assertEquals("cus_repo1", repository.findPrimaryByUserId("repo_user1").orElseThrow().getStripeCustomerId());
+    }
+
+    @Test
+    void insert_nonPrimaryAndReplacedLinksAllowed() {
+
+        StripeLinkedUser<String> primary = factory.create("repo_user2", "cus_repo2");
+        repository.insert(primary);
+
+        StripeLinkedUser<String> secondary = factory.create("repo_user2", "cus_repo2_secondary");
+        secondary.setIsPrimary(false);
+        repository.insert(secondary);
+
+        repository.delete(primary);
+        repository.insert(factory.create("repo_user2", "cus_repo2_new"));
+
+        assertEquals("cus_repo2_new", repository.findPrimaryByUserId("repo_user2").orElseThrow().getStripeCustomerId());
+        assertEquals(2, repository.findAllLinksByUserId("repo_user2").size());
+    }
+
+    @Test
+    void insertAll_findPrimaryByUserIds_matchPerRowPath() {
+
+        int count = 2000;
+        List<StripeLinkedUser<String>> batchLinks = new ArrayList<>();
+        List<String> batchUserIds = new ArrayList<>();
+        List<String> rowUserIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batchLinks.add(factory.create("batch_user" + i, "cus_batch" + i));
+            batchUserIds.add("batch_user" + i);
+            rowUserIds.add("row_user" + i);
+        }
+
+        for (int i = 0; i < count; i++) {
+            repository.insert(factory.create(rowUserIds.get(i), "cus_row" + i));
+        }
+        assertEquals(count, repository.insertAll(batchLinks));
+
+        for (String userId : rowUserIds) {
+            assertTrue(repository.findPrimaryByUserId(userId).isPresent());
+        }
+        Map<String, StripeLinkedUser<String>> links = repository.findPrimaryByUserIds(batchUserIds);
+
+        assertEquals(count, links.size());
+        assertEquals("cus_batch42", links.get("batch_user42").getStripeCustomerId());
+    }
+
+    @Test
+    void insertAll_rollsBackOnConflict() {
+
+        repository.insert(factory.create("batch_conflict_user2", "cus_conflict2"));
+        List<StripeLinkedUser<String>> links = List.of(
+                factory.create("batch_conflict_user1", "cus_conflict1"),
+                factory.create("batch_conflict_user2", "cus_conflict2_dup"));
+
+        assertThrows(StripeLinkedUserConflictException.class, () -> repository.insertAll(links));
+        assertTrue(repository.findPrimaryByUserId("batch_conflict_user1").isEmpty());
+    }
+
+    @Test
+    void streamAll_pagesInIdOrder() {
+
+        List<StripeLinkedUser<String>> links = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            links.add(factory.create("stream_user" + i, "cus_stream" + i));
+        }
+        repository.insertAll(links);
+
+        List<String> expected = repository.findAll().stream()
+                .map(StripeLinkedUser::getId)
+                .sorted()
+                .collect(Collectors.toList());
+        List<String> streamed = repository.streamAll(7)
+                .map(StripeLinkedUser::getId)
+                .collect(Collectors.toList());
+
+        assertEquals(expected, streamed);
+        assertEquals(3, repository.streamAll(7).limit(3).count());
+    }
+
+    @Test
+    void inTransaction_sharesOneConnection() {
+
+        AtomicInteger connections = new AtomicInteger();
+        JdbcDataSource h2 = H2TestDatabase.create("unit_of_work");
+        DataSource dataSource = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection")) {
+                connections.incrementAndGet();
+            }
+            try {
+                return method.invoke(h2, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+        DefaultStripeLinkedUserRepository<String> repository = new DefaultStripeLinkedUserRepository<>(dataSource);
+        repository.insert(factory.create("uow_user1", "cus_uow1"));
+        connections.set(0);
+
+        StripeLinkedUser<String> replacement = factory.create("uow_user1", "cus_uow1_new");
+        repository.inTransaction(() -> {
+            repository.findLatestLinkByUserId("uow_user1").ifPresent(repository::delete);
+            return repository.insert(replacement);
+        });
+
+        assertEquals(1, connections.get());
+        assertEquals("cus_uow1_new", repository.findPrimaryByUserId("uow_user1").orElseThrow().getStripeCustomerId());
+    }
+
+    @Test
+    void inTransaction_rollsBackWhenWorkFails() {
+
+        repository.insert(factory.create("uow_user2", "cus_uow2"));
+
+        assertThrows(IllegalStateException.class, () -> repository.inTransaction(() -> {
+            repository.delete(repository.findPrimaryByUserId("uow_user2").orElseThrow());
+            repository.insert(factory.create("uow_user2", "cus_uow2_new"));
+            throw new IllegalStateException("abort");
+        }));
+
+        assertEquals("cus_uow2", repository.findPrimaryByUserId("uow_user2").orElseThrow().getStripeCustomerId());
+        assertEquals(1, repository.findAllLinksByUserId("uow_user2").size());
+    }
+
+    @Test
+    void findByStripeCustomerId_prefersPrimaryLink() {
+
+        StripeLinkedUser<String> secondary = factory.create("reverse_user1", "cus_reverse_shared");
+        secondary.setIsPrimary(false);
+        repository.insert(secondary);
+        StripeLinkedUser<String> primary = factory.create("reverse_user2", "cus_reverse_shared");
+        repository.insert(primary);
+        repository.insert(factory.create("reverse_user3", "cus_reverse3"));
+
+        assertEquals("reverse_user2", repository.findByStripeCustomerId("cus_reverse_shared").orElseThrow().getUserId());
+        assertTrue(repository.findByStripeCustomerId("cus_reverse_missing").isEmpty());
+
+        Map<String, StripeLinkedUser<String>> links = repository.findByStripeCustomerIds(List.of("cus_reverse_shared", "cus_reverse3", "cus_reverse_missing"));
+        assertEquals(2, links.size());
+        assertEquals(primary.getId(), links.get("cus_reverse_shared").getId());
+        assertEquals("reverse_user3", links.get("cus_reverse3").getUserId());
+    }
+}
@@ -0,0 +1,97 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.model.LocalInvoice;
+import digiot.stwrap.domain.model.LocalPaymentMethod;
+import digiot.stwrap.domain.model.LocalSubscription;
+import digiot.stwrap.domain.model.LocalSubscriptionItem;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DefaultStripeReadModelRepositoryTest {
+
+    DefaultStripeReadModelRepository repository = new DefaultStripeReadModelRepository(DataSourceProvider.getDataSource());
+
+    private static LocalSubscription subscription(String id, String customerId, String status, long eventCreated, String... planIds) {
+        LocalSubscription subscription = new LocalSubscription();
+        subscription.setId(id);
+        subscription.setStripeCustomerId(customerId);
+        subscription.setStatus(status);
+        subscription.setCancelAtPeriodEnd(false);
+        subscription.setCurrentPeriodEnd(eventCreated + 1000);
+        subscription.setEventCreated(eventCreated);
+        LocalSubscriptionItem[] items = new LocalSubscriptionItem[planIds.length];
+        for (int i = 0; i < planIds.length; i++) {
+            items[i] = new LocalSubscriptionItem();
+            items[i].setId(id + "_si" + i);
+            items[i].setSubscriptionId(id);
+            items[i].setPlanId(planIds[i]);
+            items[i].setQuantity(1L);
+        }
+        subscription.setItems(Arrays.asList(items));
+        return subscription;
+    }
+
+    @Test
+    void applySubscriptions_keepsNewerEvent() {
+
+        assertEquals(1, repository.applySubscriptions(Collections.singletonList(subscription("sub_rm1", "cus_rm1", "active", 200, "plan_a", "plan_b"))));
+        assertEquals(0, repository.applySubscriptions(Collections.singletonList(subscription("sub_rm1", "cus_rm1", "canceled", 100))));
+
+        List<LocalSubscription> active = repository.findSubscriptionsByCustomerId("cus_rm1", Arrays.asList("active", "trialing"));
+        assertEquals(1, active.size());
+        assertEquals(2, active.get(0).getItems().size());
+        assertEquals(200L, active.get(0).getEventCreated());
+    }
+
+    @Test
+    void applySubscriptions_replacesItems() {
+
+        repository.applySubscriptions(Collections.singletonList(subscription("sub_rm2", "cus_rm2", "active", 100, "plan_a", "plan_b")));
+        repository.applySubscriptions(Collections.singletonList(subscription("sub_rm2", "cus_rm2", "past_due", 100, "plan_c")));
+
+        List<LocalSubscription> subscriptions = repository.findSubscriptionsByCustomerId("cus_rm2", Collections.singletonList("past_due"));
+        assertEquals(1, subscriptions.size());
+        assertEquals(1, subscriptions.get(0).getItems().size());
+        assertEquals("plan_c", subscriptions.get(0).getItems().get(0).getPlanId());
+        assertTrue(repository.findSubscriptionsByCustomerId("cus_rm2", Collections.singletonList("active")).isEmpty());
+    }
+
+    @Test
+    void applyInvoicesAndPaymentMethods_roundTrip() {
+
+        LocalInvoice invoice = new LocalInvoice();
+        invoice.setId("in_rm3");
+        invoice.setStripeCustomerId("cus_rm3");
+        invoice.setStatus("paid");
+        invoice.setCurrency("jpy");
+        invoice.setAmountDue(1000L);
+        invoice.setAmountPaid(1000L);
+        invoice.setCreated(100L);
+        invoice.setEventCreated(100L);
+        LocalPaymentMethod paymentMethod = new LocalPaymentMethod();
+        paymentMethod.setId("pm_rm3");
+        paymentMethod.setStripeCustomerId("cus_rm3");
+        paymentMethod.setType("card");
+        paymentMethod.setCardLast4("4242");
+        paymentMethod.setEventCreated(100L);
+
+        repository.inTransaction(() -> {
+            repository.applyInvoices(Collections.singletonList(invoice));
+            return repository.applyPaymentMethods(Collections.singletonList(paymentMethod));
+        });
+        assertEquals(invoice, repository.findInvoicesByCustomerId("cus_rm3").get(0));
+        assertEquals(paymentMethod, repository.findPaymentMethodsByCustomerId("cus_rm3").get(0));
+
+        // Detached later: the payment method no longer belongs to the customer.
+        paymentMethod.setStripeCustomerId(null);
+        paymentMethod.setEventCreated(200L);
+        repository.applyPaymentMethods(Collections.singletonList(paymentMethod));
+        assertTrue(repository.findPaymentMethodsByCustomerId("cus_rm3").isEmpty());
+    }
+}
@@ -0,0 +1,162 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.codec.UserIdCodecs;
+import digiot.stwrap.helper.H2TestDatabase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotStripeLinkedUserRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    AtomicInteger lookups = new AtomicInteger();
+    AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+
+    private DefaultStripeLinkedUserRepository<String> database(String name) {
+        return new DefaultStripeLinkedUserRepository<>(H2TestDatabase.create(name), UserIdCodecs.ofString()) {
+            @Override
+            public Optional<StripeLinkedUser<String>> findPrimaryByUserId(String userId) {
+                lookups.incrementAndGet();
+                return super.findPrimaryByUserId(userId);
+            }
+        };
+    }
+
+    private SnapshotStripeLinkedUserRepository<String> snapshot(DefaultStripeLinkedUserRepository<String> database) {
+        return new SnapshotStripeLinkedUserRepository<>(database, directory.resolve("links.snapshot"),
+                Duration.ofMinutes(5), Duration.ofSeconds(5), Duration.ofHours(1), clock::get);
+    }
+
+    @Test
+    void findPrimaryByUserId_servedFromSnapshotAfterRestart() {
+
+        DefaultStripeLinkedUserRepository<String> database = database("snapshot_restart");
+        StripeLinkedUser<String> link = factory.create("snap_user1", "cus_snap1");
+        database.insert(link);
+        assertEquals(1, snapshot(database).refresh());
+
+        SnapshotStripeLinkedUserRepository<String> restarted = snapshot(database);
+        StripeLinkedUser<String> found = restarted.findPrimaryByUserId("snap_user1").orElseThrow();
+
+        assertEquals(0, lookups.get());
+        assertEquals(link.getId(), found.getId());
+        assertEquals("cus_snap1", found.getStripeCustomerId());
+        assertEquals(Optional.of("snap_user1"), restarted.findUserIdByStripeCustomerId("cus_snap1"));
+
+        // Users missing from the snapshot may have been linked since, so they are looked up in the database.
+        assertFalse(restarted.findPrimaryByUserId("snap_unknown").isPresent());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void refresh_appliesChangesSinceWatermark() {
+
+        DefaultStripeLinkedUserRepository<String> database = database("snapshot_incremental");
+        StripeLinkedUser<String> replaced = factory.create("snap_user2", "cus_snap2");
+        StripeLinkedUser<String> removed = factory.create("snap_user3", "cus_snap3");
+        database.insert(replaced);
+        database.insert(removed);
+        SnapshotStripeLinkedUserRepository<String> repository = snapshot(database);
+        repository.refresh();
+
+        // Changes made by another node, bypassing this repository.
+        database.inTransaction(() -> {
+            database.delete(replaced);
+            return database.insert(factory.create("snap_user2", "cus_snap2_new"));
+        });
+        database.delete(removed);
+        database.insert(factory.create("snap_user4", "cus_snap4"));
+
+        assertEquals(2, repository.refresh());
+        assertEquals("cus_snap2_new", repository.findPrimaryByUserId("snap_user2").orElseThrow().getStripeCustomerId());
+        assertEquals("cus_snap4", repository.findPrimaryByUserId("snap_user4").orElseThrow().getStripeCustomerId());
+        assertEquals(0, lookups.get());
+        assertEquals(Optional.empty(), repository.findUserIdByStripeCustomerId("cus_snap3"));
+    }
+
+    @Test
+    void refresh_rebuildsRowsCommittedAfterOverlap() throws SQLException {
+
+        DefaultStripeLinkedUserRepository<String> database = database("snapshot_late_commit");
+        database.insert(factory.create("snap_user7", "cus_snap7"));
+        SnapshotStripeLinkedUserRepository<String> repository = snapshot(database);
+        repository.refresh();
+
+        // A row whose transaction committed long after its updated_at was set.
+        StripeLinkedUser<String> late = factory.create("snap_user8", "cus_snap8");
+        database.insert(late);
+        try (Connection conn = H2TestDatabase.create("snapshot_late_commit").getConnection();
+             PreparedStatement stmt = conn.prepareStatement("UPDATE stripe_linked_user SET updated_at = TIMESTAMP '2000-01-01 00:00:00' WHERE id = ?")) {
+            stmt.setString(1, late.getId());
+            assertEquals(1, stmt.executeUpdate());
+        }
+
+        clock.addAndGet(Duration.ofMinutes(1).toMillis());
+        assertEquals(1, repository.refresh());
+
+        clock.addAndGet(Duration.ofHours(1).toMillis());
+        assertEquals(2, repository.refresh());
+        assertEquals(Optional.of("snap_user8"), repository.findUserIdByStripeCustomerId("cus_snap8"));
+    }
+
+    @Test
+    void findPrimaryByUserId_fallsBackWhenStaleOrWritten() {
+
+        DefaultStripeLinkedUserRepository<String> database = database("snapshot_fallback");
+        StripeLinkedUser<String> link = factory.create("snap_user5", "cus_snap5");
+        database.insert(link);
+        SnapshotStripeLinkedUserRepository<String> repository = snapshot(database);
+        repository.refresh();
+
+        link.setStripeCustomerId("cus_snap5_updated");
+        repository.update(link);
+        assertEquals("cus_snap5_updated", repository.findPrimaryByUserId("snap_user5").orElseThrow().getStripeCustomerId());
+        assertEquals(1, lookups.get());
+
+        repository.refresh();
+        assertEquals("cus_snap5_updated", repository.findPrimaryByUserId("snap_user5").orElseThrow().getStripeCustomerId());
+        assertEquals(1, lookups.get());
+
+        clock.addAndGet(Duration.ofMinutes(6).toMillis());
+        assertTrue(repository.isStale());
+        repository.findPrimaryByUserId("snap_user5");
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    void findPrimaryByUserId_fallsBackAfterTransactionCommittedDuringRefresh() throws Exception {
+
+        DefaultStripeLinkedUserRepository<String> database = database("snapshot_transaction");
+        StripeLinkedUser<String> link = factory.create("snap_user6", "cus_snap6");
+        database.insert(link);
+        SnapshotStripeLinkedUserRepository<String> repository = snapshot(database);
+        repository.refresh();
+
+        repository.inTransaction(() -> {
+            link.setStripeCustomerId("cus_snap6_updated");
+            repository.update(link);
+            // A refresh on another thread does not see the uncommitted update.
+            CompletableFuture.runAsync(repository::refresh).join();
+            return null;
+        });
+
+        assertEquals("cus_snap6_updated", repository.findPrimaryByUserId("snap_user6").orElseThrow().getStripeCustomerId());
+        assertEquals(1, lookups.get());
+    }
+}
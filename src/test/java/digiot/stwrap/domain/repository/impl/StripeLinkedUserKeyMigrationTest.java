@@ -0,0 +1,114 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.codec.LinkIdCodec;
+import digiot.stwrap.domain.repository.codec.UserIdCodecs;
+import digiot.stwrap.domain.repository.dialect.H2Dialect;
+import digiot.stwrap.domain.repository.dialect.MySQLDialect;
+import digiot.stwrap.domain.repository.dialect.PostgreSQLDialect;
+import digiot.stwrap.domain.repository.dialect.SqlDialect;
+import digiot.stwrap.helper.H2TestDatabase;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripeLinkedUserKeyMigrationTest {
+
+    @Test
+    void migrate_longUserIdsAndBinaryLinkIds() {
+
+        JdbcDataSource dataSource = H2TestDatabase.create("migration_long");
+        DefaultStripeLinkedUserRepository<String> legacy = new DefaultStripeLinkedUserRepository<>(dataSource);
+        StripeLinkedUser<String> link = new StripeLinkedUserFactory<String>().create("42", "cus_migrated42");
+        legacy.insert(link);
+        legacy.insert(new StripeLinkedUserFactory<String>().create("7", "cus_migrated7"));
+
+        int copied = new StripeLinkedUserKeyMigration<>(dataSource, UserIdCodecs.ofLong(), LinkIdCodec.BINARY).migrate();
+        assertEquals(2, copied);
+
+        DefaultStripeLinkedUserRepository<Long> repository = new DefaultStripeLinkedUserRepository<>(dataSource, UserIdCodecs.ofLong(), LinkIdCodec.BINARY);
+        StripeLinkedUser<Long> migrated = repository.findPrimaryByUserId(42L).orElseThrow();
+        assertEquals(link.getId(), migrated.getId());
+        assertEquals(Long.valueOf(42L), migrated.getUserId());
+        assertEquals("cus_migrated42", migrated.getStripeCustomerId());
+
+        Map<Long, StripeLinkedUser<Long>> links = repository.findPrimaryByUserIds(List.of(42L, 7L, 99L));
+        assertEquals(2, links.size());
+        assertEquals("cus_migrated7", links.get(7L).getStripeCustomerId());
+
+        assertDoesNotThrow(() -> new StripeLinkedUserSchemaManager(dataSource).verify());
+    }
+
+    @Test
+    void scripts_matchTheirDatabase() throws IOException {
+
+        // H2 rejects STORED generated columns in every compatibility mode, so only the H2 script runs end to end
+        String postgreSQL = script(new PostgreSQLDialect());
+        assertTrue(postgreSQL.contains(") STORED"));
+        assertFalse(postgreSQL.contains("CURRENT_TIMESTAMP ON UPDATE"));
+
+        String mySQL = script(new MySQLDialect());
+        assertTrue(mySQL.contains(") STORED"));
+        assertTrue(mySQL.contains("RENAME TABLE stripe_linked_user TO stripe_linked_user_legacy, stripe_linked_user_native TO stripe_linked_user"));
+
+        assertEquals("BYTEA", new PostgreSQLDialect().columnType(LinkIdCodec.BINARY.sqlType()));
+        assertEquals("BIGINT", new PostgreSQLDialect().columnType(UserIdCodecs.ofLong().sqlType()));
+    }
+
+    @Test
+    void migrate_rejectsDatabaseWithoutScript() {
+
+        JdbcDataSource dataSource = H2TestDatabase.create("migration_unknown");
+        SqlDialect dialect = new H2Dialect() {
+            @Override
+            public String scriptName() {
+                return null;
+            }
+        };
+        assertThrows(IllegalStateException.class,
+                () -> new StripeLinkedUserKeyMigration<>(dataSource, UserIdCodecs.ofLong(), LinkIdCodec.BINARY, dialect).migrate());
+    }
+
+    private static String script(SqlDialect dialect) throws IOException {
+        String name = "db/migration/stripe_linked_user_native_keys_" + dialect.scriptName() + ".sql";
+        try (InputStream input = StripeLinkedUserKeyMigrationTest.class.getClassLoader().getResourceAsStream(name)) {
+            assertNotNull(input, name);
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void binaryCodecs_roundTripUuidUserIds() {
+
+        JdbcDataSource dataSource = H2TestDatabase.create("migration_uuid");
+        new StripeLinkedUserKeyMigration<>(dataSource, UserIdCodecs.ofUuid(), LinkIdCodec.BINARY).migrate();
+
+        DefaultStripeLinkedUserRepository<UUID> repository = new DefaultStripeLinkedUserRepository<>(dataSource, UserIdCodecs.ofUuid(), LinkIdCodec.BINARY);
+        StripeLinkedUserFactory<UUID> factory = new StripeLinkedUserFactory<>();
+        UUID userId = UUID.randomUUID();
+        for (int i = 0; i < 5; i++) {
+            repository.insert(factory.create(UUID.randomUUID(), "cus_uuid" + i));
+        }
+        repository.insert(factory.create(userId, "cus_uuid"));
+
+        assertEquals(userId, repository.findPrimaryByUserId(userId).orElseThrow().getUserId());
+        assertEquals(6, repository.streamAll(2).count());
+    }
+
+    @Test
+    void constructor_rejectsUntypedCodec() {
+
+        JdbcDataSource dataSource = H2TestDatabase.create("migration_untyped");
+        assertThrows(IllegalArgumentException.class,
+                () -> new StripeLinkedUserKeyMigration<>(dataSource, UserIdCodecs.ofObject(), LinkIdCodec.BINARY));
+    }
+}
@@ -0,0 +1,70 @@
+package digiot.stwrap.domain.repository.impl;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.helper.H2TestDatabase;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripeLinkedUserSchemaManagerTest {
+
+    @Test
+    void ensureIndexes_createsMissingIndexesOnce() {
+
+        JdbcDataSource dataSource = H2TestDatabase.create("schema_ensure");
+        StripeLinkedUserSchemaManager manager = new StripeLinkedUserSchemaManager(dataSource);
+
+        assertThrows(IllegalStateException.class, manager::verify);
+        assertEquals(Arrays.asList("idx_stripe_linked_user_primary_lookup", "idx_stripe_linked_user_latest_lookup"), manager.ensureIndexes());
+        assertTrue(manager.ensureIndexes().isEmpty());
+        manager.verify();
+    }
+
+    @Test
+    void lookupQueries_useSortedCoveringIndexes() throws SQLException {
+
+        JdbcDataSource dataSource = H2TestDatabase.create("schema_explain");
+        new StripeLinkedUserSchemaManager(dataSource).ensureIndexes();
+        DefaultStripeLinkedUserRepository<String> repository = new DefaultStripeLinkedUserRepository<>(dataSource);
+        StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+        for (int i = 0; i < 200; i++) {
+            repository.insert(factory.create("explain-user-" + i, "cus_explain" + i));
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            String primaryPlan = explain(conn, DefaultStripeLinkedUserRepository.FIND_PRIMARY_SQL);
+            assertTrue(primaryPlan.contains(StripeLinkedUserSchemaManager.PRIMARY_LOOKUP.getName().toUpperCase()), primaryPlan);
+            assertTrue(primaryPlan.contains("index sorted"), primaryPlan);
+
+            String latestPlan = explain(conn, DefaultStripeLinkedUserRepository.FIND_LATEST_SQL);
+            assertTrue(latestPlan.contains(StripeLinkedUserSchemaManager.LATEST_LOOKUP.getName().toUpperCase()), latestPlan);
+            assertTrue(latestPlan.contains("index sorted"), latestPlan);
+
+            // H2 does not report index-only scans, so coverage is checked against the index columns instead.
+            Map<String, List<String>> indexes = StripeLinkedUserSchemaManager.readIndexes(conn);
+            List<String> selected = Arrays.asList(DefaultStripeLinkedUserRepository.COLUMNS.split(", "));
+            for (StripeLinkedUserSchemaManager.IndexDefinition index : StripeLinkedUserSchemaManager.INDEXES) {
+                List<String> columns = indexes.get(index.getName());
+                assertEquals(index.allColumnNames(), columns);
+                assertTrue(columns.containsAll(selected), index.getName() + " does not cover " + selected);
+            }
+        }
+    }
+
+    private static String explain(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN " + sql.replace("?", "'explain-user-7'"))) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package digiot.stwrap.helper;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Creates named in-memory H2 databases for tests. Each database is initialized with initialize.sql on first
+ * connection and kept until the JVM exits, so every test should use its own name.
+ */
+public final class H2TestDatabase {
+
+    private H2TestDatabase() {
+    }
+
+    /**
+     * Creates a data source for the named database.
+     *
+     * @param name The database name.
+     * @return The data source.
+     */
+    public static JdbcDataSource create(String name) {
+        return create(name, null);
+    }
+
+    /**
+     * Creates a data source for the named database in an H2 compatibility mode.
+     *
+     * @param name The database name.
+     * @param mode The compatibility mode, e.g. PostgreSQL or MySQL, or null for plain H2.
+     * @return The data source.
+     */
+    public static JdbcDataSource create(String name, String mode) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL(url(name, mode));
+        dataSource.setUser("sa");
+        return dataSource;
+    }
+
+    /**
+     * Returns the JDBC URL of the named database, for pools that create their own connections.
+     *
+     * @param name The database name.
+     * @param mode The compatibility mode, or null for plain H2.
+     * @return The JDBC URL.
+     */
+    public static String url(String name, String mode) {
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1" + (mode == null ? "" : ";MODE=" + mode)
+                + ";INIT=RUNSCRIPT FROM 'classpath:initialize.sql'";
+    }
+}
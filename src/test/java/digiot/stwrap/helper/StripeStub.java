@@ -0,0 +1,769 @@
+package digiot.stwrap.helper;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.stripe.Stripe;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the Stripe API, reached by pointing {@link Stripe#overrideApiBase(String)} at it.
+ * <p>
+ * Implements the customer, payment method, token, product, plan, coupon, subscription, usage record, charge and
+ * upcoming invoice endpoints used by stwrap, keeping the objects in memory. Calls are counted per endpoint, written as
+ * "METHOD /v1/resource/{id}/action", e.g. "POST /v1/payment_methods/{id}/attach". Latency and errors can be
+ * injected for every endpoint or for a single one, which is what the load tests and benchmarks rely on.
+ * <p>
+ * Like Stripe, a POST with an Idempotency-Key header that was already processed gets the stored response again
+ * instead of being processed twice. {@link #loseResponseNext(String, int)} processes a call but answers it with a
+ * 500, to reproduce a response lost after the write happened.
+ * <p>
+ * {@link #start()} points the Stripe client at the stub and {@link #close()} restores the previous settings.
+ */
+public class StripeStub implements AutoCloseable {
+
+    public static final String ALL_ENDPOINTS = "*";
+
+    private static final Gson GSON = new GsonBuilder().serializeNulls().create();
+
+    static {
+        // headers and body are written separately; without TCP_NODELAY every response waits for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Map<String, Duration> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+    private final Map<String, Failure> lostResponses = new ConcurrentHashMap<>();
+    private final Map<String, Object[]> idempotentResponses = new HashMap<>();
+    private final Map<String, Map<String, Object>> objects = new LinkedHashMap<>();
+    private final Map<String, List<Map<String, Object>>> subscriptionsByCustomer = new HashMap<>();
+    private final Map<String, Long> usageByItem = new HashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private String previousApiBase;
+    private String previousApiKey;
+
+    private StripeStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stripe-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/v1/", this::handle);
+    }
+
+    /**
+     * Starts a stub on a free local port and points the Stripe client at it.
+     */
+    public static StripeStub start() throws IOException {
+        StripeStub stub = new StripeStub();
+        stub.server.start();
+        stub.previousApiBase = Stripe.getApiBase();
+        stub.previousApiKey = Stripe.apiKey;
+        Stripe.apiKey = "sk_test_stub";
+        Stripe.overrideApiBase(stub.getApiBase());
+        return stub;
+    }
+
+    public String getApiBase() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the number of calls made to an endpoint, e.g. "POST /v1/payment_methods/{id}/attach".
+     */
+    public int calls(String endpoint) {
+        AtomicInteger count = calls.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    public int totalCalls() {
+        return calls.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    /**
+     * Returns the call count of every endpoint called so far, sorted by endpoint.
+     */
+    public Map<String, Integer> callCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        calls.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        return counts;
+    }
+
+    /**
+     * Delays every response by the given latency.
+     */
+    public void setLatency(Duration latency) {
+        setLatency(ALL_ENDPOINTS, latency);
+    }
+
+    /**
+     * Delays the responses of one endpoint; this overrides the latency set for all endpoints.
+     */
+    public void setLatency(String endpoint, Duration latency) {
+        latencies.put(endpoint, latency);
+    }
+
+    /**
+     * Fails the next calls to an endpoint with the given HTTP status.
+     *
+     * @param endpoint The endpoint, or {@link #ALL_ENDPOINTS}.
+     * @param times    The number of calls to fail.
+     * @param status   The HTTP status, e.g. 429 or 500.
+     */
+    public void failNext(String endpoint, int times, int status) {
+        failures.put(endpoint, new Failure(status, 0, new AtomicInteger(times)));
+    }
+
+    /**
+     * Processes the next calls to an endpoint but answers them with a 500, as if the response had been lost.
+     */
+    public void loseResponseNext(String endpoint, int times) {
+        lostResponses.put(endpoint, new Failure(500, 0, new AtomicInteger(times)));
+    }
+
+    /**
+     * Returns the usage recorded for a subscription item through its usage records.
+     */
+    public synchronized long usage(String subscriptionItemId) {
+        return usageByItem.getOrDefault(subscriptionItemId, 0L);
+    }
+
+    /**
+     * Returns the number of stored objects of a type, e.g. "charge" or "customer".
+     */
+    public synchronized int count(String object) {
+        return (int) objects.values().stream().filter(o -> object.equals(o.get("object"))).count();
+    }
+
+    /**
+     * Fails the given fraction of calls to an endpoint with the given HTTP status, until {@link #reset()}.
+     */
+    public void setErrorRate(String endpoint, double rate, int status) {
+        failures.put(endpoint, new Failure(status, rate, null));
+    }
+
+    /**
+     * Clears the call counters and the injected latency and errors, keeping the stored objects.
+     */
+    public void reset() {
+        calls.clear();
+        latencies.clear();
+        failures.clear();
+        lostResponses.clear();
+    }
+
+    /**
+     * Removes every stored object, then {@link #reset()}s.
+     */
+    public synchronized void clear() {
+        objects.clear();
+        subscriptionsByCustomer.clear();
+        usageByItem.clear();
+        idempotentResponses.clear();
+        reset();
+    }
+
+    @Override
+    public void close() {
+        Stripe.overrideApiBase(previousApiBase);
+        Stripe.apiKey = previousApiKey;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring("/v1/".length()).split("/");
+            String endpoint = endpoint(method, path);
+            calls.computeIfAbsent(endpoint, key -> new AtomicInteger()).incrementAndGet();
+
+            sleep(latencies.getOrDefault(endpoint, latencies.get(ALL_ENDPOINTS)));
+            Failure failure = failures.getOrDefault(endpoint, failures.get(ALL_ENDPOINTS));
+            if (failure != null && failure.fails()) {
+                if (failure.status == 429) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                }
+                respond(exchange, failure.status, error(failure.status == 429 ? "rate_limit_error" : "api_error", "Injected failure on " + endpoint));
+                return;
+            }
+
+            Map<String, String> params = new TreeMap<>();
+            parseForm(exchange.getRequestURI().getRawQuery(), params);
+            parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+
+            String idempotencyKey = "POST".equals(method) ? exchange.getRequestHeaders().getFirst("Idempotency-Key") : null;
+
+            // objects are mutated in place, so they are also serialized under the lock
+            int status = 200;
+            String json;
+            synchronized (this) {
+                Object[] stored = idempotencyKey == null ? null : idempotentResponses.get(idempotencyKey);
+                if (stored != null) {
+                    status = (Integer) stored[0];
+                    json = (String) stored[1];
+                } else {
+                    Object body = dispatch(method, path, params);
+                    if (body == null) {
+                        status = 404;
+                        json = error("invalid_request_error", "No such resource: " + exchange.getRequestURI().getPath());
+                    } else if (body instanceof StubError) {
+                        status = ((StubError) body).status;
+                        json = error("invalid_request_error", ((StubError) body).message);
+                    } else {
+                        json = GSON.toJson(body);
+                    }
+                    if (idempotencyKey != null) {
+                        idempotentResponses.put(idempotencyKey, new Object[]{status, json});
+                    }
+                }
+            }
+            Failure lost = lostResponses.get(endpoint);
+            if (lost != null && lost.fails()) {
+                respond(exchange, 500, error("api_error", "Injected lost response on " + endpoint));
+                return;
+            }
+            respond(exchange, status, json);
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error("api_error", String.valueOf(e)));
+        }
+    }
+
+    private Object dispatch(String method, String[] path, Map<String, String> params) {
+        String resource = path[0];
+        String id = path.length > 1 ? path[1] : null;
+        String action = path.length > 2 ? path[2] : null;
+
+        if ("invoices".equals(resource) && "upcoming".equals(id) && "GET".equals(method)) {
+            return upcomingInvoice(params);
+        }
+        if ("subscription_items".equals(resource) && "usage_records".equals(action) && "POST".equals(method)) {
+            return usageRecord(id, params);
+        }
+        if ("tokens".equals(resource) && id != null && "GET".equals(method) && !objects.containsKey(id)) {
+            return store(token(id, params));
+        }
+        if (id == null) {
+            return "POST".equals(method) ? create(resource, params) : list(resource, params);
+        }
+
+        Map<String, Object> object = objects.get(id);
+        if (object == null || !resource.equals(resourceOf(object))) {
+            return null;
+        }
+        switch (method) {
+            case "GET":
+                return object;
+            case "DELETE":
+                return delete(resource, object);
+            default:
+                return action == null ? update(resource, object, params) : act(resource, object, action, params);
+        }
+    }
+
+    private Object create(String resource, Map<String, String> params) {
+        Map<String, Object> object;
+        switch (resource) {
+            case "customers":
+                object = object("cus", "customer", params, "email", "name", "description");
+                object.put("default_source", null);
+                object.put("invoice_settings", invoiceSettings(null));
+                object.put("deleted", null);
+                return store(object);
+            case "payment_methods":
+                object = object("pm", "payment_method", params, "type");
+                object.put("card", card(params.get("card[token]")));
+                object.put("customer", null);
+                return store(object);
+            case "tokens":
+                return store(token(null, params));
+            case "products":
+                object = object("prod", "product", params, "name");
+                object.put("active", true);
+                return store(object);
+            case "plans":
+                object = object("plan", "plan", params, "currency", "interval", "product");
+                object.put("amount", number(params.get("amount")));
+                object.put("active", true);
+                return store(object);
+            case "coupons":
+                object = object("coupon", "coupon", params, "duration");
+                object.put("percent_off", params.containsKey("percent_off") ? Double.valueOf(params.get("percent_off")) : null);
+                object.put("amount_off", number(params.get("amount_off")));
+                object.put("valid", true);
+                return store(object);
+            case "subscriptions":
+                return createSubscription(params);
+            case "charges":
+                if (!params.containsKey("amount") || !params.containsKey("currency")) {
+                    return new StubError(400, "Missing required param: amount or currency");
+                }
+                object = object("ch", "charge", params, "currency", "customer", "description");
+                object.put("amount", number(params.get("amount")));
+                object.put("source", card(params.get("source")));
+                object.put("status", "succeeded");
+                object.put("paid", true);
+                return store(object);
+            default:
+                return null;
+        }
+    }
+
+    private Object createSubscription(Map<String, String> params) {
+        String customer = params.get("customer");
+        if (customer == null || !objects.containsKey(customer)) {
+            return new StubError(400, "No such customer: '" + customer + "'");
+        }
+        Map<String, Object> subscription = object("sub", "subscription", params, "customer", "default_payment_method");
+        long start = Instant.now().getEpochSecond();
+        subscription.put("status", "active");
+        subscription.put("current_period_start", start);
+        subscription.put("current_period_end", Instant.ofEpochSecond(start).atOffset(ZoneOffset.UTC).plusMonths(1).toEpochSecond());
+        subscription.put("cancel_at", null);
+        subscription.put("cancel_at_period_end", false);
+        subscription.put("canceled_at", null);
+        subscription.put("discount", null);
+
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; params.containsKey("items[" + i + "][plan]") || params.containsKey("items[" + i + "][price]"); i++) {
+            String planId = params.getOrDefault("items[" + i + "][plan]", params.get("items[" + i + "][price]"));
+            Map<String, Object> plan = objects.get(planId);
+            if (plan == null) {
+                return new StubError(400, "No such plan: '" + planId + "'");
+            }
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", "si_stub" + ids.incrementAndGet());
+            item.put("object", "subscription_item");
+            item.put("subscription", subscription.get("id"));
+            item.put("plan", plan);
+            item.put("quantity", number(params.getOrDefault("items[" + i + "][quantity]", "1")));
+            items.add(item);
+        }
+        subscription.put("items", list(items, "/v1/subscription_items"));
+        Object applied = applyCoupon(subscription, params.get("coupon"));
+        if (applied instanceof StubError) {
+            return applied;
+        }
+        subscriptionsByCustomer.computeIfAbsent(customer, key -> new ArrayList<>()).add(subscription);
+        return store(subscription);
+    }
+
+    private Object update(String resource, Map<String, Object> object, Map<String, String> params) {
+        switch (resource) {
+            case "customers":
+                copy(params, object, "email", "name", "description");
+                if (params.containsKey("source")) {
+                    Map<String, Object> card = object("card", "payment_method", Collections.emptyMap(), "type");
+                    card.put("type", "card");
+                    card.put("card", card(params.get("source")));
+                    card.put("customer", object.get("id"));
+                    store(card);
+                    object.put("default_source", card.get("id"));
+                }
+                if (params.containsKey("invoice_settings[default_payment_method]")) {
+                    object.put("invoice_settings", invoiceSettings(params.get("invoice_settings[default_payment_method]")));
+                }
+                return object;
+            case "subscriptions":
+                if (params.containsKey("cancel_at")) {
+                    object.put("cancel_at", number(params.get("cancel_at")));
+                }
+                if (params.containsKey("cancel_at_period_end")) {
+                    boolean atPeriodEnd = Boolean.parseBoolean(params.get("cancel_at_period_end"));
+                    object.put("cancel_at_period_end", atPeriodEnd);
+                    object.put("cancel_at", atPeriodEnd ? object.get("current_period_end") : null);
+                }
+                copy(params, object, "default_payment_method");
+                updateItems(object, params);
+                Object applied = applyCoupon(object, params.get("coupon"));
+                return applied instanceof StubError ? applied : object;
+            default:
+                copy(params, object, "name", "description");
+                return object;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void updateItems(Map<String, Object> subscription, Map<String, String> params) {
+        List<Map<String, Object>> items = (List<Map<String, Object>>) ((Map<String, Object>) subscription.get("items")).get("data");
+        for (int i = 0; params.containsKey("items[" + i + "][id]"); i++) {
+            for (Map<String, Object> item : items) {
+                if (item.get("id").equals(params.get("items[" + i + "][id]")) && params.containsKey("items[" + i + "][quantity]")) {
+                    item.put("quantity", number(params.get("items[" + i + "][quantity]")));
+                }
+            }
+        }
+    }
+
+    private Object act(String resource, Map<String, Object> object, String action, Map<String, String> params) {
+        if ("payment_methods".equals(resource) && "attach".equals(action)) {
+            String customer = params.get("customer");
+            if (customer == null || !objects.containsKey(customer)) {
+                return new StubError(400, "No such customer: '" + customer + "'");
+            }
+            Object current = object.get("customer");
+            if (current != null) {
+                return new StubError(400, "The payment method you provided has already been attached to a customer.");
+            }
+            object.put("customer", customer);
+            return object;
+        }
+        if ("payment_methods".equals(resource) && "detach".equals(action)) {
+            object.put("customer", null);
+            return object;
+        }
+        return null;
+    }
+
+    private Object delete(String resource, Map<String, Object> object) {
+        if ("subscriptions".equals(resource)) {
+            object.put("status", "canceled");
+            object.put("canceled_at", Instant.now().getEpochSecond());
+            return object;
+        }
+        objects.remove((String) object.get("id"));
+        Map<String, Object> deleted = new LinkedHashMap<>();
+        deleted.put("id", object.get("id"));
+        deleted.put("object", object.get("object"));
+        deleted.put("deleted", true);
+        return deleted;
+    }
+
+    private Object list(String resource, Map<String, String> params) {
+        List<Object> data = new ArrayList<>();
+        for (Map<String, Object> object : objects.values()) {
+            if (resource.equals(resourceOf(object)) && matches(object, params, "customer", "status")) {
+                data.add(object);
+            }
+        }
+        data.sort((a, b) -> Long.compare(created(b), created(a)));
+        data.removeIf(object -> !inRange(created(object), params));
+
+        int from = 0;
+        String startingAfter = params.get("starting_after");
+        if (startingAfter != null) {
+            while (from < data.size() && !startingAfter.equals(id(data.get(from)))) {
+                from++;
+            }
+            from++;
+        }
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 10;
+        int to = Math.min(data.size(), from + limit);
+        Map<String, Object> page = list(from < to ? new ArrayList<>(data.subList(from, to)) : new ArrayList<>(), "/v1/" + resource);
+        page.put("has_more", to < data.size());
+        return page;
+    }
+
+    private static boolean inRange(long created, Map<String, String> params) {
+        return (!params.containsKey("created[gte]") || created >= Long.parseLong(params.get("created[gte]")))
+                && (!params.containsKey("created[gt]") || created > Long.parseLong(params.get("created[gt]")))
+                && (!params.containsKey("created[lt]") || created < Long.parseLong(params.get("created[lt]")))
+                && (!params.containsKey("created[lte]") || created <= Long.parseLong(params.get("created[lte]")));
+    }
+
+    private Object usageRecord(String subscriptionItemId, Map<String, String> params) {
+        if (!params.containsKey("quantity")) {
+            return new StubError(400, "Missing required param: quantity");
+        }
+        long quantity = number(params.get("quantity"));
+        if ("set".equals(params.get("action"))) {
+            usageByItem.put(subscriptionItemId, quantity);
+        } else {
+            usageByItem.merge(subscriptionItemId, quantity, Long::sum);
+        }
+        Map<String, Object> record = object("mbur", "usage_record", params);
+        record.put("subscription_item", subscriptionItemId);
+        record.put("quantity", quantity);
+        record.put("timestamp", params.containsKey("timestamp") ? number(params.get("timestamp")) : Instant.now().getEpochSecond());
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object upcomingInvoice(Map<String, String> params) {
+        String customer = params.get("customer");
+        String subscriptionId = params.get("subscription");
+        if (customer == null && subscriptionId == null) {
+            return new StubError(400, "Missing required param: customer");
+        }
+
+        long subtotal = 0;
+        long total = 0;
+        List<Object> lines = new ArrayList<>();
+        List<Map<String, Object>> subscriptions = subscriptionId != null
+                ? Collections.singletonList(objects.get(subscriptionId))
+                : subscriptionsByCustomer.getOrDefault(customer, Collections.emptyList());
+        for (Map<String, Object> subscription : subscriptions) {
+            if (subscription == null || !"subscription".equals(subscription.get("object")) || !"active".equals(subscription.get("status"))) {
+                continue;
+            }
+            long amount = 0;
+            for (Map<String, Object> item : (List<Map<String, Object>>) ((Map<String, Object>) subscription.get("items")).get("data")) {
+                long lineAmount = (Long) ((Map<String, Object>) item.get("plan")).get("amount") * (Long) item.get("quantity");
+                amount += lineAmount;
+
+                Map<String, Object> line = new LinkedHashMap<>();
+                line.put("id", "il_stub" + ids.incrementAndGet());
+                line.put("object", "line_item");
+                line.put("amount", lineAmount);
+                line.put("quantity", item.get("quantity"));
+                line.put("subscription", subscription.get("id"));
+                lines.add(line);
+            }
+            subtotal += amount;
+            total += discounted(amount, (Map<String, Object>) subscription.get("discount"));
+            if (customer == null) {
+                customer = (String) subscription.get("customer");
+            }
+        }
+        if (lines.isEmpty()) {
+            return new StubError(404, "No upcoming invoices for customer: " + customer);
+        }
+
+        Map<String, Object> invoice = new LinkedHashMap<>();
+        invoice.put("object", "invoice");
+        invoice.put("customer", customer);
+        invoice.put("subscription", subscriptionId);
+        invoice.put("subtotal", subtotal);
+        invoice.put("total", total);
+        invoice.put("amount_due", total);
+        invoice.put("lines", list(lines, "/v1/invoices/upcoming/lines"));
+        return invoice;
+    }
+
+    private Object applyCoupon(Map<String, Object> subscription, String couponId) {
+        if (couponId == null) {
+            return subscription;
+        }
+        Map<String, Object> coupon = objects.get(couponId);
+        if (coupon == null || !"coupon".equals(coupon.get("object"))) {
+            return new StubError(400, "No such coupon: '" + couponId + "'");
+        }
+        Map<String, Object> discount = new LinkedHashMap<>();
+        discount.put("object", "discount");
+        discount.put("coupon", coupon);
+        discount.put("customer", subscription.get("customer"));
+        discount.put("subscription", subscription.get("id"));
+        subscription.put("discount", discount);
+        return subscription;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long discounted(long amount, Map<String, Object> discount) {
+        if (discount == null) {
+            return amount;
+        }
+        Map<String, Object> coupon = (Map<String, Object>) discount.get("coupon");
+        if (coupon.get("percent_off") != null) {
+            return Math.round(amount * (100 - (Double) coupon.get("percent_off")) / 100);
+        }
+        if (coupon.get("amount_off") != null) {
+            return Math.max(0, amount - (Long) coupon.get("amount_off"));
+        }
+        return amount;
+    }
+
+    private Map<String, Object> object(String prefix, String type, Map<String, String> params, String... fields) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("id", params.getOrDefault("id", prefix + "_stub" + ids.incrementAndGet()));
+        object.put("object", type);
+        object.put("created", Instant.now().getEpochSecond());
+        object.put("livemode", false);
+        for (String field : fields) {
+            object.put(field, params.get(field));
+        }
+        Map<String, String> metadata = new LinkedHashMap<>();
+        params.forEach((key, value) -> {
+            if (key.startsWith("metadata[") && key.endsWith("]")) {
+                metadata.put(key.substring("metadata[".length(), key.length() - 1), value);
+            }
+        });
+        object.put("metadata", metadata);
+        return object;
+    }
+
+    private Map<String, Object> token(String id, Map<String, String> params) {
+        Map<String, Object> token = object("tok", "token", Collections.emptyMap());
+        if (id != null) {
+            token.put("id", id);
+        }
+        token.put("type", "card");
+        token.put("used", false);
+        token.put("card", card(params.get("card[number]")));
+        return token;
+    }
+
+    private Map<String, Object> card(String source) {
+        Map<String, Object> card = new LinkedHashMap<>();
+        card.put("id", "card_stub" + ids.incrementAndGet());
+        card.put("object", "card");
+        card.put("brand", "visa");
+        card.put("last4", source != null && source.length() >= 4 && source.chars().allMatch(Character::isDigit)
+                ? source.substring(source.length() - 4) : "4242");
+        card.put("exp_month", 12L);
+        card.put("exp_year", 2034L);
+        return card;
+    }
+
+    private static Map<String, Object> invoiceSettings(String defaultPaymentMethod) {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("default_payment_method", defaultPaymentMethod);
+        return settings;
+    }
+
+    private static Map<String, Object> list(List<Object> data, String url) {
+        Map<String, Object> list = new LinkedHashMap<>();
+        list.put("object", "list");
+        list.put("data", data);
+        list.put("has_more", false);
+        list.put("url", url);
+        return list;
+    }
+
+    private Map<String, Object> store(Map<String, Object> object) {
+        objects.put((String) object.get("id"), object);
+        return object;
+    }
+
+    private static String resourceOf(Map<String, Object> object) {
+        String type = (String) object.get("object");
+        return type.endsWith("s") ? type : type + "s";
+    }
+
+    private static boolean matches(Map<String, Object> object, Map<String, String> params, String... fields) {
+        for (String field : fields) {
+            if (params.containsKey(field) && !params.get(field).equals(object.get(field))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String id(Object object) {
+        return (String) ((Map<String, Object>) object).get("id");
+    }
+
+    private static long created(Object object) {
+        @SuppressWarnings("unchecked")
+        Object created = ((Map<String, Object>) object).get("created");
+        return created == null ? 0 : (Long) created;
+    }
+
+    private static void copy(Map<String, String> params, Map<String, Object> object, String... fields) {
+        for (String field : fields) {
+            if (params.containsKey(field)) {
+                object.put(field, params.get(field));
+            }
+        }
+    }
+
+    private static Long number(String value) {
+        return value == null ? null : Long.valueOf(value);
+    }
+
+    private static String endpoint(String method, String[] path) {
+        StringBuilder endpoint = new StringBuilder(method).append(" /v1/").append(path[0]);
+        for (int i = 1; i < path.length; i++) {
+            endpoint.append(i % 2 == 1 && !"upcoming".equals(path[i]) ? "/{id}" : "/" + path[i]);
+        }
+        return endpoint.toString();
+    }
+
+    private static void parseForm(String text, Map<String, String> params) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        for (String pair : text.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void sleep(Duration latency) {
+        if (latency == null || latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency.toMillis(), latency.getNano() % 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String error(String type, String message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("type", type);
+        error.put("message", message);
+        return GSON.toJson(Collections.singletonMap("error", error));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static class StubError {
+        final int status;
+        final String message;
+
+        StubError(int status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    private static class Failure {
+        final int status;
+        final double rate;
+        final AtomicInteger remaining;
+
+        Failure(int status, double rate, AtomicInteger remaining) {
+            this.status = status;
+            this.rate = rate;
+            this.remaining = remaining;
+        }
+
+        boolean fails() {
+            if (remaining != null) {
+                return remaining.getAndDecrement() > 0;
+            }
+            return ThreadLocalRandom.current().nextDouble() < rate;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package digiot.stwrap.helper;
+
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentMethod;
+import com.stripe.param.CustomerCreateParams;
+import com.stripe.param.InvoiceUpcomingParams;
+import com.stripe.param.PaymentMethodAttachParams;
+import com.stripe.param.PaymentMethodCreateParams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripeStubTest {
+
+    StripeStub stripe;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterEach
+    void tearDown() throws StripeException {
+        StripeTestHelper.clean();
+        stripe.close();
+    }
+
+    @Test
+    void paymentMethod_keepsStateBetweenCalls() throws StripeException {
+
+        Customer customer = Customer.create(CustomerCreateParams.builder().setEmail("stub@example.com").build());
+        PaymentMethod created = PaymentMethod.create(PaymentMethodCreateParams.builder()
+                .setType(PaymentMethodCreateParams.Type.CARD)
+                .setCard(PaymentMethodCreateParams.Token.builder().setToken("tok_visa").build())
+                .build());
+        created.attach(PaymentMethodAttachParams.builder().setCustomer(customer.getId()).build());
+
+        assertEquals(customer.getId(), PaymentMethod.retrieve(created.getId()).getCustomer());
+        assertEquals("stub@example.com", Customer.retrieve(customer.getId()).getEmail());
+        assertEquals(1, stripe.calls("POST /v1/payment_methods/{id}/attach"));
+        assertEquals(1, stripe.calls("GET /v1/payment_methods/{id}"));
+    }
+
+    @Test
+    void subscription_appearsOnUpcomingInvoice() throws StripeException {
+
+        Customer customer = StripeTestHelper.createTestCustomer("invoice@example.com");
+        String productId = StripeTestHelper.createTestProduct("Product").getId();
+        String planId = StripeTestHelper.createTestPlan(productId, 1500, "usd", "month").getId();
+        StripeTestHelper.createSubscription(customer.getId(), planId);
+
+        Invoice invoice = Invoice.upcoming(InvoiceUpcomingParams.builder().setCustomer(customer.getId()).build());
+
+        assertEquals(1500L, invoice.getAmountDue());
+        assertEquals(1, stripe.calls("GET /v1/invoices/upcoming"));
+    }
+
+    @Test
+    void failNext_injectsErrorsThenRecovers() throws StripeException {
+
+        stripe.failNext("POST /v1/customers", 1, 429);
+        stripe.setLatency("POST /v1/customers", Duration.ofMillis(50));
+
+        assertThrows(RateLimitException.class, () -> Customer.create(CustomerCreateParams.builder().build()));
+        long start = System.nanoTime();
+        assertNotNull(Customer.create(CustomerCreateParams.builder().build()).getId());
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(50).toNanos());
+        assertEquals(2, stripe.calls("POST /v1/customers"));
+    }
+}
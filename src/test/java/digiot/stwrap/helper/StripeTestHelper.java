@@ -31,7 +31,6 @@ public class StripeTestHelper {
         return Token.retrieve("tok_visa");
     }
 
-    // テスト実施不可
     public static PaymentMethod attachTokenToCustomer(Customer customer, Token token) throws StripeException {
 
         CustomerUpdateParams customerUpdateParams = CustomerUpdateParams.builder()
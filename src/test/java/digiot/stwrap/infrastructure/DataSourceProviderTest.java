@@ -0,0 +1,67 @@
+package digiot.stwrap.infrastructure;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataSourceProviderTest {
+
+    @Test
+    void getDataSource_returnsSharedPool() {
+        assertSame(DataSourceProvider.getDataSource(), DataSourceProvider.getDataSource());
+        assertSame(DataSourceProvider.getDataSource(), DataSourceProvider.getDataSource(DataSourceProvider.DEFAULT_POOL));
+    }
+
+    @Test
+    void getReadWriteDataSource_writesToDefaultPool() {
+        assertSame(DataSourceProvider.getReadWriteDataSource(), DataSourceProvider.getReadWriteDataSource());
+        assertSame(DataSourceProvider.getDataSource(), DataSourceProvider.getReadWriteDataSource().getPrimary());
+    }
+
+    @Test
+    void getDataSource_namedPoolUsesItsOwnSettings() throws SQLException {
+
+        DataSource dataSource = DataSourceProvider.getDataSource("reporting");
+        assertNotSame(DataSourceProvider.getDataSource(), dataSource);
+
+        HikariDataSource pool = (HikariDataSource) dataSource;
+        assertEquals("stwrap-reporting-pool", pool.getPoolName());
+        assertEquals(2, pool.getMaximumPoolSize());
+        assertTrue(pool.isReadOnly());
+
+        try (Connection conn = dataSource.getConnection()) {
+            assertFalse(conn.getAutoCommit());
+            assertEquals(Connection.TRANSACTION_READ_COMMITTED, conn.getTransactionIsolation());
+        }
+    }
+
+    @Test
+    void close_recreatesPoolOnNextUse() {
+
+        HikariDataSource first = (HikariDataSource) DataSourceProvider.getDataSource("reporting");
+        DataSourceProvider.close("reporting");
+        assertTrue(first.isClosed());
+
+        DataSource second = DataSourceProvider.getDataSource("reporting");
+        assertNotSame(first, second);
+        assertSame(second, DataSourceProvider.getDataSource("reporting"));
+    }
+
+    @Test
+    void close_defaultPoolRecreatesReadWriteDataSource() {
+
+        ReadWriteDataSource first = DataSourceProvider.getReadWriteDataSource();
+        DataSourceProvider.close(DataSourceProvider.DEFAULT_POOL);
+        assertTrue(((HikariDataSource) first.getPrimary()).isClosed());
+
+        ReadWriteDataSource second = DataSourceProvider.getReadWriteDataSource();
+        assertNotSame(first, second);
+        assertSame(DataSourceProvider.getDataSource(), second.getPrimary());
+        assertFalse(((HikariDataSource) second.getPrimary()).isClosed());
+    }
+}
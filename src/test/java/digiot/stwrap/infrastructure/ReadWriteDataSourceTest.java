@@ -0,0 +1,87 @@
+package digiot.stwrap.infrastructure;
+
+import digiot.stwrap.domain.customer.StripeLinkedUserFactory;
+import digiot.stwrap.domain.model.StripeLinkedUser;
+import digiot.stwrap.domain.repository.impl.DefaultStripeLinkedUserRepository;
+import digiot.stwrap.helper.H2TestDatabase;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadWriteDataSourceTest {
+
+    private final AtomicLong ticker = new AtomicLong();
+
+    private ReadWriteDataSource readWrite(DataSource primary, DataSource replica) {
+        return new ReadWriteDataSource(primary, () -> replica, Duration.ofSeconds(1), Duration.ofSeconds(5), ticker::get);
+    }
+
+    @Test
+    void reads_goToReplicaExceptRightAfterOwnWrite() throws Exception {
+
+        JdbcDataSource primary = H2TestDatabase.create("rw_primary");
+        JdbcDataSource replica = H2TestDatabase.create("rw_replica");
+        DefaultStripeLinkedUserRepository<String> repository = new DefaultStripeLinkedUserRepository<>(readWrite(primary, replica));
+        StripeLinkedUserFactory<String> factory = new StripeLinkedUserFactory<>();
+
+        new DefaultStripeLinkedUserRepository<String>(replica).insert(factory.create("rw-user", "cus_replica"));
+        repository.insert(factory.create("rw-user", "cus_primary"));
+
+        // Right after the write, this thread reads its own write from the primary.
+        assertEquals("cus_primary", repository.findPrimaryByUserId("rw-user").map(StripeLinkedUser::getStripeCustomerId).orElse(null));
+
+        // Other threads have not written and read from the replica.
+        String otherThread = CompletableFuture.supplyAsync(() -> repository.findPrimaryByUserId("rw-user"))
+                .get().map(StripeLinkedUser::getStripeCustomerId).orElse(null);
+        assertEquals("cus_replica", otherThread);
+
+        ticker.addAndGet(Duration.ofSeconds(2).toNanos());
+        assertEquals("cus_replica", repository.findPrimaryByUserId("rw-user").map(StripeLinkedUser::getStripeCustomerId).orElse(null));
+    }
+
+    @Test
+    void reads_fallBackToPrimaryWhileReplicaIsDown() throws SQLException {
+
+        JdbcDataSource primary = H2TestDatabase.create("rw_fallback_primary");
+        JdbcDataSource replica = H2TestDatabase.create("rw_fallback_replica");
+        AtomicInteger replicaAttempts = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger(1);
+        ReadWriteDataSource dataSource = new ReadWriteDataSource(primary, () -> {
+            replicaAttempts.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException(new SQLTransientConnectionException("replica is down"));
+            }
+            return replica;
+        }, Duration.ofSeconds(1), Duration.ofSeconds(5), ticker::get);
+
+        new DefaultStripeLinkedUserRepository<String>(primary).insert(new StripeLinkedUserFactory<String>().create("rw-fallback", "cus_primary"));
+        DefaultStripeLinkedUserRepository<String> repository = new DefaultStripeLinkedUserRepository<>(dataSource);
+
+        assertTrue(repository.findPrimaryByUserId("rw-fallback").isPresent());
+        assertTrue(repository.findPrimaryByUserId("rw-fallback").isPresent());
+        assertEquals(1, replicaAttempts.get());
+
+        ticker.addAndGet(Duration.ofSeconds(6).toNanos());
+        assertFalse(repository.findPrimaryByUserId("rw-fallback").isPresent());
+        assertEquals(2, replicaAttempts.get());
+    }
+
+    @Test
+    void withoutReplica_everyConnectionComesFromPrimary() throws SQLException {
+
+        JdbcDataSource primary = H2TestDatabase.create("rw_single");
+        ReadWriteDataSource dataSource = new ReadWriteDataSource(primary, null, Duration.ofSeconds(1), Duration.ofSeconds(5));
+        new DefaultStripeLinkedUserRepository<String>(primary).insert(new StripeLinkedUserFactory<String>().create("rw-single", "cus_single"));
+
+        assertTrue(new DefaultStripeLinkedUserRepository<String>(dataSource).findPrimaryByUserId("rw-single").isPresent());
+    }
+}
@@ -0,0 +1,66 @@
+package digiot.stwrap.infrastructure.snapshot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void write_lookupsInBothDirections() throws IOException {
+
+        List<LinkSnapshot.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new LinkSnapshot.Entry("link" + i, "user" + i, "cus_" + i, i, 2L * i, i % 3));
+        }
+        Path path = directory.resolve("links.snapshot");
+        LinkSnapshot.write(path, entries, 1998L, 42L);
+
+        LinkSnapshot snapshot = LinkSnapshot.open(path);
+        assertEquals(1000, snapshot.size());
+        assertEquals(1998L, snapshot.getWatermark());
+        assertEquals(42L, snapshot.getBuiltAt());
+        for (LinkSnapshot.Entry entry : entries) {
+            assertEquals(entry, snapshot.findByUserId(entry.getUserId()));
+            assertEquals(entry.getStripeCustomerId(), snapshot.findStripeCustomerId(entry.getUserId()));
+            assertEquals(entry.getUserId(), snapshot.findUserId(entry.getStripeCustomerId()));
+        }
+        assertNull(snapshot.findByUserId("user1000"));
+        assertNull(snapshot.findUserId("cus_missing"));
+
+        List<LinkSnapshot.Entry> read = new ArrayList<>();
+        snapshot.forEach(read::add);
+        assertEquals(entries, read);
+    }
+
+    @Test
+    void write_replacesMappedFile() throws IOException {
+
+        Path path = directory.resolve("links.snapshot");
+        LinkSnapshot.write(path, List.of(new LinkSnapshot.Entry("link1", "user1", "cus_old", 0, 0, 0)), 0, 0);
+        LinkSnapshot previous = LinkSnapshot.open(path);
+
+        LinkSnapshot.write(path, List.of(new LinkSnapshot.Entry("link2", "user1", "cus_new", 0, 0, 0)), 0, 0);
+
+        assertEquals("cus_old", previous.findStripeCustomerId("user1"));
+        assertEquals("cus_new", LinkSnapshot.open(path).findStripeCustomerId("user1"));
+    }
+
+    @Test
+    void open_rejectsOtherFiles() throws IOException {
+
+        Path path = Files.write(directory.resolve("other"), new byte[64]);
+
+        assertThrows(IOException.class, () -> LinkSnapshot.open(path));
+    }
+}
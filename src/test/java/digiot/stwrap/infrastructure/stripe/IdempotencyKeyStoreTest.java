@@ -0,0 +1,54 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyKeyStoreTest {
+
+    DataSource dataSource = DataSourceProvider.getDataSource();
+    Clock clock = Clock.fixed(Instant.parse("2024-01-01T00:00:00Z"), ZoneOffset.UTC);
+    IdempotencyKeyStore store = new IdempotencyKeyStore(dataSource, Duration.ofHours(24), clock);
+
+    @Test
+    void acquire_returnsSameKeyUntilComplete() {
+
+        String key = store.acquire("charge|cus_store_1|1000|jpy|tok_1");
+
+        assertTrue(key.startsWith("stwrap-"));
+        assertEquals(key, store.acquire("charge|cus_store_1|1000|jpy|tok_1"));
+        assertNotEquals(key, store.acquire("charge|cus_store_1|2000|jpy|tok_1"));
+
+        store.complete("charge|cus_store_1|1000|jpy|tok_1");
+        assertNotEquals(key, store.acquire("charge|cus_store_1|1000|jpy|tok_1"));
+    }
+
+    @Test
+    void acquire_renewsExpiredKey() {
+
+        String key = store.acquire("charge|cus_store_2|1000|jpy|tok_1");
+
+        IdempotencyKeyStore later = new IdempotencyKeyStore(dataSource, Duration.ofHours(24), Clock.offset(clock, Duration.ofHours(25)));
+        String renewed = later.acquire("charge|cus_store_2|1000|jpy|tok_1");
+
+        assertNotEquals(key, renewed);
+        assertEquals(renewed, later.acquire("charge|cus_store_2|1000|jpy|tok_1"));
+    }
+
+    @Test
+    void purgeExpired_removesOldKeys() {
+
+        String key = store.acquire("charge|cus_store_3|1000|jpy|tok_1");
+
+        IdempotencyKeyStore later = new IdempotencyKeyStore(dataSource, Duration.ofHours(24), Clock.offset(clock, Duration.ofHours(25)));
+        assertTrue(later.purgeExpired() >= 1);
+        assertNotEquals(key, store.acquire("charge|cus_store_3|1000|jpy|tok_1"));
+    }
+}
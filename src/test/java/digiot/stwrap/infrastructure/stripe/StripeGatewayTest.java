@@ -0,0 +1,149 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import com.stripe.exception.ApiException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Customer;
+import com.stripe.param.CustomerCreateParams;
+import digiot.stwrap.helper.StripeStub;
+import digiot.stwrap.infrastructure.DataSourceProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripeGatewayTest {
+
+    StripeStub stripe;
+    List<Long> sleeps = new ArrayList<>();
+    TokenBucket writeLimiter = new TokenBucket(100, 1, 100);
+    StripeGateway gateway = new StripeGateway(null, writeLimiter, 3, Duration.ofMillis(100), Duration.ofSeconds(1), null, null, null, sleeps::add);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stripe = StripeStub.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+    }
+
+    @Test
+    void write_retriesRateLimitedCallAfterRetryAfter() throws StripeException {
+
+        stripe.failNext("POST /v1/customers", 2, 429);
+
+        Customer customer = gateway.write(() -> Customer.create(CustomerCreateParams.builder().build()));
+
+        assertNotNull(customer.getId());
+        assertEquals(3, stripe.calls("POST /v1/customers"));
+        // Two backoffs honouring Retry-After: 1, besides the waits of the lowered rate limit.
+        assertEquals(2, sleeps.stream().filter(nanos -> nanos >= TimeUnit.SECONDS.toNanos(1)).count());
+        assertEquals(50, writeLimiter.getRate(), 1);
+    }
+
+    @Test
+    void write_givesUpAfterMaxAttempts() {
+
+        stripe.failNext("POST /v1/customers", 5, 429);
+
+        assertThrows(RateLimitException.class, () -> gateway.write(() -> Customer.create(CustomerCreateParams.builder().build())));
+        assertEquals(3, stripe.calls("POST /v1/customers"));
+    }
+
+    @Test
+    void write_doesNotRetryServerError() {
+
+        stripe.failNext("POST /v1/customers", 1, 500);
+
+        assertThrows(ApiException.class, () -> gateway.write(() -> Customer.create(CustomerCreateParams.builder().build())));
+        assertEquals(1, stripe.calls("POST /v1/customers"));
+        assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    void read_retriesServerErrorWithBackoff() throws StripeException {
+
+        String customerId = Customer.create(CustomerCreateParams.builder().build()).getId();
+        stripe.failNext("GET /v1/customers/{id}", 2, 500);
+
+        assertEquals(customerId, gateway.read(() -> Customer.retrieve(customerId)).getId());
+        assertEquals(3, stripe.calls("GET /v1/customers/{id}"));
+        assertTrue(sleeps.get(0) <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(sleeps.get(1) <= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    void idempotentWrite_retriesLostResponseWithSameKey() throws StripeException {
+
+        stripe.loseResponseNext("POST /v1/customers", 1);
+
+        Customer customer = gateway.write("customer.create|gateway_user_1", null,
+                options -> Customer.create(CustomerCreateParams.builder().build(), options));
+
+        assertNotNull(customer.getId());
+        assertEquals(2, stripe.calls("POST /v1/customers"));
+        assertEquals(1, stripe.count("customer"));
+    }
+
+    @Test
+    void idempotentWrite_keepsStoredKeyWhileOutcomeIsUnknown() throws StripeException {
+
+        StripeGateway singleAttempt = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO,
+                new IdempotencyKeyStore(DataSourceProvider.getDataSource()), null, null, sleeps::add);
+        stripe.loseResponseNext("POST /v1/customers", 1);
+
+        assertThrows(ApiException.class, () -> singleAttempt.write("customer.create|gateway_user_2", null,
+                options -> Customer.create(CustomerCreateParams.builder().build(), options)));
+        singleAttempt.write("customer.create|gateway_user_2", null,
+                options -> Customer.create(CustomerCreateParams.builder().build(), options));
+        assertEquals(1, stripe.count("customer"));
+
+        // The key was released on success, so the same operation is now a new write.
+        singleAttempt.write("customer.create|gateway_user_2", null,
+                options -> Customer.create(CustomerCreateParams.builder().build(), options));
+        assertEquals(2, stripe.count("customer"));
+    }
+
+    @Test
+    void idempotentWrite_withoutOperationDoesNotReuseStoredKey() throws StripeException {
+
+        StripeGateway singleAttempt = new StripeGateway(null, null, 1, Duration.ZERO, Duration.ZERO,
+                new IdempotencyKeyStore(DataSourceProvider.getDataSource()), null, null, sleeps::add);
+        stripe.loseResponseNext("POST /v1/customers", 1);
+
+        assertThrows(ApiException.class, () -> singleAttempt.write(null, null,
+                options -> Customer.create(CustomerCreateParams.builder().build(), options)));
+        singleAttempt.write(null, null, options -> Customer.create(CustomerCreateParams.builder().build(), options));
+
+        // The second call is a new write, not a replay of the first one.
+        assertEquals(2, stripe.count("customer"));
+    }
+
+    @Test
+    void backoff_saturatesAtMaxDelayForLargeDelaysAndAttempts() {
+
+        Duration maxDelay = Duration.ofDays(365 * 200);
+        StripeGateway slow = new StripeGateway(null, null, 100, Duration.ofDays(365 * 100), maxDelay, null, null, null, sleeps::add);
+        StripeException error = new ApiException("Server error", null, null, 500, null);
+
+        for (int attempt : new int[]{3, 64}) {
+            long longest = 0;
+            for (int i = 0; i < 100; i++) {
+                long delay = slow.backoff(attempt, error);
+                assertTrue(delay >= 0 && delay <= maxDelay.toNanos());
+                longest = Math.max(longest, delay);
+            }
+            // Four times the base delay overflows a long; the backoff must hold at the maximum instead.
+            assertTrue(longest > maxDelay.toNanos() / 2);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package digiot.stwrap.infrastructure.stripe;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    AtomicLong now = new AtomicLong();
+    TokenBucket bucket = new TokenBucket(10, 1, 2, now::get);
+
+    @Test
+    void reserve_waitsOnceBurstIsUsed() {
+
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), bucket.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), bucket.reserve());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, bucket.reserve());
+    }
+
+    @Test
+    void onThrottled_halvesRateOncePerSecond() {
+
+        bucket.onThrottled();
+        bucket.onThrottled();
+        assertEquals(5, bucket.getRate());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        bucket.onThrottled();
+        assertEquals(2.5, bucket.getRate());
+
+        for (int i = 0; i < 10; i++) {
+            now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            bucket.onThrottled();
+        }
+        assertEquals(1, bucket.getRate());
+    }
+
+    @Test
+    void onSuccess_recoversRateUpToMaximum() {
+
+        bucket.onThrottled();
+        for (int i = 0; i < 10; i++) {
+            bucket.onSuccess();
+        }
+        assertTrue(bucket.getRate() > 6.5 && bucket.getRate() < 7.5, "rate " + bucket.getRate());
+
+        for (int i = 0; i < 1000; i++) {
+            bucket.onSuccess();
+        }
+        assertEquals(10, bucket.getRate());
+    }
+}
@@ -7,8 +7,91 @@ CREATE TABLE IF NOT EXISTS stripe_linked_user
     is_primary BOOLEAN DEFAULT TRUE,
     deleted         BOOLEAN   DEFAULT FALSE,
     created_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    updated_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP
+    updated_at         TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    version            BIGINT    DEFAULT 0 NOT NULL,
+    primary_user_id    VARCHAR(255) GENERATED ALWAYS AS (CASE WHEN is_primary = TRUE AND deleted = FALSE THEN user_id END)
 );
 
 CREATE INDEX IF NOT EXISTS idx_stripe_linked_user_user_id ON stripe_linked_user (user_id);
 CREATE INDEX IF NOT EXISTS idx_stripe_linked_user_stripe_customer_id ON stripe_linked_user (stripe_customer_id);
+CREATE UNIQUE INDEX IF NOT EXISTS uq_stripe_linked_user_primary_user_id ON stripe_linked_user (primary_user_id);
+
+-- stripe_idempotency_key
+CREATE TABLE IF NOT EXISTS stripe_idempotency_key
+(
+    operation       VARCHAR(64) PRIMARY KEY,
+    idempotency_key VARCHAR(64) NOT NULL,
+    created_at      TIMESTAMP   NOT NULL
+);
+
+-- job_checkpoint
+CREATE TABLE IF NOT EXISTS job_checkpoint
+(
+    job_name   VARCHAR(255) PRIMARY KEY,
+    position   BIGINT       NOT NULL,
+    updated_at TIMESTAMP    NOT NULL
+);
+
+-- webhook read model
+CREATE TABLE IF NOT EXISTS stripe_subscription
+(
+    id                   VARCHAR(255) PRIMARY KEY,
+    stripe_customer_id   VARCHAR(255) NOT NULL,
+    status               VARCHAR(32)  NOT NULL,
+    cancel_at_period_end BOOLEAN,
+    cancel_at            BIGINT,
+    current_period_start BIGINT,
+    current_period_end   BIGINT,
+    event_created        BIGINT       NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_stripe_subscription_customer ON stripe_subscription (stripe_customer_id);
+
+CREATE TABLE IF NOT EXISTS stripe_subscription_item
+(
+    id              VARCHAR(255) PRIMARY KEY,
+    subscription_id VARCHAR(255) NOT NULL,
+    plan_id         VARCHAR(255),
+    quantity        BIGINT
+);
+
+CREATE INDEX IF NOT EXISTS idx_stripe_subscription_item_subscription ON stripe_subscription_item (subscription_id);
+
+CREATE TABLE IF NOT EXISTS stripe_invoice
+(
+    id                 VARCHAR(255) PRIMARY KEY,
+    stripe_customer_id VARCHAR(255),
+    subscription_id    VARCHAR(255),
+    status             VARCHAR(32),
+    currency           VARCHAR(8),
+    amount_due         BIGINT,
+    amount_paid        BIGINT,
+    created            BIGINT,
+    event_created      BIGINT NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_stripe_invoice_customer ON stripe_invoice (stripe_customer_id);
+
+CREATE TABLE IF NOT EXISTS stripe_payment_method
+(
+    id                 VARCHAR(255) PRIMARY KEY,
+    stripe_customer_id VARCHAR(255),
+    type               VARCHAR(32),
+    card_brand         VARCHAR(32),
+    card_last4         VARCHAR(4),
+    card_exp_month     BIGINT,
+    card_exp_year      BIGINT,
+    event_created      BIGINT NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_stripe_payment_method_customer ON stripe_payment_method (stripe_customer_id);
+
+CREATE TABLE IF NOT EXISTS stripe_usage_pending
+(
+    idempotency_key      VARCHAR(64) PRIMARY KEY,
+    subscription_item_id VARCHAR(255) NOT NULL,
+    quantity             BIGINT       NOT NULL,
+    usage_timestamp      BIGINT       NOT NULL,
+    attempted            BOOLEAN      NOT NULL,
+    created_at           TIMESTAMP    NOT NULL
+);